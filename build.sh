@@ -67,6 +67,10 @@ for lang in python go java nodejs; do
         if [ -d "$dir" ]; then
             # Get directory name
             client_type=$(basename "$dir")
+            # The java gateway compiles its siblings' sources, so it cannot ship on its own
+            if [ "$lang" = "java" ] && [ "$client_type" = "gateway" ]; then
+                continue
+            fi
             # Remove -oauth suffix from directory name
             client_type=${client_type%-oauth}
             # Build final zip filename
@@ -0,0 +1,112 @@
+package com.coze.device.model;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.coze.openapi.client.auth.OAuthToken;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Cost of turning an {@link OAuthToken} into the JSON body of {@code /refresh_token}: through a
+ * {@link TokenResponse} and Jackson databind, or streamed by {@link TokenJson}. Run with the {@code
+ * gc} profiler (on by default here) and compare {@code gc.alloc.rate.norm}, the bytes allocated per
+ * operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TokenResponseBenchmark {
+  private static final int BATCH_SIZE = 20;
+
+  private final ObjectMapper mapper = new ObjectMapper();
+  private OAuthToken token;
+  private TokenResponse response;
+
+  @Setup
+  public void setup() {
+    token =
+        OAuthToken.builder()
+            .accessToken("czs_KbtA8qvPfTfRnB1iXqTnZDhZ7AP5Y5w4kBJJ3wGxLsWkuQ8Nz2vOmrTcHd0eJ")
+            .refreshToken("3z2dpSKzQ9R3fZtb6JgXhMLkVCm1Fw7yUH8n5DPaErcYoTiB0AGNsqxOvIWlj4u")
+            .tokenType("Bearer")
+            .expiresIn(1735689600)
+            .build();
+    response = TokenResponse.convertToTokenResponse(token);
+  }
+
+  @Benchmark
+  public TokenResponse convert() {
+    return TokenResponse.convertToTokenResponse(token);
+  }
+
+  @Benchmark
+  public String serialize() throws JsonProcessingException {
+    return mapper.writeValueAsString(response);
+  }
+
+  @Benchmark
+  public String convertAndSerialize() throws JsonProcessingException {
+    return mapper.writeValueAsString(TokenResponse.convertToTokenResponse(token));
+  }
+
+  @Benchmark
+  public byte[] convertAndSerializeToBytes() throws JsonProcessingException {
+    return mapper.writeValueAsBytes(TokenResponse.convertToTokenResponse(token));
+  }
+
+  @Benchmark
+  public byte[] streamed() {
+    return TokenJson.toBytes(token);
+  }
+
+  @Benchmark
+  public void streamedBatch(Blackhole blackhole) throws IOException {
+    NullOutputStream out = new NullOutputStream(blackhole);
+    try (TokenJson.Batch batch = TokenJson.batch(out)) {
+      for (int i = 0; i < BATCH_SIZE; i++) {
+        batch.token(token);
+      }
+    }
+  }
+
+  @Benchmark
+  public void databindBatch(Blackhole blackhole) throws IOException {
+    List<TokenResponse> responses = new ArrayList<>(BATCH_SIZE);
+    for (int i = 0; i < BATCH_SIZE; i++) {
+      responses.add(TokenResponse.convertToTokenResponse(token));
+    }
+    mapper.writeValue(new NullOutputStream(blackhole), responses);
+  }
+
+  // counts the bytes written without keeping them
+  private static final class NullOutputStream extends OutputStream {
+    private final Blackhole blackhole;
+
+    private NullOutputStream(Blackhole blackhole) {
+      this.blackhole = blackhole;
+    }
+
+    @Override
+    public void write(int b) {
+      blackhole.consume(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      blackhole.consume(len);
+    }
+  }
+}
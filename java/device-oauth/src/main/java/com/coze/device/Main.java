@@ -1,28 +1,100 @@
 package com.coze.device;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.concurrent.CompletionException;
 
+import com.coze.device.batch.BatchAuthorizer;
+import com.coze.device.http.UpstreamHttpPool;
+import com.coze.device.log.EventLog;
+import com.coze.device.log.Redaction;
+import com.coze.device.metrics.AdminAccess;
+import com.coze.device.metrics.Metrics;
+import com.coze.device.poller.DeviceTokenPoller;
+import com.coze.device.upstream.UpstreamGuard;
 import com.coze.openapi.client.auth.DeviceAuthResp;
 import com.coze.openapi.client.auth.LoadAuthConfig;
+import com.coze.openapi.client.auth.OAuthConfig;
 import com.coze.openapi.client.auth.OAuthToken;
 import com.coze.openapi.client.exception.AuthErrorCode;
 import com.coze.openapi.client.exception.CozeAuthException;
 import com.coze.openapi.service.auth.DeviceOAuthClient;
 
+import io.javalin.Javalin;
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
 public class Main {
   private static final String DATE_TIME_PATTERN = "yyyy-MM-dd HH:mm:ss";
   private static final String configFilePath = "coze_oauth_config.json";
+  private static final String DEFAULT_BATCH_OUTPUT = "device_tokens.jsonl";
+  private static final int DEFAULT_BATCH_CONCURRENCY = 8;
+  // Coze 授权接口的 HTTP 连接池: -Dcoze.http.max.idle 为保留的空闲连接数, -Dcoze.http.keepalive.ms
+  // 为空闲连接的保留时间, -Dcoze.http.http2=false 时只用 HTTP/1.1, -Dcoze.http.warmup 为启动时预先建立的连接数
+  private static final int HTTP_MAX_IDLE =
+      Integer.getInteger("coze.http.max.idle", UpstreamHttpPool.DEFAULT_MAX_IDLE);
+  private static final long HTTP_KEEP_ALIVE_MILLIS =
+      Long.getLong("coze.http.keepalive.ms", UpstreamHttpPool.DEFAULT_KEEP_ALIVE_MILLIS);
+  private static final boolean HTTP2 =
+      Boolean.parseBoolean(System.getProperty("coze.http.http2", "true"));
+  private static final int HTTP_WARM_UP_CONNECTIONS = Integer.getInteger("coze.http.warmup", 1);
+  // 设置 -Dcoze.log.events=<path> 时把批量授权的上游调用和审计事件以 JSON lines 写入该文件 ("-" 为标准输出),
+  // token 只记录指纹; -Dcoze.log.buffer 为待写事件的队列长度, 队列满时丢弃事件
+  private static final String EVENT_LOG = System.getProperty("coze.log.events");
+  private static final int EVENT_LOG_BUFFER =
+      Integer.getInteger("coze.log.buffer", EventLog.DEFAULT_CAPACITY);
+  // 默认只输出 token 的指纹, 设置 -Dcoze.log.reveal.tokens=true 时输出完整的 token
+  private static final boolean REVEAL_TOKENS = Boolean.getBoolean("coze.log.reveal.tokens");
+  // 设置 -Dcoze.startup.exit=true 时启动完成后立即退出, 用于生成 AppCDS 归档的训练运行
+  private static final boolean STARTUP_EXIT = Boolean.getBoolean("coze.startup.exit");
+  // 对 Coze 授权接口的调用限流: -Dcoze.upstream.rate 为每秒允许的调用数 (0 不限流), -Dcoze.upstream.burst
+  // 为允许的突发调用数; 连续失败 -Dcoze.upstream.breaker.failures 次 (0 不熔断) 后熔断
+  // -Dcoze.upstream.breaker.open.ms 毫秒, 期间轮询推迟, 之后放行一个探测调用
+  private static final double UPSTREAM_RATE =
+      Double.parseDouble(System.getProperty("coze.upstream.rate", "0"));
+  private static final int UPSTREAM_BURST = Integer.getInteger("coze.upstream.burst", 10);
+  private static final int BREAKER_FAILURES =
+      Integer.getInteger("coze.upstream.breaker.failures", 5);
+  private static final long BREAKER_OPEN_MILLIS =
+      Long.getLong("coze.upstream.breaker.open.ms", 30_000);
+  // 设置 -Dcoze.admin.token=<token> 时 --metrics-port 上的 /metrics 和 /admin/upstream 须带
+  // Authorization: Bearer <token>; 未设置时只允许本机不经代理直接访问
+  private static final String ADMIN_TOKEN = System.getProperty("coze.admin.token");
 
   public static void main(String[] args) {
     try {
+      OAuthConfig config = OAuthConfig.load(new LoadAuthConfig(configFilePath));
+      // 共享一个连接池, 批量授权时所有设备复用已建立的连接
+      UpstreamHttpPool httpPool =
+          new UpstreamHttpPool(HTTP_MAX_IDLE, HTTP_KEEP_ALIVE_MILLIS, HTTP2);
       DeviceOAuthClient oauth =
-          DeviceOAuthClient.loadFromConfig(new LoadAuthConfig(configFilePath));
-      OAuthToken token = verifyDeviceToken(oauth);
+          new DeviceOAuthClient.DeviceOAuthBuilder()
+              .clientID(config.getClientId())
+              .baseURL(config.getCozeApiBase())
+              .wwwURL(config.getCozeWwwBase())
+              .client(httpPool.client())
+              .build();
+      if (STARTUP_EXIT) {
+        return;
+      }
+      httpPool.warmUp(config.getCozeApiBase(), HTTP_WARM_UP_CONNECTIONS);
+      UpstreamGuard upstreamGuard =
+          UpstreamGuard.of(
+              config.getClientId(),
+              UPSTREAM_RATE,
+              UPSTREAM_BURST,
+              BREAKER_FAILURES,
+              BREAKER_OPEN_MILLIS);
+      if (args.length > 0 && "--batch".equals(args[0])) {
+        runBatch(oauth, httpPool, upstreamGuard, args);
+        return;
+      }
+      OAuthToken token = verifyDeviceToken(oauth, upstreamGuard);
 
       if (token == null) {
         log.error("Failed to obtain access token.");
@@ -33,30 +105,112 @@ public class Main {
     }
   }
 
+  // 批量授权: --batch <devices.txt> [--out device_tokens.jsonl] [--concurrency 8]
+  // [--metrics-port 9090] 时在该端口的 /metrics 暴露 Prometheus 指标, /admin/upstream 暴露
+  // 限流和熔断状态
+  private static void runBatch(
+      DeviceOAuthClient oauth,
+      UpstreamHttpPool httpPool,
+      UpstreamGuard upstreamGuard,
+      String[] args)
+      throws IOException {
+    if (args.length < 2) {
+      throw new IllegalArgumentException(
+          "usage: --batch <devices.txt> [--out <tokens.jsonl>] [--concurrency <n>]"
+              + " [--metrics-port <port>]");
+    }
+    Path input = Paths.get(args[1]);
+    Path output = Paths.get(DEFAULT_BATCH_OUTPUT);
+    int concurrency = DEFAULT_BATCH_CONCURRENCY;
+    int metricsPort = 0;
+    for (int i = 2; i + 1 < args.length; i += 2) {
+      if ("--out".equals(args[i])) {
+        output = Paths.get(args[i + 1]);
+      } else if ("--concurrency".equals(args[i])) {
+        concurrency = Integer.parseInt(args[i + 1]);
+      } else if ("--metrics-port".equals(args[i])) {
+        metricsPort = Integer.parseInt(args[i + 1]);
+      } else {
+        throw new IllegalArgumentException("unknown option: " + args[i]);
+      }
+    }
+    List<String> devices = BatchAuthorizer.readDevices(input);
+    log.info("Authorizing {} devices with concurrency {}", devices.size(), concurrency);
+    Metrics metrics = new Metrics();
+    EventLog eventLog = EventLog.open(EVENT_LOG, EVENT_LOG_BUFFER);
+    metrics.bindEventLog(eventLog);
+    httpPool.bindMetrics(metrics);
+    upstreamGuard.bindMetrics(metrics);
+    Javalin metricsServer = null;
+    if (metricsPort > 0) {
+      AdminAccess adminAccess = AdminAccess.withToken(ADMIN_TOKEN);
+      metricsServer =
+          Javalin.create()
+              .get(
+                  "/metrics",
+                  adminAccess.guard(
+                      ctx -> {
+                        ctx.contentType(Metrics.CONTENT_TYPE);
+                        ctx.result(metrics.scrape());
+                      }))
+              .get("/admin/upstream", adminAccess.guard(ctx -> ctx.json(upstreamGuard.state())))
+              .post(
+                  "/admin/upstream/reset",
+                  adminAccess.guard(
+                      ctx -> {
+                        upstreamGuard.reset();
+                        ctx.json(upstreamGuard.state());
+                      }))
+              .start("127.0.0.1", metricsPort);
+    }
+    try {
+      new BatchAuthorizer(oauth, concurrency, metrics, upstreamGuard).run(devices, output).print();
+      log.info("Tokens written to {}", output);
+    } finally {
+      if (metricsServer != null) {
+        metricsServer.stop();
+      }
+      eventLog.close();
+    }
+  }
+
   public static OAuthToken verifyDeviceToken(DeviceOAuthClient oauth) {
-    DeviceAuthResp codeResp = oauth.getDeviceCode();
-    printDeviceAuthInstructions(codeResp);
+    return verifyDeviceToken(oauth, null);
+  }
 
-    try {
-      OAuthToken tokenResp = oauth.getAccessToken(codeResp.getDeviceCode(), true);
-      printTokenInfo(tokenResp);
-      return tokenResp;
-    } catch (CozeAuthException e) {
-      handleAuthException(e, oauth);
-    } catch (Exception e) {
-      log.error("Unexpected error during device verification", e);
-      throw new RuntimeException(e);
+  public static OAuthToken verifyDeviceToken(
+      DeviceOAuthClient oauth, UpstreamGuard upstreamGuard) {
+    try (DeviceTokenPoller poller =
+        new DeviceTokenPoller(
+            oauth, DeviceTokenPoller.DEFAULT_WORKERS, new Metrics(), upstreamGuard)) {
+      while (true) {
+        DeviceAuthResp codeResp =
+            upstreamGuard != null
+                ? upstreamGuard.call(oauth::getDeviceCode)
+                : oauth.getDeviceCode();
+        printDeviceAuthInstructions(codeResp);
+
+        try {
+          OAuthToken tokenResp = poller.poll(codeResp).join();
+          printTokenInfo(tokenResp);
+          return tokenResp;
+        } catch (CompletionException e) {
+          if (!(e.getCause() instanceof CozeAuthException)) {
+            log.error("Unexpected error during device verification", e.getCause());
+            throw new RuntimeException(e.getCause());
+          }
+          handleAuthException((CozeAuthException) e.getCause());
+        }
+      }
     }
-    return null;
   }
 
-  private static void handleAuthException(CozeAuthException e, DeviceOAuthClient oauth) {
+  // 返回即重新获取 device code 重试, 其余错误直接抛出
+  private static void handleAuthException(CozeAuthException e) {
     if (AuthErrorCode.ACCESS_DENIED.equals(e.getCode())) {
       log.warn("Access denied, retrying...");
-      verifyDeviceToken(oauth);
     } else if (AuthErrorCode.EXPIRED_TOKEN.equals(e.getCode())) {
       log.warn("Token expired, retrying...");
-      verifyDeviceToken(oauth);
     } else {
       log.error("Unhandled error: {}", e.getCode());
       throw e;
@@ -72,8 +226,8 @@ public class Main {
 
   private static void printTokenInfo(OAuthToken tokenResp) {
     log.info("Successfully obtained access token:");
-    log.info("Access Token: {}", tokenResp.getAccessToken());
-    log.info("Refresh Token: {}", tokenResp.getRefreshToken());
+    log.info("Access Token: {}", reveal(tokenResp.getAccessToken()));
+    log.info("Refresh Token: {}", reveal(tokenResp.getRefreshToken()));
 
     log.info(
         "Token will expire at: {}",
@@ -81,4 +235,8 @@ public class Main {
             .withZone(ZoneId.systemDefault())
             .format(Instant.ofEpochSecond(tokenResp.getExpiresIn())));
   }
+
+  private static String reveal(String token) {
+    return REVEAL_TOKENS ? token : Redaction.fingerprint(token);
+  }
 }
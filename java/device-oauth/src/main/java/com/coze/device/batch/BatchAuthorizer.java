@@ -0,0 +1,213 @@
+package com.coze.device.batch;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.coze.device.metrics.Metrics;
+import com.coze.device.poller.DeviceTokenPoller;
+import com.coze.device.upstream.UpstreamGuard;
+import com.coze.device.upstream.UpstreamUnavailableException;
+import com.coze.openapi.client.auth.DeviceAuthResp;
+import com.coze.openapi.client.auth.OAuthToken;
+import com.coze.openapi.service.auth.DeviceOAuthClient;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Authorizes a list of devices in one run: device codes are requested in parallel (at most {@code
+ * concurrency} requests in flight), user codes are logged as they arrive, and every finished
+ * device is appended to the output file as one JSON line. Calls turned away by the {@link
+ * UpstreamGuard} wait and try again, so a rate limit paces the batch instead of failing devices.
+ */
+@Slf4j
+public class BatchAuthorizer {
+  private final DeviceOAuthClient oauth;
+  private final int concurrency;
+  private final Metrics metrics;
+  // 非空时所有调用经过限流和熔断
+  private final UpstreamGuard upstreamGuard;
+  private final ObjectMapper mapper = new ObjectMapper();
+
+  public BatchAuthorizer(DeviceOAuthClient oauth, int concurrency, Metrics metrics) {
+    this(oauth, concurrency, metrics, null);
+  }
+
+  public BatchAuthorizer(
+      DeviceOAuthClient oauth, int concurrency, Metrics metrics, UpstreamGuard upstreamGuard) {
+    if (concurrency <= 0) {
+      throw new IllegalArgumentException("concurrency must be positive: " + concurrency);
+    }
+    this.oauth = oauth;
+    this.concurrency = concurrency;
+    this.metrics = metrics;
+    this.upstreamGuard = upstreamGuard;
+  }
+
+  /** Reads device identities, one per line; blank lines and # comments are skipped. */
+  public static List<String> readDevices(Path input) throws IOException {
+    List<String> devices = new ArrayList<>();
+    for (String line : Files.readAllLines(input, StandardCharsets.UTF_8)) {
+      line = line.trim();
+      if (!line.isEmpty() && !line.startsWith("#")) {
+        devices.add(line);
+      }
+    }
+    return devices;
+  }
+
+  public Summary run(List<String> devices, Path output) throws IOException {
+    long start = System.nanoTime();
+    List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+    AtomicInteger failed = new AtomicInteger();
+    ExecutorService requesters = Executors.newFixedThreadPool(concurrency);
+    try (BufferedWriter out = Files.newBufferedWriter(output, StandardCharsets.UTF_8);
+        DeviceTokenPoller poller =
+            new DeviceTokenPoller(oauth, concurrency, metrics, upstreamGuard)) {
+      List<CompletableFuture<Void>> all = new ArrayList<>();
+      for (String device : devices) {
+        CompletableFuture<Void> done =
+            CompletableFuture.supplyAsync(() -> requestCode(device), requesters)
+                .thenCompose(
+                    codeResp -> {
+                      long issued = System.nanoTime();
+                      return poller
+                          .poll(codeResp)
+                          .thenAccept(
+                              token -> {
+                                long latencyMillis = (System.nanoTime() - issued) / 1_000_000;
+                                latencies.add(latencyMillis);
+                                writeLine(out, success(device, token, latencyMillis));
+                              });
+                    })
+                .exceptionally(
+                    e -> {
+                      Throwable cause = e.getCause() != null ? e.getCause() : e;
+                      failed.incrementAndGet();
+                      log.warn("Device {} failed: {}", device, cause.getMessage());
+                      writeLine(out, failure(device, cause));
+                      return null;
+                    });
+        all.add(done);
+      }
+      CompletableFuture.allOf(all.toArray(new CompletableFuture[0])).join();
+    } finally {
+      requesters.shutdownNow();
+    }
+    return new Summary(devices.size(), failed.get(), System.nanoTime() - start, latencies);
+  }
+
+  private DeviceAuthResp requestCode(String device) {
+    DeviceAuthResp codeResp = getDeviceCode();
+    log.info(
+        "Device {}: user code {}, verify at {}",
+        device,
+        codeResp.getUserCode(),
+        codeResp.getVerificationURL());
+    return codeResp;
+  }
+
+  private DeviceAuthResp getDeviceCode() {
+    if (upstreamGuard == null) {
+      return metrics.upstream("getDeviceCode", oauth::getDeviceCode);
+    }
+    while (true) {
+      try {
+        return metrics.upstream("getDeviceCode", () -> upstreamGuard.call(oauth::getDeviceCode));
+      } catch (UpstreamUnavailableException e) {
+        try {
+          Thread.sleep(upstreamGuard.retryAfterSeconds() * 1000);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          throw e;
+        }
+      }
+    }
+  }
+
+  private static Map<String, Object> success(String device, OAuthToken token, long latencyMillis) {
+    Map<String, Object> line = new LinkedHashMap<>();
+    line.put("device", device);
+    line.put("access_token", token.getAccessToken());
+    line.put("refresh_token", token.getRefreshToken());
+    line.put("expires_in", token.getExpiresIn());
+    line.put("latency_ms", latencyMillis);
+    return line;
+  }
+
+  private static Map<String, Object> failure(String device, Throwable cause) {
+    Map<String, Object> line = new LinkedHashMap<>();
+    line.put("device", device);
+    line.put("error", String.valueOf(cause.getMessage()));
+    return line;
+  }
+
+  private void writeLine(BufferedWriter out, Map<String, Object> line) {
+    try {
+      String json = mapper.writeValueAsString(line);
+      synchronized (out) {
+        out.write(json);
+        out.newLine();
+        out.flush();
+      }
+    } catch (JsonProcessingException e) {
+      throw new IllegalStateException(e);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /** Throughput and latency of one batch run; latency is from device code issued to token. */
+  public static class Summary {
+    private final int total;
+    private final int failed;
+    private final long elapsedNanos;
+    private final List<Long> latencies;
+
+    Summary(int total, int failed, long elapsedNanos, List<Long> latencies) {
+      this.total = total;
+      this.failed = failed;
+      this.elapsedNanos = elapsedNanos;
+      this.latencies = new ArrayList<>(latencies);
+      Collections.sort(this.latencies);
+    }
+
+    public void print() {
+      double seconds = elapsedNanos / 1e9;
+      log.info(
+          "Batch finished: {} devices, {} authorized, {} failed in {}s ({} devices/s)",
+          total,
+          total - failed,
+          failed,
+          String.format("%.1f", seconds),
+          String.format("%.2f", seconds > 0 ? (total - failed) / seconds : 0));
+      if (!latencies.isEmpty()) {
+        log.info(
+            "Authorization latency ms: p50={} p90={} p99={} max={}",
+            percentile(0.50),
+            percentile(0.90),
+            percentile(0.99),
+            latencies.get(latencies.size() - 1));
+      }
+    }
+
+    private long percentile(double p) {
+      int index = (int) Math.ceil(p * latencies.size()) - 1;
+      return latencies.get(Math.max(0, Math.min(index, latencies.size() - 1)));
+    }
+  }
+}
@@ -0,0 +1,127 @@
+package com.coze.device.http;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.coze.device.metrics.Metrics;
+
+import lombok.extern.slf4j.Slf4j;
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.ConnectionPool;
+import okhttp3.EventListener;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * One OkHttp client, and so one keep-alive connection pool, for every call to the Coze auth API.
+ *
+ * <p>Left alone, each OAuth client of the SDK builds its own HTTP client, so a burst of callbacks
+ * pays for TCP and TLS setup again and again. Handing {@link #client()} to the OAuth client
+ * builders lets them reuse warm connections; over TLS, HTTP/2 is negotiated when the server offers
+ * it, and concurrent calls are then multiplexed over one connection.
+ */
+@Slf4j
+public class UpstreamHttpPool {
+  public static final int DEFAULT_MAX_IDLE = 16;
+  public static final long DEFAULT_KEEP_ALIVE_MILLIS = 5 * 60_000;
+  private static final long WARM_UP_TIMEOUT_MILLIS = 5_000;
+
+  private final ConnectionPool pool;
+  private final OkHttpClient client;
+  private final AtomicLong connects = new AtomicLong();
+  private final AtomicLong acquired = new AtomicLong();
+
+  public UpstreamHttpPool() {
+    this(DEFAULT_MAX_IDLE, DEFAULT_KEEP_ALIVE_MILLIS, true);
+  }
+
+  /**
+   * @param maxIdle idle connections kept open for reuse
+   * @param keepAliveMillis how long an idle connection is kept before it is closed
+   * @param http2 whether to offer HTTP/2; false restricts the client to HTTP/1.1
+   */
+  public UpstreamHttpPool(int maxIdle, long keepAliveMillis, boolean http2) {
+    this.pool = new ConnectionPool(maxIdle, keepAliveMillis, TimeUnit.MILLISECONDS);
+    OkHttpClient.Builder builder =
+        new OkHttpClient.Builder()
+            .connectionPool(pool)
+            .eventListener(
+                new EventListener() {
+                  @Override
+                  public void connectStart(
+                      Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+                    connects.incrementAndGet();
+                  }
+
+                  @Override
+                  public void connectionAcquired(Call call, Connection connection) {
+                    acquired.incrementAndGet();
+                  }
+                });
+    if (!http2) {
+      builder.protocols(Collections.singletonList(Protocol.HTTP_1_1));
+    }
+    this.client = builder.build();
+  }
+
+  /** The shared client; pass it to the OAuth client builders. */
+  public OkHttpClient client() {
+    return client;
+  }
+
+  /**
+   * Opens up to {@code connections} connections to {@code baseUrl} before the first real call, by
+   * sending that many concurrent HEAD requests. Failures are logged and otherwise ignored.
+   */
+  public void warmUp(String baseUrl, int connections) {
+    Request request = new Request.Builder().url(baseUrl).head().build();
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < connections; i++) {
+      Thread t =
+          new Thread(
+              () -> {
+                try (Response response = client.newCall(request).execute()) {
+                  log.debug("Warm-up {} answered {}", baseUrl, response.code());
+                } catch (IOException e) {
+                  log.warn("Warm-up of {} failed: {}", baseUrl, e.getMessage());
+                }
+              },
+              "http-warm-up-" + i);
+      t.setDaemon(true);
+      t.start();
+      threads.add(t);
+    }
+    long deadline = System.currentTimeMillis() + WARM_UP_TIMEOUT_MILLIS;
+    try {
+      for (Thread t : threads) {
+        t.join(Math.max(1, deadline - System.currentTimeMillis()));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    log.info("Warmed up {}: {} connections open", baseUrl, pool.connectionCount());
+  }
+
+  /**
+   * Exposes pool utilization: open, idle and in-use connections, plus counters of new connections
+   * and of connections handed to calls. Their ratio is the share of calls that skipped the
+   * handshake.
+   */
+  public void bindMetrics(Metrics metrics) {
+    metrics.gauge("coze.http.pool.connections", pool, ConnectionPool::connectionCount);
+    metrics.gauge("coze.http.pool.idle", pool, ConnectionPool::idleConnectionCount);
+    metrics.gauge(
+        "coze.http.pool.active", pool, p -> p.connectionCount() - p.idleConnectionCount());
+    metrics.counter("coze.http.connects", connects, AtomicLong::get);
+    metrics.counter("coze.http.connections.acquired", acquired, AtomicLong::get);
+  }
+}
@@ -0,0 +1,186 @@
+package com.coze.device.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
+
+import com.coze.device.log.EventLog;
+import com.coze.openapi.client.exception.CozeAuthException;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+
+/**
+ * Prometheus metrics of the token server: request latency per route, latency of every call to the
+ * Coze auth API, upstream failures by {@code AuthErrorCode}, and cache hit/miss counters. With an
+ * {@link EventLog} bound, requests and upstream calls are also written to it one event each.
+ */
+public class Metrics {
+  public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  private final PrometheusMeterRegistry registry;
+  private final Tags tags;
+  private final String app;
+  // 默认不写事件日志
+  private volatile EventLog events = EventLog.DISABLED;
+
+  public Metrics() {
+    this(new PrometheusMeterRegistry(PrometheusConfig.DEFAULT));
+  }
+
+  public Metrics(PrometheusMeterRegistry registry) {
+    this.registry = registry;
+    this.tags = Tags.empty();
+    this.app = null;
+  }
+
+  /** Metrics of one of several apps sharing {@code registry}, told apart by an {@code app} tag. */
+  public Metrics(PrometheusMeterRegistry registry, String app) {
+    this.registry = registry;
+    this.tags = Tags.of("app", app);
+    this.app = app;
+  }
+
+  public MeterRegistry getRegistry() {
+    return registry;
+  }
+
+  /** Also writes requests, upstream calls and {@link #event}s to {@code events}. */
+  public void bindEventLog(EventLog events) {
+    this.events = events;
+    counter("coze.log.dropped", events, EventLog::getDropped);
+    gauge("coze.log.queued", events, EventLog::queued);
+  }
+
+  /**
+   * Writes an event, such as an audit record, to the bound event log with the app's name; does
+   * nothing without one. Wrap tokens with {@link EventLog#secret}.
+   */
+  public void event(String event, Object... fields) {
+    EventLog log = events;
+    if (!log.isEnabled()) {
+      return;
+    }
+    Object[] all = new Object[fields.length + 2];
+    all[0] = "app";
+    all[1] = app;
+    System.arraycopy(fields, 0, all, 2, fields.length);
+    log.log(event, all);
+  }
+
+  /** Prometheus text exposition of all meters. */
+  public String scrape() {
+    return registry.scrape();
+  }
+
+  public void recordRequest(String route, String method, int status, long nanos) {
+    Timer.builder("coze.http.requests")
+        .description("Token server request latency")
+        .tags("route", route, "method", method, "status", String.valueOf(status))
+        .tags(tags)
+        .publishPercentileHistogram()
+        .register(registry)
+        .record(nanos, TimeUnit.NANOSECONDS);
+    EventLog log = events;
+    if (log.isEnabled()) {
+      log.log(
+          "request",
+          "app",
+          app,
+          "route",
+          route,
+          "method",
+          method,
+          "status",
+          status,
+          "duration_ms",
+          nanos / 1e6);
+    }
+  }
+
+  /** Times one call to the Coze auth API and counts its failure, if any, by error code. */
+  public <T> T upstream(String operation, Supplier<T> call) {
+    long start = System.nanoTime();
+    String outcome = "success";
+    String code = null;
+    try {
+      return call.get();
+    } catch (RuntimeException e) {
+      outcome = "error";
+      code =
+          e instanceof CozeAuthException
+              ? String.valueOf(((CozeAuthException) e).getCode())
+              : e.getClass().getSimpleName();
+      Counter.builder("coze.oauth.upstream.failures")
+          .description("Failed Coze auth API calls by error code")
+          .tags("operation", operation, "code", code)
+          .tags(tags)
+          .register(registry)
+          .increment();
+      throw e;
+    } finally {
+      long nanos = System.nanoTime() - start;
+      Timer.builder("coze.oauth.upstream")
+          .description("Coze auth API call latency")
+          .tags("operation", operation, "outcome", outcome)
+          .tags(tags)
+          .publishPercentileHistogram()
+          .register(registry)
+          .record(nanos, TimeUnit.NANOSECONDS);
+      EventLog log = events;
+      if (log.isEnabled()) {
+        log.log(
+            "upstream",
+            "app",
+            app,
+            "operation",
+            operation,
+            "outcome",
+            outcome,
+            "code",
+            code,
+            "duration_ms",
+            nanos / 1e6);
+      }
+    }
+  }
+
+  /** Exposes hit and miss counters and the hit ratio of a cache. */
+  public <T> void bindCache(
+      String cache, T obj, ToDoubleFunction<T> hits, ToDoubleFunction<T> misses) {
+    FunctionCounter.builder("coze.cache.hits", obj, hits)
+        .tag("cache", cache)
+        .tags(tags)
+        .register(registry);
+    FunctionCounter.builder("coze.cache.misses", obj, misses)
+        .tag("cache", cache)
+        .tags(tags)
+        .register(registry);
+    Gauge.builder(
+            "coze.cache.hit.ratio",
+            obj,
+            o -> {
+              double h = hits.applyAsDouble(o);
+              double total = h + misses.applyAsDouble(o);
+              return total == 0 ? 0 : h / total;
+            })
+        .tag("cache", cache)
+        .tags(tags)
+        .register(registry);
+  }
+
+  public <T> void gauge(String name, T obj, ToDoubleFunction<T> value) {
+    Gauge.builder(name, obj, value).tags(tags).register(registry);
+  }
+
+  /** Exposes a monotonically increasing count kept by {@code obj}. */
+  public <T> void counter(String name, T obj, ToDoubleFunction<T> count) {
+    FunctionCounter.builder(name, obj, count).tags(tags).register(registry);
+  }
+}
@@ -0,0 +1,179 @@
+package com.coze.device.poller;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import com.coze.device.log.EventLog;
+import com.coze.device.metrics.Metrics;
+import com.coze.device.upstream.UpstreamGuard;
+import com.coze.device.upstream.UpstreamUnavailableException;
+import com.coze.openapi.client.auth.DeviceAuthResp;
+import com.coze.openapi.client.auth.OAuthToken;
+import com.coze.openapi.client.exception.AuthErrorCode;
+import com.coze.openapi.client.exception.CozeAuthException;
+import com.coze.openapi.service.auth.DeviceOAuthClient;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Polls the token endpoint for many pending device codes without parking a thread per code.
+ *
+ * <p>Each device code gets a timer on a single scheduler thread; when it fires, one non-blocking
+ * poll ({@code getAccessToken(deviceCode, false)}) runs on a worker, and the code is rescheduled
+ * after the server's polling interval while authorization is pending. {@code slow_down} raises
+ * the interval by five seconds as RFC 8628 asks. Workers are virtual threads when the JVM has them
+ * and a small fixed pool otherwise. A poll turned away by the {@link UpstreamGuard} (rate limited
+ * or circuit open) is tried again after the breaker's wait instead of failing the code.
+ */
+@Slf4j
+public class DeviceTokenPoller implements AutoCloseable {
+  private static final long DEFAULT_INTERVAL_SECONDS = 5;
+  private static final long SLOW_DOWN_SECONDS = 5;
+  public static final int DEFAULT_WORKERS = 4;
+
+  private final DeviceOAuthClient oauth;
+  private final Metrics metrics;
+  // 非空时轮询经过限流和熔断
+  private final UpstreamGuard upstreamGuard;
+  private final ScheduledExecutorService scheduler;
+  private final ExecutorService workers;
+  private final AtomicInteger pending = new AtomicInteger();
+
+  public DeviceTokenPoller(DeviceOAuthClient oauth) {
+    this(oauth, DEFAULT_WORKERS, new Metrics());
+  }
+
+  public DeviceTokenPoller(DeviceOAuthClient oauth, int workerThreads, Metrics metrics) {
+    this(oauth, workerThreads, metrics, null);
+  }
+
+  public DeviceTokenPoller(
+      DeviceOAuthClient oauth, int workerThreads, Metrics metrics, UpstreamGuard upstreamGuard) {
+    this.oauth = oauth;
+    this.metrics = metrics;
+    this.upstreamGuard = upstreamGuard;
+    this.scheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            r -> {
+              Thread t = new Thread(r, "device-poll-timer");
+              t.setDaemon(true);
+              return t;
+            });
+    this.workers = newWorkers(workerThreads);
+    metrics.gauge("coze.device.pending", pending, AtomicInteger::get);
+  }
+
+  /** Starts polling for {@code codeResp} and completes with the token once the user approved. */
+  public CompletableFuture<OAuthToken> poll(DeviceAuthResp codeResp) {
+    Number interval = codeResp.getInterval();
+    PendingCode code =
+        new PendingCode(
+            codeResp.getDeviceCode(),
+            interval != null && interval.longValue() > 0
+                ? interval.longValue()
+                : DEFAULT_INTERVAL_SECONDS);
+    pending.incrementAndGet();
+    code.future.whenComplete((token, e) -> pending.decrementAndGet());
+    schedule(code);
+    return code.future;
+  }
+
+  /** Number of device codes still waiting for authorization. */
+  public int pendingCount() {
+    return pending.get();
+  }
+
+  @Override
+  public void close() {
+    scheduler.shutdownNow();
+    workers.shutdownNow();
+  }
+
+  private void schedule(PendingCode code) {
+    schedule(code, code.intervalSeconds);
+  }
+
+  private void schedule(PendingCode code, long delaySeconds) {
+    try {
+      scheduler.schedule(
+          () -> workers.execute(() -> attempt(code)), delaySeconds, TimeUnit.SECONDS);
+    } catch (RejectedExecutionException e) {
+      code.future.completeExceptionally(e);
+    }
+  }
+
+  private void attempt(PendingCode code) {
+    if (code.future.isDone()) {
+      return;
+    }
+    try {
+      OAuthToken token =
+          metrics.upstream(
+              "getAccessToken", () -> guarded(() -> oauth.getAccessToken(code.deviceCode, false)));
+      // 审计日志只记录 token 的指纹
+      metrics.event(
+          "audit",
+          "action",
+          "token_issued",
+          "access_token",
+          EventLog.secret(token.getAccessToken()),
+          "refresh_token",
+          EventLog.secret(token.getRefreshToken()),
+          "expires_in",
+          token.getExpiresIn());
+      code.future.complete(token);
+    } catch (UpstreamUnavailableException e) {
+      schedule(code, Math.max(code.intervalSeconds, upstreamGuard.retryAfterSeconds()));
+    } catch (CozeAuthException e) {
+      if (AuthErrorCode.AUTHORIZATION_PENDING.equals(e.getCode())) {
+        schedule(code);
+      } else if (AuthErrorCode.SLOW_DOWN.equals(e.getCode())) {
+        code.intervalSeconds += SLOW_DOWN_SECONDS;
+        log.debug("Slow down requested, polling every {}s", code.intervalSeconds);
+        schedule(code);
+      } else {
+        code.future.completeExceptionally(e);
+      }
+    } catch (Exception e) {
+      code.future.completeExceptionally(e);
+    }
+  }
+
+  private <T> T guarded(Supplier<T> call) {
+    return upstreamGuard != null ? upstreamGuard.call(call) : call.get();
+  }
+
+  private static ExecutorService newWorkers(int threads) {
+    try {
+      return (ExecutorService)
+          Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      AtomicInteger seq = new AtomicInteger();
+      return Executors.newFixedThreadPool(
+          threads,
+          r -> {
+            Thread t = new Thread(r, "device-poll-" + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+          });
+    }
+  }
+
+  private static final class PendingCode {
+    private final String deviceCode;
+    private final CompletableFuture<OAuthToken> future = new CompletableFuture<>();
+    // only touched by the worker currently polling this code
+    private volatile long intervalSeconds;
+
+    private PendingCode(String deviceCode, long intervalSeconds) {
+      this.deviceCode = deviceCode;
+      this.intervalSeconds = intervalSeconds;
+    }
+  }
+}
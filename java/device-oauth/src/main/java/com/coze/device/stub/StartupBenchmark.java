@@ -0,0 +1,143 @@
+package com.coze.device.stub;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures cold start: launches a command several times and reports how long each launch took
+ * until the server answered its first HTTP request, or with {@code --until-exit} until the process
+ * exited by itself.
+ *
+ * <p>The command is anything that starts the server: the plain uber jar, the jar with an AppCDS
+ * archive, or the native image, so the three can be compared on the same machine.
+ */
+public class StartupBenchmark {
+  private static final long POLL_INTERVAL_MILLIS = 2;
+  private static final int CONNECT_TIMEOUT_MILLIS = 100;
+  private static final File DISCARD =
+      new File(System.getProperty("os.name").startsWith("Windows") ? "NUL" : "/dev/null");
+
+  private final List<String> command;
+  private final String url;
+  private final long timeoutMillis;
+
+  /** {@code url} null waits for the process to exit instead of for an HTTP answer. */
+  public StartupBenchmark(List<String> command, String url, long timeoutMillis) {
+    this.command = command;
+    this.url = url;
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  /** Launches the command {@code runs} times, one after the other, and prints the start times. */
+  public void run(int runs) throws IOException, InterruptedException {
+    List<Double> millis = new ArrayList<>();
+    for (int i = 0; i < runs; i++) {
+      double ms = launch() / 1e6;
+      millis.add(ms);
+      System.out.printf("run %d: %.1f ms%n", i + 1, ms);
+    }
+    Collections.sort(millis);
+    System.out.printf(
+        "%d runs of %s%nmin %.1f ms, p50 %.1f ms, p90 %.1f ms, max %.1f ms%n",
+        runs,
+        String.join(" ", command),
+        millis.get(0),
+        percentile(millis, 0.50),
+        percentile(millis, 0.90),
+        millis.get(millis.size() - 1));
+  }
+
+  // nanoseconds from starting the process until it is ready
+  private long launch() throws IOException, InterruptedException {
+    long start = System.nanoTime();
+    Process process =
+        new ProcessBuilder(command)
+            .redirectErrorStream(true)
+            .redirectOutput(ProcessBuilder.Redirect.appendTo(DISCARD))
+            .start();
+    long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    try {
+      while (System.nanoTime() < deadline) {
+        if (url == null) {
+          if (process.waitFor(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+            return System.nanoTime() - start;
+          }
+          continue;
+        }
+        if (answers(url)) {
+          return System.nanoTime() - start;
+        }
+        if (!process.isAlive()) {
+          throw new IOException("process exited with " + process.exitValue() + " before ready");
+        }
+        Thread.sleep(POLL_INTERVAL_MILLIS);
+      }
+      throw new IOException("not ready after " + timeoutMillis + " ms");
+    } finally {
+      process.destroy();
+      if (!process.waitFor(10, TimeUnit.SECONDS)) {
+        process.destroyForcibly().waitFor();
+      }
+    }
+  }
+
+  private static boolean answers(String url) {
+    try {
+      HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+      conn.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+      conn.setReadTimeout((int) TimeUnit.SECONDS.toMillis(5));
+      conn.setInstanceFollowRedirects(false);
+      conn.getResponseCode();
+      conn.disconnect();
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  private static double percentile(List<Double> sorted, double p) {
+    int index = (int) Math.ceil(p * sorted.size()) - 1;
+    return sorted.get(Math.max(0, Math.min(index, sorted.size() - 1)));
+  }
+
+  /**
+   * Usage: {@code [--url http://127.0.0.1:8080/] [--until-exit] [--runs 10] [--timeout-ms 60000]
+   * -- <command> [args...]}.
+   */
+  public static void main(String[] args) throws Exception {
+    String url = "http://127.0.0.1:8080/";
+    int runs = 10;
+    long timeoutMillis = 60_000;
+    int i = 0;
+    for (; i < args.length && !"--".equals(args[i]); i++) {
+      switch (args[i]) {
+        case "--url":
+          url = args[++i];
+          break;
+        case "--until-exit":
+          url = null;
+          break;
+        case "--runs":
+          runs = Integer.parseInt(args[++i]);
+          break;
+        case "--timeout-ms":
+          timeoutMillis = Long.parseLong(args[++i]);
+          break;
+        default:
+          throw new IllegalArgumentException("unknown option: " + args[i]);
+      }
+    }
+    if (i + 1 >= args.length) {
+      throw new IllegalArgumentException("missing command after --");
+    }
+    List<String> command = Arrays.asList(args).subList(i + 1, args.length);
+    new StartupBenchmark(command, url, timeoutMillis).run(runs);
+  }
+}
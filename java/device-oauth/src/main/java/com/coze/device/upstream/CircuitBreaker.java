@@ -0,0 +1,95 @@
+package com.coze.device.upstream;
+
+/**
+ * Stops calling an upstream that keeps failing.
+ *
+ * <p>After {@code failureThreshold} failures in a row the breaker opens and refuses calls for
+ * {@code openMillis}. It then lets one probe call through (half-open): a success closes it again,
+ * a failure re-opens it for another {@code openMillis}.
+ */
+public class CircuitBreaker {
+  public enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+
+  private final int failureThreshold;
+  private final long openMillis;
+  private State state = State.CLOSED;
+  private int consecutiveFailures;
+  private long openedAt;
+  private boolean probing;
+
+  public CircuitBreaker(int failureThreshold, long openMillis) {
+    if (failureThreshold <= 0) {
+      throw new IllegalArgumentException("failureThreshold must be positive: " + failureThreshold);
+    }
+    this.failureThreshold = failureThreshold;
+    this.openMillis = openMillis;
+  }
+
+  /**
+   * Whether a call may go through now. Every permitted call must be followed by {@link
+   * #onSuccess} or {@link #onFailure}.
+   */
+  public synchronized boolean tryAcquire() {
+    switch (state) {
+      case CLOSED:
+        return true;
+      case OPEN:
+        if (System.currentTimeMillis() - openedAt < openMillis) {
+          return false;
+        }
+        state = State.HALF_OPEN;
+        probing = true;
+        return true;
+      default:
+        // half-open: only the one probe is let through
+        if (probing) {
+          return false;
+        }
+        probing = true;
+        return true;
+    }
+  }
+
+  public synchronized void onSuccess() {
+    state = State.CLOSED;
+    consecutiveFailures = 0;
+    probing = false;
+  }
+
+  public synchronized void onFailure() {
+    consecutiveFailures++;
+    if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+      state = State.OPEN;
+      openedAt = System.currentTimeMillis();
+    }
+    probing = false;
+  }
+
+  /** Closes the breaker by hand, e.g. from the admin endpoint once the upstream is known good. */
+  public synchronized void reset() {
+    onSuccess();
+  }
+
+  public synchronized State getState() {
+    if (state == State.OPEN && System.currentTimeMillis() - openedAt >= openMillis) {
+      return State.HALF_OPEN;
+    }
+    return state;
+  }
+
+  public synchronized int getConsecutiveFailures() {
+    return consecutiveFailures;
+  }
+
+  /** Milliseconds until an open breaker lets a probe through; 0 when it is not open. */
+  public synchronized long retryAfterMillis() {
+    if (state != State.OPEN) {
+      return 0;
+    }
+    return Math.max(0, openMillis - (System.currentTimeMillis() - openedAt));
+  }
+}
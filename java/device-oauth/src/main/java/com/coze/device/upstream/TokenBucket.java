@@ -0,0 +1,45 @@
+package com.coze.device.upstream;
+
+/**
+ * Token-bucket rate limiter: holds up to {@code burst} permits and regains {@code ratePerSecond}
+ * of them every second. {@link #tryAcquire} never blocks.
+ */
+public class TokenBucket {
+  private final double ratePerNano;
+  private final double burst;
+  private double available;
+  private long lastRefill;
+
+  public TokenBucket(double ratePerSecond, int burst) {
+    if (ratePerSecond <= 0 || burst <= 0) {
+      throw new IllegalArgumentException(
+          "ratePerSecond and burst must be positive: " + ratePerSecond + ", " + burst);
+    }
+    this.ratePerNano = ratePerSecond / 1e9;
+    this.burst = burst;
+    this.available = burst;
+    this.lastRefill = System.nanoTime();
+  }
+
+  /** Takes a permit if one is available. */
+  public synchronized boolean tryAcquire() {
+    refill();
+    if (available < 1) {
+      return false;
+    }
+    available -= 1;
+    return true;
+  }
+
+  /** Permits available right now, rounded down. */
+  public synchronized int available() {
+    refill();
+    return (int) available;
+  }
+
+  private void refill() {
+    long now = System.nanoTime();
+    available = Math.min(burst, available + (now - lastRefill) * ratePerNano);
+    lastRefill = now;
+  }
+}
@@ -0,0 +1,122 @@
+package com.coze.device.upstream;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import com.coze.device.metrics.Metrics;
+import com.coze.openapi.client.exception.CozeAuthException;
+
+/**
+ * Rate limit and circuit breaker of one app's ({@code client_id}'s) calls to the Coze auth API.
+ *
+ * <p>A call over the rate fails fast with a 429 and one made while the breaker is open with a 503,
+ * both as {@link UpstreamUnavailableException} and without reaching Coze. Only calls that got no
+ * answer from Coze count as breaker failures; a {@link CozeAuthException} means Coze answered, e.g.
+ * with an expired code, and says nothing about its health.
+ */
+public class UpstreamGuard {
+  private final String clientId;
+  // null when calls are not rate limited
+  private final TokenBucket rateLimiter;
+  // null when there is no circuit breaker
+  private final CircuitBreaker breaker;
+  private final AtomicLong rateLimited = new AtomicLong();
+  private final AtomicLong shortCircuited = new AtomicLong();
+
+  public UpstreamGuard(String clientId, TokenBucket rateLimiter, CircuitBreaker breaker) {
+    this.clientId = clientId;
+    this.rateLimiter = rateLimiter;
+    this.breaker = breaker;
+  }
+
+  /**
+   * Builds a guard from the {@code coze.upstream.*} settings: {@code ratePerSecond <= 0} turns off
+   * the rate limit and {@code failureThreshold <= 0} the breaker.
+   */
+  public static UpstreamGuard of(
+      String clientId, double ratePerSecond, int burst, int failureThreshold, long openMillis) {
+    return new UpstreamGuard(
+        clientId,
+        ratePerSecond > 0 ? new TokenBucket(ratePerSecond, Math.max(1, burst)) : null,
+        failureThreshold > 0 ? new CircuitBreaker(failureThreshold, openMillis) : null);
+  }
+
+  public <T> T call(Supplier<T> call) {
+    if (rateLimiter != null && !rateLimiter.tryAcquire()) {
+      rateLimited.incrementAndGet();
+      throw new UpstreamUnavailableException(429, "Too many calls to the Coze auth API.");
+    }
+    if (breaker == null) {
+      return call.get();
+    }
+    if (!breaker.tryAcquire()) {
+      shortCircuited.incrementAndGet();
+      throw new UpstreamUnavailableException(503, "The Coze auth API is unavailable.");
+    }
+    T result;
+    try {
+      result = call.get();
+    } catch (CozeAuthException e) {
+      breaker.onSuccess();
+      throw e;
+    } catch (RuntimeException | Error e) {
+      breaker.onFailure();
+      throw e;
+    }
+    breaker.onSuccess();
+    return result;
+  }
+
+  public String getClientId() {
+    return clientId;
+  }
+
+  public long getRateLimited() {
+    return rateLimited.get();
+  }
+
+  public long getShortCircuited() {
+    return shortCircuited.get();
+  }
+
+  /** Seconds a rejected caller should wait before trying again. */
+  public long retryAfterSeconds() {
+    long millis = breaker == null ? 0 : breaker.retryAfterMillis();
+    return Math.max(1, (millis + 999) / 1000);
+  }
+
+  /** Closes the breaker, e.g. once the upstream is known to be back. */
+  public void reset() {
+    if (breaker != null) {
+      breaker.reset();
+    }
+  }
+
+  /** The state as served by {@code GET /admin/upstream}. */
+  public Map<String, Object> state() {
+    Map<String, Object> state = new LinkedHashMap<>();
+    state.put("client_id", clientId);
+    if (breaker != null) {
+      state.put("circuit", breaker.getState().name());
+      state.put("consecutive_failures", breaker.getConsecutiveFailures());
+      state.put("retry_after_ms", breaker.retryAfterMillis());
+    }
+    if (rateLimiter != null) {
+      state.put("available_permits", rateLimiter.available());
+    }
+    state.put("rate_limited", rateLimited.get());
+    state.put("short_circuited", shortCircuited.get());
+    return state;
+  }
+
+  public void bindMetrics(Metrics metrics) {
+    if (breaker != null) {
+      // 0 closed, 1 open, 2 half-open
+      metrics.gauge("coze.upstream.circuit.state", breaker, b -> b.getState().ordinal());
+    }
+    metrics.counter("coze.upstream.rate.limited", this, UpstreamGuard::getRateLimited);
+    metrics.counter("coze.upstream.short.circuited", this, UpstreamGuard::getShortCircuited);
+  }
+}
@@ -0,0 +1,121 @@
+package com.coze.gateway;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+import com.coze.device.metrics.Metrics;
+import com.coze.device.model.TokenJson;
+import com.coze.device.poller.DeviceTokenPoller;
+import com.coze.device.upstream.UpstreamGuard;
+import com.coze.device.upstream.UpstreamUnavailableException;
+import com.coze.openapi.client.auth.DeviceAuthResp;
+import com.coze.openapi.client.auth.OAuthToken;
+import com.coze.openapi.service.auth.DeviceOAuthClient;
+
+import io.javalin.Javalin;
+import io.javalin.http.Context;
+
+/**
+ * The device flow over HTTP, for devices that cannot run the quickstart themselves.
+ *
+ * <p>{@code POST {prefix}/device/code} asks Coze for a device code and starts polling for it in
+ * the background; the device shows the user code and verification URL it gets back, then polls
+ * {@code GET {prefix}/device/token?device_code=...}, which answers 202 while the user has not
+ * approved yet and the token once they have. A code is forgotten when it expires. While the
+ * app's {@link UpstreamGuard} turns calls away, new codes are refused with its status and a {@code
+ * Retry-After}, and pending codes keep polling once it lets calls through again.
+ */
+public class DeviceRoutes implements AutoCloseable {
+  private final DeviceOAuthClient oauth;
+  private final Metrics metrics;
+  private final DeviceTokenPoller poller;
+  private final UpstreamGuard upstreamGuard;
+  private final Map<String, Pending> pending = new ConcurrentHashMap<>();
+
+  public DeviceRoutes(
+      DeviceOAuthClient oauth, Metrics metrics, int workerThreads, UpstreamGuard upstreamGuard) {
+    this.oauth = oauth;
+    this.metrics = metrics;
+    this.upstreamGuard = upstreamGuard;
+    this.poller = new DeviceTokenPoller(oauth, workerThreads, metrics, upstreamGuard);
+    upstreamGuard.bindMetrics(metrics);
+  }
+
+  public void register(Javalin javalin, String prefix) {
+    javalin
+        .post(prefix + "/device/code", this::deviceCode)
+        .get(prefix + "/device/token", this::token);
+  }
+
+  @Override
+  public void close() {
+    poller.close();
+  }
+
+  private void deviceCode(Context ctx) {
+    expire();
+    DeviceAuthResp codeResp;
+    try {
+      codeResp = metrics.upstream("getDeviceCode", () -> upstreamGuard.call(oauth::getDeviceCode));
+    } catch (UpstreamUnavailableException e) {
+      ctx.header("Retry-After", String.valueOf(upstreamGuard.retryAfterSeconds()));
+      ctx.status(e.getStatus()).json(error(e.getMessage()));
+      return;
+    }
+    Integer expiresIn = codeResp.getExpiresIn();
+    long expiresAt = System.currentTimeMillis() + (expiresIn != null ? expiresIn : 600) * 1000L;
+    pending.put(codeResp.getDeviceCode(), new Pending(poller.poll(codeResp), expiresAt));
+    Map<String, Object> resp = new HashMap<>();
+    resp.put("device_code", codeResp.getDeviceCode());
+    resp.put("user_code", codeResp.getUserCode());
+    resp.put("verification_url", codeResp.getVerificationURL());
+    resp.put("expires_in", expiresIn);
+    ctx.json(resp);
+  }
+
+  private void token(Context ctx) throws InterruptedException {
+    expire();
+    String deviceCode = ctx.queryParam("device_code");
+    Pending entry = deviceCode == null ? null : pending.get(deviceCode);
+    if (entry == null) {
+      ctx.status(404).json(error("unknown or expired device_code"));
+      return;
+    }
+    if (!entry.future.isDone()) {
+      ctx.status(202).json(error("authorization_pending"));
+      return;
+    }
+    pending.remove(deviceCode);
+    try {
+      byte[] body = TokenJson.toBytes(entry.future.get());
+      ctx.contentType(TokenJson.CONTENT_TYPE).result(body);
+    } catch (ExecutionException e) {
+      ctx.status(400).json(error(e.getCause().getMessage()));
+    }
+  }
+
+  // drops codes past their expiry so abandoned ones do not pile up
+  private void expire() {
+    long now = System.currentTimeMillis();
+    pending.values().removeIf(entry -> entry.expiresAt < now);
+  }
+
+  private static Map<String, String> error(String message) {
+    Map<String, String> body = new HashMap<>();
+    body.put("error", message);
+    return body;
+  }
+
+  private static final class Pending {
+    private final CompletableFuture<OAuthToken> future;
+    private final long expiresAt;
+
+    private Pending(CompletableFuture<OAuthToken> future, long expiresAt) {
+      this.future = future;
+      this.expiresAt = expiresAt;
+    }
+  }
+}
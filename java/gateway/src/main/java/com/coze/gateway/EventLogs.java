@@ -0,0 +1,116 @@
+package com.coze.gateway;
+
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The event logs of all apps, writing to one output.
+ *
+ * <p>Each example has its own {@code EventLog} class, so the gateway creates one log per app of
+ * the matching type. They all write to one shared output whose {@code write} is synchronized; each
+ * log only ever writes whole lines, so lines of different apps never interleave. Closing a log
+ * leaves the shared output open, {@link #close} closes it after all logs are drained.
+ */
+@Slf4j
+class EventLogs implements AutoCloseable {
+  private final OutputStream out;
+  private final int capacity;
+  private final List<AutoCloseable> logs = new ArrayList<>();
+
+  private EventLogs(OutputStream out, int capacity) {
+    this.out = out;
+    this.capacity = capacity;
+  }
+
+  /**
+   * Logs written to {@code target}: {@code -} for standard output, otherwise a file appended to. A
+   * null or empty target gives disabled logs.
+   */
+  static EventLogs open(String target, int capacity) throws IOException {
+    if (target == null || target.isEmpty()) {
+      return new EventLogs(null, capacity);
+    }
+    OutputStream out = "-".equals(target) ? System.out : new FileOutputStream(target, true);
+    return new EventLogs(out, capacity);
+  }
+
+  com.coze.web.log.EventLog web() {
+    return out == null
+        ? com.coze.web.log.EventLog.DISABLED
+        : add(new com.coze.web.log.EventLog(new Shared(out), capacity));
+  }
+
+  com.coze.pkce.log.EventLog pkce() {
+    return out == null
+        ? com.coze.pkce.log.EventLog.DISABLED
+        : add(new com.coze.pkce.log.EventLog(new Shared(out), capacity));
+  }
+
+  com.coze.jwt.log.EventLog jwt() {
+    return out == null
+        ? com.coze.jwt.log.EventLog.DISABLED
+        : add(new com.coze.jwt.log.EventLog(new Shared(out), capacity));
+  }
+
+  com.coze.device.log.EventLog device() {
+    return out == null
+        ? com.coze.device.log.EventLog.DISABLED
+        : add(new com.coze.device.log.EventLog(new Shared(out), capacity));
+  }
+
+  @Override
+  public synchronized void close() {
+    for (AutoCloseable eventLog : logs) {
+      try {
+        eventLog.close();
+      } catch (Exception e) {
+        log.warn("Closing an event log failed", e);
+      }
+    }
+    logs.clear();
+    if (out != null && out != System.out) {
+      try {
+        out.close();
+      } catch (IOException e) {
+        log.warn("Closing the event log file failed", e);
+      }
+    }
+  }
+
+  private synchronized <L extends AutoCloseable> L add(L eventLog) {
+    logs.add(eventLog);
+    return eventLog;
+  }
+
+  // 多个日志共用的输出, 每次 write 是整行; 关闭单个日志时只 flush
+  private static final class Shared extends FilterOutputStream {
+    private Shared(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      synchronized (out) {
+        out.write(b, off, len);
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      synchronized (out) {
+        out.flush();
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      flush();
+    }
+  }
+}
@@ -0,0 +1,463 @@
+package com.coze.gateway;
+
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+import com.coze.gateway.model.GatewayConfig;
+import com.coze.jwt.server.AccessTokenCache;
+import com.coze.jwt.server.JwtAssertionPool;
+import com.coze.jwt.server.JwtClients;
+import com.coze.jwt.server.JwtTokenExchange;
+import com.coze.jwt.server.SessionTokenCache;
+import com.coze.openapi.client.auth.LoadAuthConfig;
+import com.coze.openapi.client.auth.OAuthConfig;
+import com.coze.openapi.service.auth.DeviceOAuthClient;
+import com.coze.openapi.service.auth.PKCEOAuthClient;
+import com.coze.openapi.service.auth.WebOAuthClient;
+import com.coze.pkce.server.PkceStateCookie;
+import com.coze.web.http.UpstreamHttpPool;
+import com.coze.web.metrics.Metrics;
+import com.coze.web.server.AdminAccess;
+import com.coze.web.server.StaticAssets;
+import com.coze.web.store.ClusteredTokenStore;
+import com.coze.web.store.InMemoryTokenStore;
+import com.coze.web.store.MappedFileTokenStore;
+import com.coze.web.store.SnapshotTokenStore;
+import com.coze.web.store.TokenStore;
+
+import io.javalin.Javalin;
+import io.javalin.http.Context;
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+
+@Slf4j
+public class Main {
+  private static final String configFilePath =
+      System.getProperty("coze.gateway.config", "coze_gateway_config.json");
+  // 设置 -Dcoze.token.store.file=<path> 时使用内存映射文件存储 token, 可被同机多个进程共享
+  private static final String TOKEN_STORE_FILE = System.getProperty("coze.token.store.file");
+  // 设置 -Dcoze.token.snapshot.file=<path> 时 token 保存在内存中并追加写入该文件, 重启后恢复, 参数同各示例项目
+  private static final String TOKEN_SNAPSHOT_FILE = System.getProperty("coze.token.snapshot.file");
+  // 堆内存中 (默认和设置 -Dcoze.token.snapshot.file 时) 最多保存的 token 数, 超出时淘汰最久未使用的会话
+  private static final int TOKEN_MAX_SIZE =
+      Integer.getInteger("coze.token.max.size", InMemoryTokenStore.DEFAULT_MAX_SIZE);
+  // 设置 -Dcoze.cluster.port=<port> 时与 -Dcoze.cluster.peers 中的其他网关同步所有应用的 token, 参数同各示例项目
+  private static final int CLUSTER_PORT = Integer.getInteger("coze.cluster.port", 0);
+  private static final String CLUSTER_BIND = System.getProperty("coze.cluster.bind", "127.0.0.1");
+  private static final String CLUSTER_PEERS = System.getProperty("coze.cluster.peers");
+  private static final String CLUSTER_KEY = System.getProperty("coze.cluster.key");
+  private static final long CLUSTER_FETCH_TIMEOUT_MILLIS =
+      Long.getLong(
+          "coze.cluster.fetch.timeout.ms", ClusteredTokenStore.DEFAULT_FETCH_TIMEOUT_MILLIS);
+  // 设置 -Dcoze.refresh.lead.seconds=<n> 时 web 和 PKCE 应用在 token 过期前于后台刷新, 参数同各示例项目
+  private static final long REFRESH_LEAD_SECONDS = Long.getLong("coze.refresh.lead.seconds", 0);
+  private static final long REFRESH_JITTER_SECONDS =
+      Long.getLong(
+          "coze.refresh.jitter.seconds",
+          com.coze.web.server.RefreshScheduler.DEFAULT_JITTER_SECONDS);
+  private static final int REFRESH_PARALLELISM =
+      Integer.getInteger(
+          "coze.refresh.parallelism", com.coze.web.server.RefreshScheduler.DEFAULT_PARALLELISM);
+  private static final long REFRESH_IDLE_SECONDS =
+      Long.getLong(
+          "coze.refresh.idle.seconds", com.coze.web.server.RefreshScheduler.DEFAULT_IDLE_SECONDS);
+  // 设置 -Dcoze.async.max.inflight=<n> 时每个应用在独立线程上调用 Coze 授权接口, 最多 n 个调用同时进行,
+  // 超出时直接返回 503; -Dcoze.async.timeout.ms 为单次调用超时, 超时返回 504
+  private static final int ASYNC_MAX_IN_FLIGHT = Integer.getInteger("coze.async.max.inflight", 0);
+  private static final long ASYNC_TIMEOUT_MILLIS =
+      Long.getLong(
+          "coze.async.timeout.ms", com.coze.web.server.UpstreamExecutor.DEFAULT_TIMEOUT_MILLIS);
+  // 设置 -Dcoze.pkce.cookie.key=<base64 AES key> 时 PKCE 应用使用无状态的加密 cookie 保存 PKCE 参数
+  private static final String PKCE_COOKIE_KEY = System.getProperty("coze.pkce.cookie.key");
+  // 设备授权流程轮询 token 的线程数 (不支持虚拟线程时)
+  private static final int DEVICE_POLL_WORKERS = 4;
+  // 所有应用共享的 Coze 授权接口 HTTP 连接池, 参数同各示例项目
+  private static final int HTTP_MAX_IDLE =
+      Integer.getInteger("coze.http.max.idle", UpstreamHttpPool.DEFAULT_MAX_IDLE);
+  private static final long HTTP_KEEP_ALIVE_MILLIS =
+      Long.getLong("coze.http.keepalive.ms", UpstreamHttpPool.DEFAULT_KEEP_ALIVE_MILLIS);
+  private static final boolean HTTP2 =
+      Boolean.parseBoolean(System.getProperty("coze.http.http2", "true"));
+  private static final int HTTP_WARM_UP_CONNECTIONS = Integer.getInteger("coze.http.warmup", 1);
+  // JWT 应用后台预先签名的 assertion 数量, 设为 0 时使用 SDK 的 getAccessToken
+  private static final int JWT_ASSERTION_POOL_SIZE =
+      Integer.getInteger("coze.jwt.assertion.pool", JwtAssertionPool.DEFAULT_POOL_SIZE);
+  // JWT 应用向 Coze 申请的 token 有效期 (秒)
+  private static final int JWT_TOKEN_TTL_SECONDS =
+      Integer.getInteger("coze.jwt.token.ttl", JwtTokenExchange.DEFAULT_DURATION_SECONDS);
+  // JWT 应用的 token 生命周期过去该比例后在后台刷新
+  private static final double TOKEN_REFRESH_RATIO =
+      Double.parseDouble(
+          System.getProperty(
+              "coze.token.refresh.ratio", String.valueOf(AccessTokenCache.DEFAULT_REFRESH_RATIO)));
+  // JWT 应用每个应用最多缓存多少个用户 (session_name) 的 token
+  private static final int SESSION_TOKEN_CACHE_SIZE =
+      Integer.getInteger("coze.jwt.session.cache.size", SessionTokenCache.DEFAULT_MAX_SIZE);
+  // 每个应用 (client_id) 各自限流和熔断, 参数同各示例项目
+  private static final double UPSTREAM_RATE =
+      Double.parseDouble(System.getProperty("coze.upstream.rate", "0"));
+  private static final int UPSTREAM_BURST = Integer.getInteger("coze.upstream.burst", 10);
+  private static final int BREAKER_FAILURES =
+      Integer.getInteger("coze.upstream.breaker.failures", 5);
+  private static final long BREAKER_OPEN_MILLIS =
+      Long.getLong("coze.upstream.breaker.open.ms", 30_000);
+
+  // 应用的 OAuth 配置文件修改后在后台重新加载并替换客户端 (设备授权应用除外),
+  // 设置 -Dcoze.config.watch=false 时不监听
+  private static final boolean CONFIG_WATCH =
+      Boolean.parseBoolean(System.getProperty("coze.config.watch", "true"));
+  // 所有应用的请求, 上游调用和审计事件写入同一个 JSON lines 文件, 参数同各示例项目
+  private static final String EVENT_LOG = System.getProperty("coze.log.events");
+  private static final int EVENT_LOG_BUFFER =
+      Integer.getInteger("coze.log.buffer", com.coze.web.log.EventLog.DEFAULT_CAPACITY);
+  // /metrics, /admin/upstream 和各应用的 /introspect 的访问控制, 参数同各示例项目
+  private static final String ADMIN_TOKEN = System.getProperty("coze.admin.token");
+
+  public static void main(String[] args) throws Exception {
+    // 加载网关配置
+    GatewayConfig gatewayConfig = GatewayConfig.load(configFilePath);
+    String baseUrl = gatewayConfig.getBaseUrl();
+
+    // 所有应用共享一个 Prometheus registry (以 app 标签区分) 和一个 token 存储
+    PrometheusMeterRegistry registry = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+    Metrics metrics = new Metrics(registry, "gateway");
+    EventLogs eventLogs = EventLogs.open(EVENT_LOG, EVENT_LOG_BUFFER);
+    metrics.bindEventLog(eventLogs.web());
+    UpstreamHttpPool httpPool = new UpstreamHttpPool(HTTP_MAX_IDLE, HTTP_KEEP_ALIVE_MILLIS, HTTP2);
+    httpPool.bindMetrics(metrics);
+    TokenStore tokenStore = clustered(localStore(metrics), metrics);
+    AdminAccess adminAccess = AdminAccess.withToken(ADMIN_TOKEN);
+
+    Javalin javalin =
+        Javalin.create(
+            config -> {
+              config.requestLogger(
+                  (ctx, ms) ->
+                      metrics.recordRequest(
+                          routeOf(ctx), ctx.method(), ctx.status(), (long) (ms * 1e6)));
+            });
+
+    // 静态资源启动时读入内存, 预先压缩
+    StaticAssets.fromClasspath("assets", StaticAssets.ASSET_CACHE_CONTROL)
+        .register(javalin, "/assets");
+
+    // 按路径前缀把异常交给对应应用渲染错误页
+    TreeMap<String, BiConsumer<Exception, Context>> errorHandlers = new TreeMap<>();
+    List<Runnable> stops = new ArrayList<>();
+    Set<String> apiBases = new LinkedHashSet<>();
+    // 应用名 -> 限流和熔断状态, 由 /admin/upstream 汇总
+    Map<String, Supplier<Map<String, Object>>> upstreamStates = new TreeMap<>();
+    Map<String, Runnable> upstreamResets = new TreeMap<>();
+    for (GatewayConfig.App app : gatewayConfig.getApps()) {
+      OAuthConfig config = OAuthConfig.load(new LoadAuthConfig(app.getConfig()));
+      String name = app.getName() != null ? app.getName() : config.getClientId();
+      String prefix = "/" + name;
+      apiBases.add(config.getCozeApiBase());
+      switch (app.getFlow()) {
+        case "web":
+          {
+            com.coze.web.config.ReloadableConfig<WebOAuthClient> oauth =
+                new com.coze.web.config.ReloadableConfig<>(
+                    Paths.get(app.getConfig()),
+                    c ->
+                        new WebOAuthClient.WebOAuthBuilder()
+                            .clientID(c.getClientId())
+                            .clientSecret(c.getClientSecret())
+                            .baseURL(c.getCozeApiBase())
+                            .wwwURL(c.getCozeWwwBase())
+                            .client(httpPool.client())
+                            .build());
+            Metrics appMetrics = new Metrics(registry, name);
+            appMetrics.bindEventLog(eventLogs.web());
+            com.coze.web.server.TokenServer server =
+                new com.coze.web.server.TokenServer(
+                    oauth,
+                    SharedTokenStores.forWeb(tokenStore),
+                    appMetrics,
+                    ASYNC_MAX_IN_FLIGHT > 0
+                        ? new com.coze.web.server.UpstreamExecutor(
+                            ASYNC_MAX_IN_FLIGHT, ASYNC_TIMEOUT_MILLIS)
+                        : null,
+                    com.coze.web.server.UpstreamGuard.of(
+                        config.getClientId(),
+                        UPSTREAM_RATE,
+                        UPSTREAM_BURST,
+                        BREAKER_FAILURES,
+                        BREAKER_OPEN_MILLIS),
+                    REFRESH_LEAD_SECONDS > 0
+                        ? new com.coze.web.server.RefreshScheduler(
+                            REFRESH_LEAD_SECONDS,
+                            REFRESH_JITTER_SECONDS,
+                            REFRESH_PARALLELISM,
+                            com.coze.web.server.RefreshScheduler.DEFAULT_MAX_SIZE,
+                            REFRESH_IDLE_SECONDS)
+                        : null,
+                    adminAccess);
+            upstreamStates.put(name, server.getUpstreamGuard()::state);
+            upstreamResets.put(name, server.getUpstreamGuard()::reset);
+            server.register(javalin, prefix, baseUrl);
+            errorHandlers.put(prefix, server::renderError);
+            stops.add(server::stop);
+            if (CONFIG_WATCH) {
+              oauth.watch();
+            }
+            break;
+          }
+        case "pkce":
+          {
+            com.coze.pkce.config.ReloadableConfig<PKCEOAuthClient> oauth =
+                new com.coze.pkce.config.ReloadableConfig<>(
+                    Paths.get(app.getConfig()),
+                    c ->
+                        new PKCEOAuthClient.PKCEOAuthBuilder()
+                            .clientID(c.getClientId())
+                            .baseURL(c.getCozeApiBase())
+                            .wwwURL(c.getCozeWwwBase())
+                            .client(httpPool.client())
+                            .build());
+            com.coze.pkce.metrics.Metrics appMetrics =
+                new com.coze.pkce.metrics.Metrics(registry, name);
+            appMetrics.bindEventLog(eventLogs.pkce());
+            com.coze.pkce.server.TokenServer server =
+                new com.coze.pkce.server.TokenServer(
+                    oauth,
+                    SharedTokenStores.forPkce(tokenStore),
+                    PKCE_COOKIE_KEY != null ? PkceStateCookie.fromBase64(PKCE_COOKIE_KEY) : null,
+                    appMetrics,
+                    ASYNC_MAX_IN_FLIGHT > 0
+                        ? new com.coze.pkce.server.UpstreamExecutor(
+                            ASYNC_MAX_IN_FLIGHT, ASYNC_TIMEOUT_MILLIS)
+                        : null,
+                    com.coze.pkce.server.UpstreamGuard.of(
+                        config.getClientId(),
+                        UPSTREAM_RATE,
+                        UPSTREAM_BURST,
+                        BREAKER_FAILURES,
+                        BREAKER_OPEN_MILLIS),
+                    REFRESH_LEAD_SECONDS > 0
+                        ? new com.coze.pkce.server.RefreshScheduler(
+                            REFRESH_LEAD_SECONDS,
+                            REFRESH_JITTER_SECONDS,
+                            REFRESH_PARALLELISM,
+                            com.coze.pkce.server.RefreshScheduler.DEFAULT_MAX_SIZE,
+                            REFRESH_IDLE_SECONDS)
+                        : null,
+                    com.coze.pkce.server.AdminAccess.withToken(ADMIN_TOKEN));
+            upstreamStates.put(name, server.getUpstreamGuard()::state);
+            upstreamResets.put(name, server.getUpstreamGuard()::reset);
+            server.register(javalin, prefix, baseUrl);
+            errorHandlers.put(prefix, server::renderError);
+            stops.add(server::stop);
+            if (CONFIG_WATCH) {
+              oauth.watch();
+            }
+            break;
+          }
+        case "jwt":
+          {
+            com.coze.jwt.config.ReloadableConfig<JwtClients> oauth =
+                new com.coze.jwt.config.ReloadableConfig<>(
+                    Paths.get(app.getConfig()),
+                    c ->
+                        JwtClients.create(
+                            c, httpPool.client(), JWT_ASSERTION_POOL_SIZE, JWT_TOKEN_TTL_SECONDS));
+            com.coze.jwt.metrics.Metrics appMetrics =
+                new com.coze.jwt.metrics.Metrics(registry, name);
+            appMetrics.bindEventLog(eventLogs.jwt());
+            JwtClients.bindMetrics(oauth, appMetrics);
+            stops.add(() -> oauth.client().close());
+            com.coze.jwt.server.UpstreamGuard upstreamGuard =
+                com.coze.jwt.server.UpstreamGuard.of(
+                    config.getClientId(),
+                    UPSTREAM_RATE,
+                    UPSTREAM_BURST,
+                    BREAKER_FAILURES,
+                    BREAKER_OPEN_MILLIS);
+            com.coze.jwt.server.TokenServer server =
+                new com.coze.jwt.server.TokenServer(
+                    oauth,
+                    new AccessTokenCache(
+                        () ->
+                            appMetrics.upstream(
+                                "getAccessToken",
+                                () -> upstreamGuard.call(() -> oauth.client().getAccessToken())),
+                        TOKEN_REFRESH_RATIO),
+                    SharedTokenStores.forJwt(tokenStore),
+                    appMetrics,
+                    ASYNC_MAX_IN_FLIGHT > 0
+                        ? new com.coze.jwt.server.UpstreamExecutor(
+                            ASYNC_MAX_IN_FLIGHT, ASYNC_TIMEOUT_MILLIS)
+                        : null,
+                    new SessionTokenCache(
+                        sessionName ->
+                            appMetrics.upstream(
+                                "getSessionToken",
+                                () ->
+                                    upstreamGuard.call(
+                                        () -> oauth.client().getSessionToken(sessionName))),
+                        SESSION_TOKEN_CACHE_SIZE),
+                    upstreamGuard,
+                    com.coze.jwt.server.AdminAccess.withToken(ADMIN_TOKEN));
+            upstreamStates.put(name, upstreamGuard::state);
+            upstreamResets.put(name, upstreamGuard::reset);
+            server.register(javalin, prefix, baseUrl);
+            errorHandlers.put(prefix, server::renderError);
+            stops.add(server::stop);
+            if (CONFIG_WATCH) {
+              oauth.watch();
+            }
+            break;
+          }
+        case "device":
+          {
+            com.coze.device.metrics.Metrics appMetrics =
+                new com.coze.device.metrics.Metrics(registry, name);
+            appMetrics.bindEventLog(eventLogs.device());
+            com.coze.device.upstream.UpstreamGuard upstreamGuard =
+                com.coze.device.upstream.UpstreamGuard.of(
+                    config.getClientId(),
+                    UPSTREAM_RATE,
+                    UPSTREAM_BURST,
+                    BREAKER_FAILURES,
+                    BREAKER_OPEN_MILLIS);
+            DeviceRoutes routes =
+                new DeviceRoutes(
+                    new DeviceOAuthClient.DeviceOAuthBuilder()
+                        .clientID(config.getClientId())
+                        .baseURL(config.getCozeApiBase())
+                        .wwwURL(config.getCozeWwwBase())
+                        .client(httpPool.client())
+                        .build(),
+                    appMetrics,
+                    DEVICE_POLL_WORKERS,
+                    upstreamGuard);
+            upstreamStates.put(name, upstreamGuard::state);
+            upstreamResets.put(name, upstreamGuard::reset);
+            routes.register(javalin, prefix);
+            stops.add(routes::close);
+            break;
+          }
+        default:
+          throw new IllegalArgumentException("unknown flow of app " + name + ": " + app.getFlow());
+      }
+      log.info("{} app {} served at {}{}/", app.getFlow(), name, baseUrl, prefix);
+    }
+
+    for (String apiBase : apiBases) {
+      httpPool.warmUp(apiBase, HTTP_WARM_UP_CONNECTIONS);
+    }
+
+    javalin
+        .get(
+            "/metrics",
+            adminAccess.guard(
+                ctx -> {
+                  ctx.contentType(Metrics.CONTENT_TYPE);
+                  ctx.result(registry.scrape());
+                }))
+        .get("/admin/upstream", adminAccess.guard(ctx -> ctx.json(upstreamStates(upstreamStates))))
+        .post(
+            "/admin/upstream/reset",
+            adminAccess.guard(
+                ctx -> {
+                  // ?app=<name> 只重置该应用, 否则全部重置
+                  String only = ctx.queryParam("app");
+                  upstreamResets.forEach(
+                      (name, reset) -> {
+                        if (only == null || only.equals(name)) {
+                          reset.run();
+                        }
+                      });
+                  ctx.json(upstreamStates(upstreamStates));
+                }))
+        .exception(
+            Exception.class,
+            (e, ctx) -> {
+              BiConsumer<Exception, Context> handler = handlerOf(errorHandlers, ctx.path());
+              if (handler != null) {
+                handler.accept(e, ctx);
+              } else {
+                ctx.status(500).result(String.valueOf(e.getMessage()));
+              }
+            });
+
+    Runtime.getRuntime()
+        .addShutdownHook(
+            new Thread(
+                () -> {
+                  javalin.stop();
+                  stops.forEach(Runnable::run);
+                  tokenStore.close();
+                  eventLogs.close();
+                }));
+    javalin.start("127.0.0.1", gatewayConfig.getPort());
+
+    // 保持主线程运行
+    Thread.currentThread().join();
+  }
+
+  private static TokenStore localStore(Metrics metrics) {
+    if (TOKEN_STORE_FILE != null) {
+      return new MappedFileTokenStore(Paths.get(TOKEN_STORE_FILE));
+    }
+    if (TOKEN_SNAPSHOT_FILE != null) {
+      SnapshotTokenStore store =
+          new SnapshotTokenStore(Paths.get(TOKEN_SNAPSHOT_FILE), TOKEN_MAX_SIZE);
+      store.bindMetrics(metrics);
+      return store;
+    }
+    return new InMemoryTokenStore(TOKEN_MAX_SIZE);
+  }
+
+  // shares {@code local} with the other gateways when clustering is on
+  private static TokenStore clustered(TokenStore local, Metrics metrics) throws SocketException {
+    if (CLUSTER_PORT <= 0) {
+      return local;
+    }
+    ClusteredTokenStore cluster =
+        new ClusteredTokenStore(
+            local,
+            new InetSocketAddress(CLUSTER_BIND, CLUSTER_PORT),
+            ClusteredTokenStore.parsePeers(CLUSTER_PEERS),
+            ClusteredTokenStore.keyFromBase64(CLUSTER_KEY),
+            CLUSTER_FETCH_TIMEOUT_MILLIS);
+    cluster.bindMetrics(metrics);
+    log.info("Token cluster on {}, peers {}", cluster.getLocalAddress(), cluster.getPeers());
+    return cluster;
+  }
+
+  // the handler of the app whose prefix is the longest one {@code path} starts with
+  private static BiConsumer<Exception, Context> handlerOf(
+      TreeMap<String, BiConsumer<Exception, Context>> handlers, String path) {
+    for (Map.Entry<String, BiConsumer<Exception, Context>> entry :
+        handlers.headMap(path, true).descendingMap().entrySet()) {
+      if (path.equals(entry.getKey()) || path.startsWith(entry.getKey() + "/")) {
+        return entry.getValue();
+      }
+    }
+    return null;
+  }
+
+  private static Map<String, Object> upstreamStates(
+      Map<String, Supplier<Map<String, Object>>> states) {
+    Map<String, Object> all = new LinkedHashMap<>();
+    states.forEach((name, state) -> all.put(name, state.get()));
+    return all;
+  }
+
+  private static String routeOf(Context ctx) {
+    String route = ctx.matchedPath();
+    return route == null || route.isEmpty() ? "static" : route;
+  }
+}
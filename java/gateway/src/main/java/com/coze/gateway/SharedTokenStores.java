@@ -0,0 +1,100 @@
+package com.coze.gateway;
+
+import com.coze.openapi.client.auth.OAuthToken;
+import com.coze.web.store.TokenStore;
+
+/**
+ * Views of the gateway's one token store typed for each flow's {@code TokenStore} interface. Keys
+ * already carry the client id, so apps do not collide. Closing a view does nothing; the gateway
+ * closes the store itself once every server has stopped.
+ */
+final class SharedTokenStores {
+  private SharedTokenStores() {}
+
+  static TokenStore forWeb(TokenStore store) {
+    return new TokenStore() {
+      @Override
+      public OAuthToken get(String key) {
+        return store.get(key);
+      }
+
+      @Override
+      public void put(String key, OAuthToken token) {
+        store.put(key, token);
+      }
+
+      @Override
+      public void remove(String key) {
+        store.remove(key);
+      }
+
+      @Override
+      public String findKey(String accessToken) {
+        return store.findKey(accessToken);
+      }
+
+      @Override
+      public int size() {
+        return store.size();
+      }
+    };
+  }
+
+  static com.coze.pkce.store.TokenStore forPkce(TokenStore store) {
+    return new com.coze.pkce.store.TokenStore() {
+      @Override
+      public OAuthToken get(String key) {
+        return store.get(key);
+      }
+
+      @Override
+      public void put(String key, OAuthToken token) {
+        store.put(key, token);
+      }
+
+      @Override
+      public void remove(String key) {
+        store.remove(key);
+      }
+
+      @Override
+      public String findKey(String accessToken) {
+        return store.findKey(accessToken);
+      }
+
+      @Override
+      public int size() {
+        return store.size();
+      }
+    };
+  }
+
+  static com.coze.jwt.store.TokenStore forJwt(TokenStore store) {
+    return new com.coze.jwt.store.TokenStore() {
+      @Override
+      public OAuthToken get(String key) {
+        return store.get(key);
+      }
+
+      @Override
+      public void put(String key, OAuthToken token) {
+        store.put(key, token);
+      }
+
+      @Override
+      public void remove(String key) {
+        store.remove(key);
+      }
+
+      @Override
+      public String findKey(String accessToken) {
+        return store.findKey(accessToken);
+      }
+
+      @Override
+      public int size() {
+        return store.size();
+      }
+    };
+  }
+}
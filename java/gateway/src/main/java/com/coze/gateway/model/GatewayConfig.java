@@ -0,0 +1,54 @@
+package com.coze.gateway.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/** The apps a gateway hosts and where it listens, read from {@code coze_gateway_config.json}. */
+@Data
+@NoArgsConstructor
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class GatewayConfig {
+  @JsonProperty("port")
+  private int port = 8080;
+
+  /** Origin the browser reaches the gateway at; redirect URIs are built from it. */
+  @JsonProperty("base_url")
+  private String baseUrl;
+
+  @JsonProperty("apps")
+  private List<App> apps = new ArrayList<>();
+
+  @Data
+  @NoArgsConstructor
+  @JsonIgnoreProperties(ignoreUnknown = true)
+  public static class App {
+    /** Path prefix the app is served under; defaults to its client_id. */
+    @JsonProperty("name")
+    private String name;
+
+    /** One of web, pkce, jwt or device. */
+    @JsonProperty("flow")
+    private String flow;
+
+    /** Path of the app's coze_oauth_config.json. */
+    @JsonProperty("config")
+    private String config;
+  }
+
+  public static GatewayConfig load(String path) throws IOException {
+    GatewayConfig config = new ObjectMapper().readValue(new File(path), GatewayConfig.class);
+    if (config.baseUrl == null) {
+      config.baseUrl = "http://127.0.0.1:" + config.port;
+    }
+    return config;
+  }
+}
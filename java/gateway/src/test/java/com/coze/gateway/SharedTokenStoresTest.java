@@ -0,0 +1,83 @@
+package com.coze.gateway;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import com.coze.openapi.client.auth.OAuthToken;
+import com.coze.web.model.Introspection;
+import com.coze.web.server.TokenIntrospector;
+import com.coze.web.store.InMemoryTokenStore;
+import com.coze.web.store.TokenStore;
+
+class SharedTokenStoresTest {
+  private static final String WEB_KEY = "access_token_web-client:session";
+  private static final String PKCE_KEY = "access_token_pkce-client:session";
+  private static final String JWT_KEY = "access_token_jwt-client:session";
+
+  @Test
+  void viewsFindTokensPutIntoTheBackingStore() {
+    TokenStore store = new InMemoryTokenStore();
+    // as if restored from the token file or replicated from a peer, not stored through an app
+    store.put(WEB_KEY, token("web-access"));
+    store.put(PKCE_KEY, token("pkce-access"));
+    store.put(JWT_KEY, token("jwt-access"));
+
+    assertEquals(WEB_KEY, SharedTokenStores.forWeb(store).findKey("web-access"));
+    assertEquals(PKCE_KEY, SharedTokenStores.forPkce(store).findKey("pkce-access"));
+    assertEquals(JWT_KEY, SharedTokenStores.forJwt(store).findKey("jwt-access"));
+  }
+
+  @Test
+  void gatewayAppsIntrospectTokensPutIntoTheBackingStore() {
+    TokenStore store = new InMemoryTokenStore();
+    store.put(WEB_KEY, token("web-access"));
+    store.put(PKCE_KEY, token("pkce-access"));
+    store.put(JWT_KEY, token("jwt-access"));
+
+    TokenIntrospector web =
+        new TokenIntrospector(
+            SharedTokenStores.forWeb(store),
+            () -> "web-client",
+            key -> key.startsWith("access_token_web-client:"),
+            TokenIntrospector.DEFAULT_MAX_SIZE);
+    Introspection answer = web.introspect("web-access");
+    assertTrue(answer.isActive());
+    assertEquals("web-client", answer.getClientId());
+    // another app's token in the same store is not this app's to vouch for
+    assertFalse(web.introspect("pkce-access").isActive());
+
+    com.coze.pkce.server.TokenIntrospector pkce =
+        new com.coze.pkce.server.TokenIntrospector(
+            SharedTokenStores.forPkce(store),
+            () -> "pkce-client",
+            key -> key.startsWith("access_token_pkce-client:"),
+            com.coze.pkce.server.TokenIntrospector.DEFAULT_MAX_SIZE);
+    assertTrue(pkce.introspect("pkce-access").isActive());
+
+    com.coze.jwt.server.TokenIntrospector jwt =
+        new com.coze.jwt.server.TokenIntrospector(
+            SharedTokenStores.forJwt(store),
+            () -> "jwt-client",
+            key -> key.startsWith("access_token_jwt-client:"),
+            com.coze.jwt.server.TokenIntrospector.DEFAULT_MAX_SIZE);
+    com.coze.jwt.model.Introspection jwtAnswer = jwt.introspect("jwt-access");
+    assertTrue(jwtAnswer.isActive());
+    assertNull(jwtAnswer.getSubject());
+
+    store.remove(WEB_KEY);
+    assertFalse(web.introspect("web-access").isActive());
+  }
+
+  private static OAuthToken token(String accessToken) {
+    return OAuthToken.builder()
+        .accessToken(accessToken)
+        .refreshToken("refresh-" + accessToken)
+        .tokenType("Bearer")
+        .expiresIn((int) (System.currentTimeMillis() / 1000 + 900))
+        .build();
+  }
+}
@@ -1,26 +1,168 @@
 package com.coze.jwt;
 
+import java.nio.file.Paths;
+
+import com.coze.jwt.config.ReloadableConfig;
+import com.coze.jwt.http.UpstreamHttpPool;
+import com.coze.jwt.log.EventLog;
+import com.coze.jwt.metrics.Metrics;
+import com.coze.jwt.server.AccessTokenCache;
+import com.coze.jwt.server.AdminAccess;
+import com.coze.jwt.server.JwtAssertionPool;
+import com.coze.jwt.server.JwtClients;
+import com.coze.jwt.server.JwtTokenExchange;
+import com.coze.jwt.server.SessionTokenCache;
 import com.coze.jwt.server.TokenServer;
-import com.coze.openapi.client.auth.LoadAuthConfig;
+import com.coze.jwt.server.UpstreamExecutor;
+import com.coze.jwt.server.UpstreamGuard;
+import com.coze.jwt.store.InMemoryTokenStore;
+import com.coze.jwt.store.MappedFileTokenStore;
+import com.coze.jwt.store.SnapshotTokenStore;
+import com.coze.jwt.store.TokenStore;
 import com.coze.openapi.client.auth.OAuthConfig;
-import com.coze.openapi.service.auth.JWTOAuthClient;
 
 public class Main {
   private static final String configFilePath = "coze_oauth_config.json";
   private static final int PORT = 8080;
+  // token 生命周期过去 -Dcoze.token.refresh.ratio (默认 0.8, 取值 (0, 1)) 后在后台刷新
+  private static final double TOKEN_REFRESH_RATIO =
+      Double.parseDouble(
+          System.getProperty(
+              "coze.token.refresh.ratio", String.valueOf(AccessTokenCache.DEFAULT_REFRESH_RATIO)));
+  // 设置 -Dcoze.token.store.file=<path> 时使用内存映射文件存储 token, 可被同机多个进程共享
+  private static final String TOKEN_STORE_FILE = System.getProperty("coze.token.store.file");
+  // 设置 -Dcoze.token.snapshot.file=<path> 时 token 保存在内存中, 同时追加写入该文件, 重启后从文件恢复;
+  // 同时设置 -Dcoze.token.store.file 时不生效
+  private static final String TOKEN_SNAPSHOT_FILE = System.getProperty("coze.token.snapshot.file");
+  // 堆内存中 (默认和设置 -Dcoze.token.snapshot.file 时) 最多保存的 token 数, 超出时淘汰最久未使用的会话
+  private static final int TOKEN_MAX_SIZE =
+      Integer.getInteger("coze.token.max.size", InMemoryTokenStore.DEFAULT_MAX_SIZE);
+  // 设置 -Dcoze.async.max.inflight=<n> 时在独立线程上调用 Coze 授权接口, 最多 n 个调用同时进行,
+  // 超出时直接返回 503; -Dcoze.async.timeout.ms 为单次调用超时, 超时返回 504
+  private static final int ASYNC_MAX_IN_FLIGHT = Integer.getInteger("coze.async.max.inflight", 0);
+  private static final long ASYNC_TIMEOUT_MILLIS =
+      Long.getLong("coze.async.timeout.ms", UpstreamExecutor.DEFAULT_TIMEOUT_MILLIS);
+  // Coze 授权接口的 HTTP 连接池: -Dcoze.http.max.idle 为保留的空闲连接数, -Dcoze.http.keepalive.ms
+  // 为空闲连接的保留时间, -Dcoze.http.http2=false 时只用 HTTP/1.1, -Dcoze.http.warmup 为启动时预先建立的连接数
+  private static final int HTTP_MAX_IDLE =
+      Integer.getInteger("coze.http.max.idle", UpstreamHttpPool.DEFAULT_MAX_IDLE);
+  private static final long HTTP_KEEP_ALIVE_MILLIS =
+      Long.getLong("coze.http.keepalive.ms", UpstreamHttpPool.DEFAULT_KEEP_ALIVE_MILLIS);
+  private static final boolean HTTP2 =
+      Boolean.parseBoolean(System.getProperty("coze.http.http2", "true"));
+  private static final int HTTP_WARM_UP_CONNECTIONS = Integer.getInteger("coze.http.warmup", 1);
+  // 配置文件修改后在后台重新加载, 替换 OAuth 客户端和签名用的私钥, 设置 -Dcoze.config.watch=false 时不监听
+  private static final boolean CONFIG_WATCH =
+      Boolean.parseBoolean(System.getProperty("coze.config.watch", "true"));
+  // 设置 -Dcoze.log.events=<path> 时把请求, 上游调用和审计事件以 JSON lines 写入该文件 ("-" 为标准输出),
+  // 由后台线程写入, token 只记录指纹; -Dcoze.log.buffer 为待写事件的队列长度, 队列满时丢弃事件
+  private static final String EVENT_LOG = System.getProperty("coze.log.events");
+  private static final int EVENT_LOG_BUFFER =
+      Integer.getInteger("coze.log.buffer", EventLog.DEFAULT_CAPACITY);
+  // 设置 -Dcoze.startup.exit=true 时启动完成后立即退出, 用于生成 AppCDS 归档的训练运行
+  private static final boolean STARTUP_EXIT = Boolean.getBoolean("coze.startup.exit");
+  // 对 Coze 授权接口的调用限流: -Dcoze.upstream.rate 为每秒允许的调用数 (0 不限流), -Dcoze.upstream.burst
+  // 为允许的突发调用数; 连续失败 -Dcoze.upstream.breaker.failures 次 (0 不熔断) 后熔断
+  // -Dcoze.upstream.breaker.open.ms 毫秒, 期间直接返回 503, 之后放行一个探测调用
+  private static final double UPSTREAM_RATE =
+      Double.parseDouble(System.getProperty("coze.upstream.rate", "0"));
+  private static final int UPSTREAM_BURST = Integer.getInteger("coze.upstream.burst", 10);
+  private static final int BREAKER_FAILURES =
+      Integer.getInteger("coze.upstream.breaker.failures", 5);
+  private static final long BREAKER_OPEN_MILLIS =
+      Long.getLong("coze.upstream.breaker.open.ms", 30_000);
+  // 后台预先签名的 JWT assertion 数量, 取 token 时不必在请求线程上做 RSA 签名; 设为 0 时使用 SDK 的 getAccessToken
+  private static final int JWT_ASSERTION_POOL_SIZE =
+      Integer.getInteger("coze.jwt.assertion.pool", JwtAssertionPool.DEFAULT_POOL_SIZE);
+  // 向 Coze 申请的 token 有效期 (秒), SDK 客户端和预签名 assertion 换取的 token 都使用该值
+  private static final int JWT_TOKEN_TTL_SECONDS =
+      Integer.getInteger("coze.jwt.token.ttl", JwtTokenExchange.DEFAULT_DURATION_SECONDS);
+  // 最多缓存多少个用户 (session_name) 的 token
+  private static final int SESSION_TOKEN_CACHE_SIZE =
+      Integer.getInteger("coze.jwt.session.cache.size", SessionTokenCache.DEFAULT_MAX_SIZE);
+  // 设置 -Dcoze.admin.token=<token> 时 /metrics, /admin/upstream 和 /introspect 须带
+  // Authorization: Bearer <token>; 未设置时只允许本机不经代理直接访问
+  private static final String ADMIN_TOKEN = System.getProperty("coze.admin.token");
 
   public static void main(String[] args) throws Exception {
     TokenServer server = null;
+    EventLog eventLog = EventLog.DISABLED;
     try {
-      // 加载配置
-      OAuthConfig config = OAuthConfig.load(new LoadAuthConfig(configFilePath));
-
-      // 初始化 JWT OAuth 客户端
-      JWTOAuthClient oauth = JWTOAuthClient.loadFromConfig(new LoadAuthConfig(configFilePath));
+      // 加载配置, 初始化 JWT OAuth 客户端, 共享一个连接池; 池大小为 0 时 assertion 在请求线程上签名
+      UpstreamHttpPool httpPool =
+          new UpstreamHttpPool(HTTP_MAX_IDLE, HTTP_KEEP_ALIVE_MILLIS, HTTP2);
+      ReloadableConfig<JwtClients> oauth =
+          new ReloadableConfig<>(
+              Paths.get(configFilePath),
+              c ->
+                  JwtClients.create(
+                      c, httpPool.client(), JWT_ASSERTION_POOL_SIZE, JWT_TOKEN_TTL_SECONDS));
+      OAuthConfig config = oauth.config();
 
       // 启动服务器
-      server = new TokenServer(oauth, config);
+      Metrics metrics = new Metrics();
+      eventLog = EventLog.open(EVENT_LOG, EVENT_LOG_BUFFER);
+      metrics.bindEventLog(eventLog);
+      httpPool.bindMetrics(metrics);
+      JwtClients.bindMetrics(oauth, metrics);
+      // 同一 client_id 的调用共享一个限流器和熔断器
+      UpstreamGuard upstreamGuard =
+          UpstreamGuard.of(
+              config.getClientId(),
+              UPSTREAM_RATE,
+              UPSTREAM_BURST,
+              BREAKER_FAILURES,
+              BREAKER_OPEN_MILLIS);
+      // 每次加载时取当前的客户端, 配置重新加载后的刷新使用新的私钥
+      AccessTokenCache tokenCache =
+          new AccessTokenCache(
+              () ->
+                  metrics.upstream(
+                      "getAccessToken",
+                      () -> upstreamGuard.call(() -> oauth.client().getAccessToken())),
+              TOKEN_REFRESH_RATIO);
+      // 每个用户 (session_name) 的 token 缓存在有界 LRU 中
+      SessionTokenCache sessionTokens =
+          new SessionTokenCache(
+              sessionName ->
+                  metrics.upstream(
+                      "getSessionToken",
+                      () -> upstreamGuard.call(() -> oauth.client().getSessionToken(sessionName))),
+              SESSION_TOKEN_CACHE_SIZE);
+      SnapshotTokenStore snapshotStore =
+          TOKEN_SNAPSHOT_FILE != null && TOKEN_STORE_FILE == null
+              ? new SnapshotTokenStore(Paths.get(TOKEN_SNAPSHOT_FILE), TOKEN_MAX_SIZE)
+              : null;
+      TokenStore tokenStore =
+          TOKEN_STORE_FILE != null
+              ? new MappedFileTokenStore(Paths.get(TOKEN_STORE_FILE))
+              : snapshotStore != null ? snapshotStore : new InMemoryTokenStore(TOKEN_MAX_SIZE);
+      if (snapshotStore != null) {
+        snapshotStore.bindMetrics(metrics);
+      }
+      UpstreamExecutor upstreamExecutor =
+          ASYNC_MAX_IN_FLIGHT > 0
+              ? new UpstreamExecutor(ASYNC_MAX_IN_FLIGHT, ASYNC_TIMEOUT_MILLIS)
+              : null;
+      server =
+          new TokenServer(
+              oauth,
+              tokenCache,
+              tokenStore,
+              metrics,
+              upstreamExecutor,
+              sessionTokens,
+              upstreamGuard,
+              AdminAccess.withToken(ADMIN_TOKEN));
       server.start(PORT);
+      if (CONFIG_WATCH) {
+        oauth.watch();
+      }
+      // 服务先开始监听, 再预热连接
+      httpPool.warmUp(config.getCozeApiBase(), HTTP_WARM_UP_CONNECTIONS);
+      if (STARTUP_EXIT) {
+        return;
+      }
 
       // 保持主线程运行
       Thread.currentThread().join();
@@ -28,6 +170,7 @@ public class Main {
       if (server != null) {
         server.stop();
       }
+      eventLog.close();
     }
   }
 }
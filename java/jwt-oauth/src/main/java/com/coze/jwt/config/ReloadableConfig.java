@@ -0,0 +1,234 @@
+package com.coze.jwt.config;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import com.coze.jwt.metrics.Metrics;
+import com.coze.openapi.client.auth.OAuthConfig;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The app's OAuth config and the OAuth client built from it, reloaded when the config file
+ * changes.
+ *
+ * <p>{@link #watch} starts a daemon thread that waits on a {@link WatchService} for the file's
+ * directory. When something there changes and the file's content differs from what was last
+ * loaded, that thread parses it, builds a new client and swaps both in with one reference write.
+ * Requests never wait for a reload: a request that already read {@link #current} finishes with the
+ * old client, later ones get the new one. A replaced client that is {@link AutoCloseable} is then
+ * closed. A file that does not parse, or a client that cannot be built from it, is logged and
+ * counted, and the old client stays in use until the file changes again.
+ */
+@Slf4j
+public class ReloadableConfig<C> implements AutoCloseable {
+  // 保存文件时常连续触发多个事件, 等这段时间内没有新事件再读
+  private static final long DEBOUNCE_MILLIS = 200;
+  private static final ObjectMapper MAPPER = new ObjectMapper().findAndRegisterModules();
+
+  private final Path file;
+  private final Function<OAuthConfig, C> clientFactory;
+  private final AtomicReference<Snapshot<C>> current = new AtomicReference<>();
+  private final List<Consumer<Snapshot<C>>> listeners = new CopyOnWriteArrayList<>();
+  private final AtomicLong failures = new AtomicLong();
+  private volatile Metrics metrics;
+  // 上次成功加载的文件内容, 内容不变时不重建客户端
+  private byte[] loaded;
+  private WatchService watchService;
+
+  /** Loads {@code file} and builds the first client from it; throws if either fails. */
+  public ReloadableConfig(Path file, Function<OAuthConfig, C> clientFactory) throws IOException {
+    this.file = file.toAbsolutePath();
+    this.clientFactory = clientFactory;
+    this.loaded = Files.readAllBytes(this.file);
+    OAuthConfig config = parse(loaded);
+    current.set(new Snapshot<>(config, clientFactory.apply(config), 1));
+  }
+
+  private ReloadableConfig(OAuthConfig config, C client) {
+    this.file = null;
+    this.clientFactory = null;
+    current.set(new Snapshot<>(config, client, 1));
+  }
+
+  /** A config and client that never change; {@link #watch} and {@link #reload} do nothing. */
+  public static <C> ReloadableConfig<C> fixed(OAuthConfig config, C client) {
+    return new ReloadableConfig<>(config, client);
+  }
+
+  /** The config and client in use; read it once per request and use both from the same read. */
+  public Snapshot<C> current() {
+    return current.get();
+  }
+
+  public OAuthConfig config() {
+    return current.get().getConfig();
+  }
+
+  public C client() {
+    return current.get().getClient();
+  }
+
+  /** Runs {@code listener} on the reloading thread after each reload that swapped in a client. */
+  public void onReload(Consumer<Snapshot<C>> listener) {
+    listeners.add(listener);
+  }
+
+  /** Reloads that failed because the file did not parse or the client could not be built. */
+  public long getFailures() {
+    return failures.get();
+  }
+
+  public void bindMetrics(Metrics metrics) {
+    this.metrics = metrics;
+    metrics.gauge("coze.config.generation", this, r -> r.current().getGeneration());
+    metrics.counter("coze.config.reload.failures", this, ReloadableConfig::getFailures);
+  }
+
+  /**
+   * Reads the file again and, if its content changed, swaps in the config and a client built from
+   * it. Returns whether a new client was swapped in.
+   */
+  public synchronized boolean reload() {
+    if (file == null) {
+      return false;
+    }
+    long start = System.nanoTime();
+    try {
+      byte[] content = Files.readAllBytes(file);
+      if (Arrays.equals(content, loaded)) {
+        return false;
+      }
+      OAuthConfig config = parse(content);
+      C client = clientFactory.apply(config);
+      Snapshot<C> next = new Snapshot<>(config, client, current.get().getGeneration() + 1);
+      Snapshot<C> previous = current.getAndSet(next);
+      loaded = content;
+      record("success", start);
+      log.info("Reloaded OAuth config {}, client_id {}", file, config.getClientId());
+      for (Consumer<Snapshot<C>> listener : listeners) {
+        try {
+          listener.accept(next);
+        } catch (RuntimeException e) {
+          log.warn("OAuth config reload listener failed", e);
+        }
+      }
+      closeQuietly(previous.getClient());
+      return true;
+    } catch (IOException | RuntimeException e) {
+      failures.incrementAndGet();
+      record("failure", start);
+      log.warn("Reload of OAuth config {} failed, keeping the current client", file, e);
+      return false;
+    }
+  }
+
+  /** Starts watching the file for changes; does nothing for a fixed config or when watching. */
+  public synchronized void watch() throws IOException {
+    if (file == null || watchService != null) {
+      return;
+    }
+    watchService = file.getFileSystem().newWatchService();
+    file.getParent().register(watchService, ENTRY_CREATE, ENTRY_MODIFY);
+    Thread watcher = new Thread(this::watchLoop, "coze-config-watcher");
+    watcher.setDaemon(true);
+    watcher.start();
+  }
+
+  @Override
+  public synchronized void close() {
+    if (watchService != null) {
+      try {
+        watchService.close();
+      } catch (IOException e) {
+        log.warn("Closing the OAuth config watcher failed", e);
+      }
+    }
+  }
+
+  // any event in the directory may be the file: editors replace it by renaming, and mounted
+  // config maps swap a symlink. reload() compares the content, so other files cost one read
+  private void watchLoop() {
+    try {
+      while (true) {
+        drain(watchService.take());
+        WatchKey next;
+        while ((next = watchService.poll(DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+          drain(next);
+        }
+        reload();
+      }
+    } catch (InterruptedException | ClosedWatchServiceException e) {
+      // closed
+    }
+  }
+
+  private static void drain(WatchKey key) {
+    key.pollEvents();
+    key.reset();
+  }
+
+  // parses the bytes already read rather than the file, which may have changed since, the same
+  // way OAuthConfig.load parses the stream it opens on the file
+  private static OAuthConfig parse(byte[] content) throws IOException {
+    return MAPPER.readValue(content, OAuthConfig.class);
+  }
+
+  private void record(String outcome, long start) {
+    Metrics m = metrics;
+    if (m != null) {
+      m.recordConfigReload(outcome, System.nanoTime() - start);
+    }
+  }
+
+  private static void closeQuietly(Object client) {
+    if (client instanceof AutoCloseable) {
+      try {
+        ((AutoCloseable) client).close();
+      } catch (Exception e) {
+        log.warn("Closing the replaced OAuth client failed", e);
+      }
+    }
+  }
+
+  /** One loaded config and the client built from it; {@code generation} counts up from 1. */
+  public static final class Snapshot<C> {
+    private final OAuthConfig config;
+    private final C client;
+    private final long generation;
+
+    private Snapshot(OAuthConfig config, C client, long generation) {
+      this.config = config;
+      this.client = client;
+      this.generation = generation;
+    }
+
+    public OAuthConfig getConfig() {
+      return config;
+    }
+
+    public C getClient() {
+      return client;
+    }
+
+    public long getGeneration() {
+      return generation;
+    }
+  }
+}
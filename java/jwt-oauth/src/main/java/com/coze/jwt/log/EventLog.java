@@ -0,0 +1,242 @@
+package com.coze.jwt.log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Access and audit events written as JSON lines by a background thread.
+ *
+ * <p>{@link #log} only puts the event into a {@link RingBuffer}. A writer thread takes events from
+ * there, serializes them into a batch and hands the batch to the output whenever it grows large or
+ * the queue runs empty. Each write to the output holds whole lines only, so several logs can share
+ * one output whose {@code write} is atomic. When the queue is full the event is dropped and counted
+ * ({@link #getDropped}), so a slow disk never holds up a request. Values wrapped with {@link
+ * #secret} are written as their {@link Redaction#fingerprint}, computed on the writer thread.
+ *
+ * <p>Each line is an object with {@code ts} (epoch milliseconds), {@code event} and the fields
+ * given to {@link #log} that are not null, for example {@code {"ts":1700000000000,
+ * "event":"request","route":"/","method":"GET","status":200,"duration_ms":0.41}}.
+ */
+@Slf4j
+public class EventLog implements AutoCloseable {
+  public static final int DEFAULT_CAPACITY = 8192;
+  /** Accepts events and drops them all; used when no event log is configured. */
+  public static final EventLog DISABLED = new EventLog();
+
+  // 队列为空时写线程的休眠时间; 生产者不唤醒写线程, 请求线程上没有系统调用
+  private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+  private static final int BATCH_BYTES = 32 * 1024;
+  // 每行一个事件, 行尾由 write 写入; 输出由 drain 负责写入和关闭
+  private static final JsonFactory JSON =
+      new JsonFactory()
+          .setRootValueSeparator(null)
+          .disable(JsonGenerator.Feature.FLUSH_PASSED_TO_STREAM)
+          .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+  private final RingBuffer<Event> queue;
+  private final OutputStream out;
+  private final Thread writer;
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong written = new AtomicLong();
+  private volatile boolean closed;
+
+  private EventLog() {
+    this.queue = null;
+    this.out = null;
+    this.writer = null;
+  }
+
+  /** Writes to {@code out}, closed with this log, with room for {@code capacity} events. */
+  public EventLog(OutputStream out, int capacity) {
+    this.queue = new RingBuffer<>(capacity);
+    this.out = out;
+    this.writer = new Thread(this::drain, "coze-event-log");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Opens the log at {@code target}: {@code -} for standard output, otherwise a file appended to.
+   * A null or empty target gives {@link #DISABLED}.
+   */
+  public static EventLog open(String target, int capacity) throws IOException {
+    if (target == null || target.isEmpty()) {
+      return DISABLED;
+    }
+    if ("-".equals(target)) {
+      // 关闭日志时不关闭标准输出
+      return new EventLog(
+          new FilterOutputStream(System.out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+              out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+              flush();
+            }
+          },
+          capacity);
+    }
+    return new EventLog(new FileOutputStream(target, true), capacity);
+  }
+
+  /** A value that is logged as the fingerprint of {@code token} rather than the token itself. */
+  public static Object secret(String token) {
+    return token == null ? null : new Secret(token);
+  }
+
+  public boolean isEnabled() {
+    return queue != null;
+  }
+
+  /**
+   * Queues an event; {@code fields} are name, value pairs. Values may be strings, numbers,
+   * booleans or {@link #secret}s, anything else is written with {@code toString()}, and null
+   * values are left out. Never blocks: when the queue is full the event is dropped.
+   */
+  public void log(String event, Object... fields) {
+    if (queue == null || closed) {
+      return;
+    }
+    if (!queue.offer(new Event(System.currentTimeMillis(), event, fields))) {
+      dropped.incrementAndGet();
+    }
+  }
+
+  /** Events dropped because the queue was full. */
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  public long getWritten() {
+    return written.get();
+  }
+
+  /** Events waiting to be written. */
+  public int queued() {
+    return queue == null ? 0 : queue.size();
+  }
+
+  /** Writes the events already queued, then stops the writer and closes the output. */
+  @Override
+  public void close() {
+    if (queue == null || closed) {
+      return;
+    }
+    closed = true;
+    LockSupport.unpark(writer);
+    try {
+      writer.join(TimeUnit.SECONDS.toMillis(5));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void drain() {
+    ByteArrayOutputStream batch = new ByteArrayOutputStream(2 * BATCH_BYTES);
+    try (JsonGenerator json = JSON.createGenerator(batch)) {
+      while (true) {
+        Event event = queue.poll();
+        if (event != null) {
+          write(json, event);
+          json.flush();
+          if (batch.size() >= BATCH_BYTES) {
+            batch.writeTo(out);
+            batch.reset();
+          }
+          continue;
+        }
+        if (queue.size() > 0) {
+          // 生产者已占位但还没写入, 马上就会写入
+          Thread.yield();
+          continue;
+        }
+        if (batch.size() > 0) {
+          batch.writeTo(out);
+          batch.reset();
+        }
+        out.flush();
+        if (closed) {
+          break;
+        }
+        LockSupport.parkNanos(IDLE_PARK_NANOS);
+      }
+    } catch (IOException e) {
+      log.warn("Event log stopped writing", e);
+    } finally {
+      try {
+        out.close();
+      } catch (IOException e) {
+        log.warn("Closing the event log failed", e);
+      }
+    }
+  }
+
+  private void write(JsonGenerator json, Event event) throws IOException {
+    json.writeStartObject();
+    json.writeNumberField("ts", event.timestamp);
+    json.writeStringField("event", event.name);
+    Object[] fields = event.fields;
+    for (int i = 0; i + 1 < fields.length; i += 2) {
+      if (fields[i + 1] != null) {
+        json.writeFieldName(String.valueOf(fields[i]));
+        writeValue(json, fields[i + 1]);
+      }
+    }
+    json.writeEndObject();
+    json.writeRaw('\n');
+    written.incrementAndGet();
+  }
+
+  private static void writeValue(JsonGenerator json, Object value) throws IOException {
+    if (value instanceof Secret) {
+      json.writeString(Redaction.fingerprint(((Secret) value).token));
+    } else if (value instanceof Integer || value instanceof Long) {
+      json.writeNumber(((Number) value).longValue());
+    } else if (value instanceof Number) {
+      json.writeNumber(((Number) value).doubleValue());
+    } else if (value instanceof Boolean) {
+      json.writeBoolean((Boolean) value);
+    } else {
+      json.writeString(value.toString());
+    }
+  }
+
+  private static final class Event {
+    private final long timestamp;
+    private final String name;
+    private final Object[] fields;
+
+    private Event(long timestamp, String name, Object[] fields) {
+      this.timestamp = timestamp;
+      this.name = name;
+      this.fields = fields;
+    }
+  }
+
+  private static final class Secret {
+    private final String token;
+
+    private Secret(String token) {
+      this.token = token;
+    }
+
+    @Override
+    public String toString() {
+      return Redaction.fingerprint(token);
+    }
+  }
+}
@@ -0,0 +1,37 @@
+package com.coze.jwt.log;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Turns tokens into fingerprints fit for logs: the first 8 bytes of their SHA-256 in hex. The same
+ * token always gives the same fingerprint, so log lines about one token can be matched up, but the
+ * token cannot be recovered from it.
+ */
+public final class Redaction {
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+  private static final int FINGERPRINT_BYTES = 8;
+
+  private Redaction() {}
+
+  /** {@code sha256:<16 hex digits>}, or null for a null token. */
+  public static String fingerprint(String token) {
+    if (token == null) {
+      return null;
+    }
+    byte[] digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+    char[] out = new char[7 + FINGERPRINT_BYTES * 2];
+    "sha256:".getChars(0, 7, out, 0);
+    for (int i = 0; i < FINGERPRINT_BYTES; i++) {
+      out[7 + i * 2] = HEX[(digest[i] >> 4) & 0xf];
+      out[8 + i * 2] = HEX[digest[i] & 0xf];
+    }
+    return new String(out);
+  }
+}
@@ -0,0 +1,112 @@
+package com.coze.jwt.model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+
+import com.coze.openapi.client.auth.OAuthToken;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.SerializedString;
+
+/**
+ * Writes token responses straight from {@link OAuthToken} with a streaming generator.
+ *
+ * <p>The output is the same JSON as {@link TokenResponse}, but there is no builder, no map and no
+ * reflective serializer in between, and field names are encoded once. {@link #batch} streams many
+ * tokens as one JSON array, flushing each element as soon as it is written.
+ */
+public final class TokenJson {
+  public static final String CONTENT_TYPE = "application/json";
+
+  private static final JsonFactory FACTORY = new JsonFactory();
+  private static final SerializableString ACCESS_TOKEN = new SerializedString("access_token");
+  private static final SerializableString EXPIRES_IN = new SerializedString("expires_in");
+  private static final SerializableString ERROR = new SerializedString("error");
+  private static final SerializableString TOKEN_TYPE = new SerializedString("token_type");
+  private static final SerializableString REFRESH_TOKEN = new SerializedString("refresh_token");
+  // a token response is about 120 bytes
+  private static final int INITIAL_BUFFER_SIZE = 192;
+
+  private TokenJson() {}
+
+  /** {@code {"access_token":...,"expires_in":...}} as UTF-8 bytes. */
+  public static byte[] toBytes(OAuthToken token) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(INITIAL_BUFFER_SIZE);
+    try (JsonGenerator gen = FACTORY.createGenerator(out, JsonEncoding.UTF8)) {
+      write(gen, token);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * The body of an XHR {@code /callback}: {@code token_type}, {@code access_token}, an empty {@code
+   * refresh_token} (JWT apps get none) and {@code expires_in} rendered for display.
+   */
+  public static byte[] toCallbackBytes(OAuthToken token, String expiresIn) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(INITIAL_BUFFER_SIZE);
+    try (JsonGenerator gen = FACTORY.createGenerator(out, JsonEncoding.UTF8)) {
+      gen.writeStartObject();
+      gen.writeFieldName(TOKEN_TYPE);
+      gen.writeString(token.getTokenType());
+      gen.writeFieldName(ACCESS_TOKEN);
+      gen.writeString(token.getAccessToken());
+      gen.writeFieldName(REFRESH_TOKEN);
+      gen.writeString("");
+      gen.writeFieldName(EXPIRES_IN);
+      gen.writeString(expiresIn);
+      gen.writeEndObject();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return out.toByteArray();
+  }
+
+  public static void write(JsonGenerator gen, OAuthToken token) throws IOException {
+    gen.writeStartObject();
+    gen.writeFieldName(ACCESS_TOKEN);
+    gen.writeString(token.getAccessToken());
+    gen.writeFieldName(EXPIRES_IN);
+    gen.writeNumber(token.getExpiresIn());
+    gen.writeEndObject();
+  }
+
+  /** Starts a JSON array of token responses on {@code out}; close it to end the array. */
+  public static Batch batch(OutputStream out) throws IOException {
+    return new Batch(FACTORY.createGenerator(out, JsonEncoding.UTF8));
+  }
+
+  /** A JSON array written one element at a time. */
+  public static final class Batch implements AutoCloseable {
+    private final JsonGenerator gen;
+
+    private Batch(JsonGenerator gen) throws IOException {
+      this.gen = gen;
+      gen.writeStartArray();
+    }
+
+    public void token(OAuthToken token) throws IOException {
+      write(gen, token);
+      gen.flush();
+    }
+
+    public void error(String message) throws IOException {
+      gen.writeStartObject();
+      gen.writeFieldName(ERROR);
+      gen.writeString(message);
+      gen.writeEndObject();
+      gen.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      gen.writeEndArray();
+      gen.close();
+    }
+  }
+}
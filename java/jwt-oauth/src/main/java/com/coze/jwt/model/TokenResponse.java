@@ -4,6 +4,7 @@ import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 
+import com.coze.jwt.log.Redaction;
 import com.coze.openapi.client.auth.OAuthToken;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
@@ -32,7 +33,7 @@ public class TokenResponse {
 
   public void print() {
     System.out.println("Successfully refresh access token:");
-    System.out.println("Access Token: " + this.accessToken);
+    System.out.println("Access Token: " + Redaction.fingerprint(this.accessToken));
     Instant expiresAt = Instant.ofEpochSecond(this.expiresIn);
     System.out.println(
         "Token will expire at: "
@@ -0,0 +1,148 @@
+package com.coze.jwt.server;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import com.coze.openapi.client.auth.OAuthToken;
+
+/**
+ * Holds the app-wide JWT access token in memory and refreshes it in the background.
+ *
+ * <p>A refresh is scheduled once {@code refreshRatio} of the token lifetime has passed, so
+ * requests keep reading the cached token while a new one is fetched. Concurrent misses (cold
+ * start, or a token that expired because refreshing kept failing) share a single upstream call.
+ *
+ * <p>Background refreshes go through the same single flight as misses, and at most one refresh is
+ * pending at a time: scheduling one cancels the previous, so a retry after a failed refresh and a
+ * load triggered by a miss do not each start a refresh chain of their own.
+ */
+public class AccessTokenCache implements AutoCloseable {
+  public static final double DEFAULT_REFRESH_RATIO = 0.8;
+
+  // a token this close to expiry is not handed out any more
+  private static final long EXPIRY_SKEW_SECONDS = 10;
+  private static final long RETRY_DELAY_SECONDS = 5;
+
+  private final Supplier<OAuthToken> loader;
+  private final double refreshRatio;
+  private final ScheduledExecutorService scheduler;
+  private final AtomicReference<OAuthToken> current = new AtomicReference<>();
+  private final AtomicReference<CompletableFuture<OAuthToken>> inflight = new AtomicReference<>();
+  private ScheduledFuture<?> pending;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  public AccessTokenCache(Supplier<OAuthToken> loader, double refreshRatio) {
+    if (refreshRatio <= 0 || refreshRatio >= 1) {
+      throw new IllegalArgumentException("refreshRatio must be in (0, 1): " + refreshRatio);
+    }
+    this.loader = loader;
+    this.refreshRatio = refreshRatio;
+    this.scheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            r -> {
+              Thread t = new Thread(r, "jwt-token-refresh");
+              t.setDaemon(true);
+              return t;
+            });
+  }
+
+  public OAuthToken get() {
+    OAuthToken token = current.get();
+    if (token != null && usable(token)) {
+      hits.incrementAndGet();
+      return token;
+    }
+    misses.incrementAndGet();
+    try {
+      return load().join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  @Override
+  public void close() {
+    scheduler.shutdownNow();
+  }
+
+  // single-flight: the first caller runs the loader, everyone else waits on its future
+  private CompletableFuture<OAuthToken> load() {
+    while (true) {
+      CompletableFuture<OAuthToken> running = inflight.get();
+      if (running != null) {
+        return running;
+      }
+      CompletableFuture<OAuthToken> mine = new CompletableFuture<>();
+      if (!inflight.compareAndSet(null, mine)) {
+        continue;
+      }
+      try {
+        OAuthToken token = loader.get();
+        current.set(token);
+        scheduleRefresh(token);
+        mine.complete(token);
+      } catch (Throwable e) {
+        mine.completeExceptionally(e);
+      } finally {
+        inflight.compareAndSet(mine, null);
+      }
+      return mine;
+    }
+  }
+
+  private void scheduleRefresh(OAuthToken token) {
+    long lifetime = token.getExpiresIn() - nowSeconds();
+    long delay = Math.max(1, (long) (lifetime * refreshRatio));
+    schedule(delay);
+  }
+
+  // replaces whatever refresh is pending, so there is only ever one
+  private synchronized void schedule(long delaySeconds) {
+    if (scheduler.isShutdown()) {
+      return;
+    }
+    if (pending != null) {
+      // not interrupting: the pending refresh may be the one scheduling its successor
+      pending.cancel(false);
+    }
+    pending = scheduler.schedule(this::backgroundRefresh, delaySeconds, TimeUnit.SECONDS);
+  }
+
+  private void backgroundRefresh() {
+    load()
+        .whenComplete(
+            (token, e) -> {
+              if (e != null) {
+                // keep serving the current token while it lasts and try again shortly
+                schedule(RETRY_DELAY_SECONDS);
+              }
+            });
+  }
+
+  private static boolean usable(OAuthToken token) {
+    return token.getExpiresIn() - EXPIRY_SKEW_SECONDS > nowSeconds();
+  }
+
+  private static long nowSeconds() {
+    return System.currentTimeMillis() / 1000;
+  }
+}
@@ -0,0 +1,83 @@
+package com.coze.jwt.server;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+import io.javalin.http.Context;
+import io.javalin.http.Handler;
+
+/**
+ * Decides who may call the routes that expose or change the server's internals: {@code /metrics},
+ * {@code /admin/upstream}, {@code /admin/upstream/reset} and token introspection.
+ *
+ * <p>With an admin token, a request must carry it as {@code Authorization: Bearer <token>},
+ * wherever it comes from; others get a 401. Without one, only requests from a loopback address
+ * that did not pass through a proxy (no {@code X-Forwarded-For} or {@code Forwarded} header) are
+ * let through; others get a 403. The servers listen on 127.0.0.1 only, but a reverse proxy on the
+ * same host would otherwise make every request look local.
+ */
+public class AdminAccess {
+  private static final String BEARER = "Bearer ";
+
+  // null 时只允许本机直接访问
+  private final byte[] token;
+
+  private AdminAccess(byte[] token) {
+    this.token = token;
+  }
+
+  /** Lets through direct requests from this host only. */
+  public static AdminAccess loopbackOnly() {
+    return new AdminAccess(null);
+  }
+
+  /** Requires {@code token} as a bearer token; null or empty means {@link #loopbackOnly()}. */
+  public static AdminAccess withToken(String token) {
+    return token == null || token.isEmpty()
+        ? loopbackOnly()
+        : new AdminAccess(token.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /** Wraps {@code handler} so that it only runs for requests this policy allows. */
+  public Handler guard(Handler handler) {
+    return ctx -> {
+      if (allows(ctx)) {
+        handler.handle(ctx);
+      }
+    };
+  }
+
+  // answers the request itself when it is not allowed
+  private boolean allows(Context ctx) {
+    if (token != null) {
+      String authorization = ctx.header("Authorization");
+      if (authorization != null
+          && authorization.startsWith(BEARER)
+          && MessageDigest.isEqual(
+              token, authorization.substring(BEARER.length()).getBytes(StandardCharsets.UTF_8))) {
+        return true;
+      }
+      ctx.header("WWW-Authenticate", "Bearer");
+      ctx.status(401).result("admin token required");
+      return false;
+    }
+    if (ctx.header("X-Forwarded-For") == null
+        && ctx.header("Forwarded") == null
+        && isLoopback(ctx.ip())) {
+      return true;
+    }
+    ctx.status(403).result("only allowed from this host");
+    return false;
+  }
+
+  private static boolean isLoopback(String ip) {
+    try {
+      // an IP literal, so this does not resolve anything
+      return ip != null && InetAddress.getByName(ip).isLoopbackAddress();
+    } catch (UnknownHostException e) {
+      return false;
+    }
+  }
+}
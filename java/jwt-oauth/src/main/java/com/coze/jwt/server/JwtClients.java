@@ -0,0 +1,103 @@
+package com.coze.jwt.server;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+
+import com.coze.jwt.config.ReloadableConfig;
+import com.coze.jwt.metrics.Metrics;
+import com.coze.openapi.client.auth.OAuthConfig;
+import com.coze.openapi.client.auth.OAuthToken;
+import com.coze.openapi.service.auth.JWTOAuthClient;
+
+import okhttp3.OkHttpClient;
+
+/**
+ * Everything the JWT flow builds from one OAuth config: the SDK client, the pool of pre-signed
+ * assertions and the token exchange that uses it. Closing it stops the pool's signer thread; an
+ * assertion taken afterwards is signed inline, so requests still holding it keep working.
+ */
+public class JwtClients implements AutoCloseable {
+  private final JWTOAuthClient oauth;
+  private final JwtAssertionPool assertions;
+  private final JwtTokenExchange exchange;
+  private final boolean pooled;
+
+  public JwtClients(JWTOAuthClient oauth, JwtAssertionPool assertions, JwtTokenExchange exchange) {
+    this.oauth = oauth;
+    this.assertions = assertions;
+    this.exchange = exchange;
+    this.pooled = assertions.getPoolSize() > 0;
+  }
+
+  /**
+   * Builds the clients for {@code config}, keeping {@code assertionPoolSize} assertions ready and
+   * asking for tokens valid for {@code tokenTtlSeconds}.
+   */
+  public static JwtClients create(
+      OAuthConfig config, OkHttpClient http, int assertionPoolSize, int tokenTtlSeconds) {
+    JWTOAuthClient oauth =
+        new JWTOAuthClient.JWTOAuthBuilder()
+            .clientID(config.getClientId())
+            .privateKey(config.getPrivateKey())
+            .publicKey(config.getPublicKeyId())
+            .baseURL(config.getCozeApiBase())
+            .wwwURL(config.getCozeWwwBase())
+            .client(http)
+            .ttl(tokenTtlSeconds)
+            .build();
+    String audience;
+    try {
+      audience = new URL(config.getCozeApiBase()).getHost();
+    } catch (MalformedURLException e) {
+      throw new IllegalArgumentException("invalid coze_api_base: " + config.getCozeApiBase(), e);
+    }
+    JwtAssertionPool assertions =
+        new JwtAssertionPool(
+            config.getPrivateKey(),
+            config.getPublicKeyId(),
+            config.getClientId(),
+            audience,
+            assertionPoolSize,
+            JwtAssertionPool.DEFAULT_TTL_SECONDS);
+    return new JwtClients(
+        oauth,
+        assertions,
+        new JwtTokenExchange(http, config.getCozeApiBase(), assertions, tokenTtlSeconds));
+  }
+
+  /**
+   * Reports the assertion pool of whichever clients {@code clients} holds. The pool's counters
+   * start from zero again after a reload.
+   */
+  public static void bindMetrics(ReloadableConfig<JwtClients> clients, Metrics metrics) {
+    metrics.gauge(
+        "coze.jwt.assertions.ready", clients, c -> c.client().getAssertions().readyCount());
+    metrics.counter(
+        "coze.jwt.assertions.pooled", clients, c -> c.client().getAssertions().getPooled());
+    metrics.counter(
+        "coze.jwt.assertions.inline", clients, c -> c.client().getAssertions().getInline());
+  }
+
+  /** The app's token: through the pre-signed assertions, or the SDK when the pool is off. */
+  public OAuthToken getAccessToken() {
+    return pooled ? exchange.getAccessToken() : oauth.getAccessToken();
+  }
+
+  /** A token scoped to {@code sessionName}. */
+  public OAuthToken getSessionToken(String sessionName) {
+    return exchange.getAccessToken(sessionName);
+  }
+
+  public JWTOAuthClient getOauth() {
+    return oauth;
+  }
+
+  public JwtAssertionPool getAssertions() {
+    return assertions;
+  }
+
+  @Override
+  public void close() {
+    assertions.close();
+  }
+}
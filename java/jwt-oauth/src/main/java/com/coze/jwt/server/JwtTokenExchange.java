@@ -0,0 +1,148 @@
+package com.coze.jwt.server;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import com.coze.openapi.client.auth.OAuthToken;
+import com.coze.openapi.client.exception.CozeAuthException;
+import com.coze.openapi.client.exception.CozeError;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Exchanges a JWT assertion from a {@link JwtAssertionPool} for an access token, so the signing
+ * happens ahead of time instead of inside {@code JWTOAuthClient.getAccessToken()}.
+ *
+ * <p>It sends the same request as the SDK: a POST to the token endpoint with the assertion as the
+ * bearer credential and the {@code jwt-bearer} grant type. Failures are reported the same way
+ * too: a 4xx answer becomes a {@link CozeAuthException} with the {@code error_code} and {@code
+ * error_message} of the body, so it counts as a refusal rather than as Coze being down; I/O errors
+ * and 5xx answers are plain {@code RuntimeException}s.
+ *
+ * <p>Unlike {@code JWTOAuthClient.doGetAccessToken}, which maps a 2xx body straight onto {@link
+ * OAuthToken}, the body of a 2xx answer is checked too: one that carries an {@code error_code}, or
+ * lacks a string {@code access_token} or a numeric {@code expires_in}, becomes a {@link
+ * CozeAuthException} instead of a token whose fields are null. Tokens are requested for the
+ * duration given at construction, which should match the {@code ttl} the SDK client is built
+ * with, so a token lives as long whichever of the two got it.
+ */
+public class JwtTokenExchange {
+  public static final int DEFAULT_DURATION_SECONDS = 900;
+
+  private static final String TOKEN_PATH = "/api/permission/oauth2/token";
+  private static final String JWT_GRANT = "urn:ietf:params:oauth:grant-type:jwt-bearer";
+  private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+  private static final String LOG_ID_HEADER = "x-tt-logid";
+
+  private final ObjectMapper mapper = new ObjectMapper();
+  private final OkHttpClient http;
+  private final String tokenUrl;
+  private final JwtAssertionPool assertions;
+  private final int durationSeconds;
+
+  public JwtTokenExchange(
+      OkHttpClient http, String apiBase, JwtAssertionPool assertions, int durationSeconds) {
+    if (durationSeconds <= 0) {
+      throw new IllegalArgumentException("durationSeconds must be positive: " + durationSeconds);
+    }
+    this.http = http;
+    this.tokenUrl = apiBase.replaceAll("/+$", "") + TOKEN_PATH;
+    this.assertions = assertions;
+    this.durationSeconds = durationSeconds;
+  }
+
+  public OAuthToken getAccessToken() {
+    return getAccessToken(durationSeconds, null);
+  }
+
+  /** Gets a token valid for the configured duration, scoped to {@code sessionName}. */
+  public OAuthToken getAccessToken(String sessionName) {
+    return getAccessToken(durationSeconds, sessionName);
+  }
+
+  /** Gets a token valid for {@code durationSeconds}, scoped to {@code sessionName} if not null. */
+  public OAuthToken getAccessToken(int durationSeconds, String sessionName) {
+    Map<String, Object> body = new LinkedHashMap<>();
+    body.put("grant_type", JWT_GRANT);
+    body.put("duration_seconds", durationSeconds);
+    try {
+      Request request =
+          new Request.Builder()
+              .url(tokenUrl)
+              .header("Authorization", "Bearer " + assertions.take(sessionName))
+              .post(RequestBody.create(JSON, mapper.writeValueAsBytes(body)))
+              .build();
+      try (Response response = http.newCall(request).execute()) {
+        ResponseBody responseBody = response.body();
+        Map<?, ?> json = responseBody == null ? null : parse(responseBody.bytes());
+        if (response.code() >= 400 && response.code() < 500) {
+          throw new CozeAuthException(
+              new CozeError(
+                  json == null ? response.message() : string(json.get("error_message")),
+                  json == null ? null : string(json.get("error_code")),
+                  json == null ? null : string(json.get("error"))),
+              response.code(),
+              response.header(LOG_ID_HEADER));
+        }
+        if (!response.isSuccessful()) {
+          throw new RuntimeException(
+              String.format(
+                  "get access token failed: %d %s",
+                  response.code(), json == null ? "" : json.get("error_message")));
+        }
+        Object accessToken = json == null ? null : json.get("access_token");
+        Object expiresIn = json == null ? null : json.get("expires_in");
+        if (json == null
+            || json.get("error_code") != null
+            || !(accessToken instanceof String)
+            || !(expiresIn instanceof Number)) {
+          throw new CozeAuthException(
+              new CozeError(
+                  json == null || json.get("error_message") == null
+                      ? "invalid token response"
+                      : string(json.get("error_message")),
+                  json == null ? null : string(json.get("error_code")),
+                  json == null ? null : string(json.get("error"))),
+              response.code(),
+              response.header(LOG_ID_HEADER));
+        }
+        return OAuthToken.builder()
+            .accessToken((String) accessToken)
+            .tokenType(string(json.get("token_type")))
+            .expiresIn(((Number) expiresIn).intValue())
+            .build();
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("get access token failed: " + e.getMessage(), e);
+    }
+  }
+
+  public int getDurationSeconds() {
+    return durationSeconds;
+  }
+
+  // the body as a JSON object, or null if it is not one
+  private Map<?, ?> parse(byte[] body) {
+    try {
+      return mapper.readValue(body, Map.class);
+    } catch (JsonProcessingException e) {
+      return null;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static String string(Object value) {
+    return Objects.toString(value, null);
+  }
+}
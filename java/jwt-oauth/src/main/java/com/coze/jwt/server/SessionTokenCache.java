@@ -0,0 +1,135 @@
+package com.coze.jwt.server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import com.coze.openapi.client.auth.OAuthToken;
+
+/**
+ * JWT access tokens scoped to one end user each (the {@code session_name} claim), kept in a
+ * bounded LRU so a returning user gets their token without another signing round trip.
+ *
+ * <p>A token this close to expiry counts as a miss and is dropped. When the cache is full, an
+ * expired token among the least recently used few goes first, then the least recently used one.
+ * Concurrent misses for the same session share a single upstream call.
+ */
+public class SessionTokenCache {
+  public static final int DEFAULT_MAX_SIZE = 10_000;
+
+  // a token this close to expiry is not handed out any more
+  private static final long EXPIRY_SKEW_SECONDS = 10;
+  // how many of the least recently used entries are checked for an expired one on eviction
+  private static final int EVICTION_SCAN = 16;
+
+  private final Function<String, OAuthToken> loader;
+  private final int maxSize;
+  // access-ordered, so iteration starts at the least recently used entry; guarded by itself
+  private final LinkedHashMap<String, OAuthToken> tokens = new LinkedHashMap<>(16, 0.75f, true);
+  private final Map<String, CompletableFuture<OAuthToken>> inflight = new ConcurrentHashMap<>();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  public SessionTokenCache(Function<String, OAuthToken> loader, int maxSize) {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+    }
+    this.loader = loader;
+    this.maxSize = maxSize;
+  }
+
+  public OAuthToken get(String sessionName) {
+    synchronized (tokens) {
+      OAuthToken token = tokens.get(sessionName);
+      if (token != null) {
+        if (usable(token, nowSeconds())) {
+          hits.incrementAndGet();
+          return token;
+        }
+        tokens.remove(sessionName);
+        evictions.incrementAndGet();
+      }
+    }
+    misses.incrementAndGet();
+    CompletableFuture<OAuthToken> mine = new CompletableFuture<>();
+    CompletableFuture<OAuthToken> running = inflight.putIfAbsent(sessionName, mine);
+    if (running == null) {
+      try {
+        OAuthToken token = loader.apply(sessionName);
+        put(sessionName, token);
+        mine.complete(token);
+      } catch (Throwable e) {
+        mine.completeExceptionally(e);
+      } finally {
+        inflight.remove(sessionName, mine);
+      }
+      running = mine;
+    }
+    try {
+      return running.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  public int size() {
+    synchronized (tokens) {
+      return tokens.size();
+    }
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /** Tokens dropped because they expired or the cache was full. */
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  private void put(String sessionName, OAuthToken token) {
+    synchronized (tokens) {
+      tokens.put(sessionName, token);
+      if (tokens.size() > maxSize) {
+        evictOne();
+      }
+    }
+  }
+
+  private void evictOne() {
+    long now = nowSeconds();
+    Iterator<OAuthToken> it = tokens.values().iterator();
+    for (int i = 0; i < EVICTION_SCAN && it.hasNext(); i++) {
+      if (!usable(it.next(), now)) {
+        it.remove();
+        evictions.incrementAndGet();
+        return;
+      }
+    }
+    it = tokens.values().iterator();
+    it.next();
+    it.remove();
+    evictions.incrementAndGet();
+  }
+
+  private static boolean usable(OAuthToken token, long now) {
+    return token.getExpiresIn() - EXPIRY_SKEW_SECONDS > now;
+  }
+
+  private static long nowSeconds() {
+    return System.currentTimeMillis() / 1000;
+  }
+}
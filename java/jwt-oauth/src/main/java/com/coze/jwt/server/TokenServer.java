@@ -1,127 +1,507 @@
 package com.coze.jwt.server;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Base64;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import javax.servlet.http.Cookie;
 
 import org.apache.commons.io.IOUtils;
 
+import com.coze.jwt.config.ReloadableConfig;
+import com.coze.jwt.log.EventLog;
+import com.coze.jwt.metrics.Metrics;
+import com.coze.jwt.model.Introspection;
+import com.coze.jwt.model.TokenJson;
+import com.coze.jwt.store.InMemoryTokenStore;
+import com.coze.jwt.store.TokenStore;
 import com.coze.openapi.client.auth.OAuthConfig;
 import com.coze.openapi.client.auth.OAuthToken;
 import com.coze.openapi.service.auth.JWTOAuthClient;
 
 import io.javalin.Javalin;
-import io.javalin.http.staticfiles.Location;
+import io.javalin.http.Context;
 
 public class TokenServer {
-  private final JWTOAuthClient oauthClient;
+  private static final String SESSION_COOKIE = "coze_session";
+  private static final String[] PAGE_LINKS = {"/", "/login", "/callback", "/refresh_token"};
+  private static final int MAX_SESSION_NAME_LENGTH = 128;
+  // 一次批量获取最多多少个用户的 token
+  private static final int MAX_BATCH_SIZE = 100;
+  // 一次批量校验最多多少个 access token; 校验不调用上游, 上限比批量获取高
+  private static final int MAX_INTROSPECT_BATCH_SIZE = 1000;
+
+  private final TokenStore tokenStore;
+  private final Metrics metrics;
+  // 非空时在独立线程上调用 Coze 授权接口, 上游变慢时不会占满 Jetty 的请求线程
+  private final UpstreamExecutor upstreamExecutor;
+  // 按 access token 的哈希查找存储它的会话, 供 /introspect 使用
+  private final TokenIntrospector introspector;
+  // 决定谁能访问 /metrics, /admin/upstream 和 /introspect
+  private final AdminAccess adminAccess;
+  private final SecureRandom random = new SecureRandom();
   private Javalin app;
-  private final OAuthConfig appConfig;
+  // 首页只依赖应用配置, 启动时和配置重新加载后渲染一次并预先压缩
+  private volatile StaticAssets.Asset indexPage;
+  private volatile String pagePrefix = "";
+  private HtmlTemplate callbackTemplate;
+  private HtmlTemplate errorTemplate;
+  // 配置文件修改后会替换为新的配置, 每次使用时读取
+  private final ReloadableConfig<?> oauth;
+  private final AccessTokenCache tokenCache;
+  // 非空时 /callback?session_name=<用户标识> 返回该用户专属的 token
+  private final SessionTokenCache sessionTokens;
+  // 非空时对 Coze 授权接口的调用限流并熔断, 由 tokenCache 和 sessionTokens 的加载函数使用,
+  // 状态见 /admin/upstream
+  private final UpstreamGuard upstreamGuard;
 
   public TokenServer(JWTOAuthClient oauthClient, OAuthConfig appConfig) {
-    this.oauthClient = oauthClient;
-    this.appConfig = appConfig;
+    this(oauthClient, appConfig, new Metrics());
+  }
+
+  private TokenServer(JWTOAuthClient oauthClient, OAuthConfig appConfig, Metrics metrics) {
+    this(
+        oauthClient,
+        appConfig,
+        new AccessTokenCache(
+            () -> metrics.upstream("getAccessToken", oauthClient::getAccessToken),
+            AccessTokenCache.DEFAULT_REFRESH_RATIO),
+        new InMemoryTokenStore(),
+        metrics,
+        null);
+  }
+
+  public TokenServer(
+      JWTOAuthClient oauthClient,
+      OAuthConfig appConfig,
+      AccessTokenCache tokenCache,
+      TokenStore tokenStore,
+      Metrics metrics) {
+    this(oauthClient, appConfig, tokenCache, tokenStore, metrics, null);
+  }
+
+  public TokenServer(
+      JWTOAuthClient oauthClient,
+      OAuthConfig appConfig,
+      AccessTokenCache tokenCache,
+      TokenStore tokenStore,
+      Metrics metrics,
+      UpstreamExecutor upstreamExecutor) {
+    this(oauthClient, appConfig, tokenCache, tokenStore, metrics, upstreamExecutor, null);
+  }
+
+  public TokenServer(
+      JWTOAuthClient oauthClient,
+      OAuthConfig appConfig,
+      AccessTokenCache tokenCache,
+      TokenStore tokenStore,
+      Metrics metrics,
+      UpstreamExecutor upstreamExecutor,
+      SessionTokenCache sessionTokens) {
+    this(
+        oauthClient,
+        appConfig,
+        tokenCache,
+        tokenStore,
+        metrics,
+        upstreamExecutor,
+        sessionTokens,
+        null);
+  }
+
+  /**
+   * {@code upstreamGuard} is only reported and reset here; the loaders of {@code tokenCache} and
+   * {@code sessionTokens} are expected to call the Coze auth API through it.
+   */
+  public TokenServer(
+      JWTOAuthClient oauthClient,
+      OAuthConfig appConfig,
+      AccessTokenCache tokenCache,
+      TokenStore tokenStore,
+      Metrics metrics,
+      UpstreamExecutor upstreamExecutor,
+      SessionTokenCache sessionTokens,
+      UpstreamGuard upstreamGuard) {
+    this(
+        ReloadableConfig.fixed(appConfig, oauthClient),
+        tokenCache,
+        tokenStore,
+        metrics,
+        upstreamExecutor,
+        sessionTokens,
+        upstreamGuard);
+  }
+
+  /**
+   * A server that follows the config {@code oauth} reloads. Only the config is read here: the
+   * loaders of {@code tokenCache} and {@code sessionTokens} are expected to call the client {@code
+   * oauth} holds at the time of the call.
+   */
+  public TokenServer(
+      ReloadableConfig<?> oauth,
+      AccessTokenCache tokenCache,
+      TokenStore tokenStore,
+      Metrics metrics,
+      UpstreamExecutor upstreamExecutor,
+      SessionTokenCache sessionTokens,
+      UpstreamGuard upstreamGuard) {
+    this(
+        oauth,
+        tokenCache,
+        tokenStore,
+        metrics,
+        upstreamExecutor,
+        sessionTokens,
+        upstreamGuard,
+        AdminAccess.loopbackOnly());
+  }
+
+  /**
+   * A server whose metrics, admin and introspection routes only answer the requests {@code
+   * adminAccess} allows; the other constructors allow direct requests from this host only.
+   */
+  public TokenServer(
+      ReloadableConfig<?> oauth,
+      AccessTokenCache tokenCache,
+      TokenStore tokenStore,
+      Metrics metrics,
+      UpstreamExecutor upstreamExecutor,
+      SessionTokenCache sessionTokens,
+      UpstreamGuard upstreamGuard,
+      AdminAccess adminAccess) {
+    this.oauth = oauth;
+    this.tokenCache = tokenCache;
+    this.tokenStore = tokenStore;
+    this.metrics = metrics;
+    this.upstreamExecutor = upstreamExecutor;
+    this.sessionTokens = sessionTokens;
+    this.upstreamGuard = upstreamGuard;
+    this.adminAccess = adminAccess;
+    compilePages("");
+    oauth.onReload(snapshot -> renderIndexPage());
+    oauth.bindMetrics(metrics);
+    metrics.bindCache(
+        "jwt_token", tokenCache, AccessTokenCache::getHits, AccessTokenCache::getMisses);
+    metrics.gauge("coze.token.store.size", tokenStore, TokenStore::size);
+    this.introspector =
+        new TokenIntrospector(
+            tokenStore,
+            () -> oauth.config().getClientId(),
+            key -> key.startsWith(genTokenSessionKey() + ":"),
+            TokenIntrospector.DEFAULT_MAX_SIZE);
+    metrics.bindCache(
+        "introspect", introspector, TokenIntrospector::getHits, TokenIntrospector::getMisses);
+    metrics.gauge("coze.introspect.cache.size", introspector, TokenIntrospector::size);
+    if (upstreamExecutor != null) {
+      metrics.gauge("coze.upstream.inflight", upstreamExecutor, UpstreamExecutor::inFlight);
+      metrics.counter("coze.upstream.rejected", upstreamExecutor, UpstreamExecutor::getRejected);
+      metrics.counter("coze.upstream.timeouts", upstreamExecutor, UpstreamExecutor::getTimedOut);
+    }
+    if (sessionTokens != null) {
+      metrics.bindCache(
+          "jwt_session_token",
+          sessionTokens,
+          SessionTokenCache::getHits,
+          SessionTokenCache::getMisses);
+      metrics.counter("coze.jwt.session.evictions", sessionTokens, SessionTokenCache::getEvictions);
+      metrics.gauge("coze.jwt.session.tokens", sessionTokens, SessionTokenCache::size);
+    }
+    if (upstreamGuard != null) {
+      upstreamGuard.bindMetrics(metrics);
+    }
   }
 
   public void start(int port) {
     app =
         Javalin.create(
-                config -> {
-                  config.addStaticFiles(
-                      staticFiles -> {
-                        staticFiles.directory = "/assets";
-                        staticFiles.location = Location.CLASSPATH;
-                        staticFiles.hostedPath = "/assets";
-                      });
-                  config.addStaticFiles(
-                      staticFiles -> {
-                        staticFiles.directory = "/websites";
-                        staticFiles.location = Location.CLASSPATH;
-                      });
-                })
-            .get(
-                "/",
-                ctx -> {
-                  Map<String, String> model = new HashMap<>();
-                  model.put("client_type", appConfig.getClientType());
-                  model.put("client_id", appConfig.getClientId());
-                  String html = null;
-                  try {
-                    html = formatHtml(readFromResources("websites/index.html"), model);
-                  } catch (Exception e) {
-                    e.printStackTrace();
-                    throw e;
-                  }
-                  ctx.contentType("text/html");
-                  ctx.html(html);
-                })
-            .get(
-                "/callback",
+            config -> {
+              config.requestLogger(
+                  (ctx, ms) ->
+                      metrics.recordRequest(
+                          routeOf(ctx), ctx.method(), ctx.status(), (long) (ms * 1e6)));
+            });
+    register(app, "", "http://127.0.0.1:" + port);
+    StaticAssets.fromClasspath("assets", StaticAssets.ASSET_CACHE_CONTROL).register(app, "/assets");
+    StaticAssets.fromClasspath("websites", StaticAssets.PAGE_CACHE_CONTROL).register(app, "");
+    app
+        .get(
+            "/metrics",
+            adminAccess.guard(
                 ctx -> {
-                  try {
-                    OAuthToken tokenResp = oauthClient.getAccessToken();
-                    ctx.sessionAttribute(genTokenSessionKey(), tokenResp);
-                    Map<String, String> model = new HashMap<>();
-                    model.put("token_type", tokenResp.getTokenType());
-                    model.put("access_token", tokenResp.getAccessToken());
-                    model.put("refresh_token", "");
-                    model.put(
-                        "expires_in",
-                        String.format(
-                            "%d (%s)",
-                            tokenResp.getExpiresIn(),
-                            timestampToDateTime(tokenResp.getExpiresIn())));
-                    if ("XMLHttpRequest".equals(ctx.req.getHeader("X-Requested-With"))) {
-                      ctx.json(model);
-                      return;
+                  ctx.contentType(Metrics.CONTENT_TYPE);
+                  ctx.result(metrics.scrape());
+                }));
+    if (upstreamGuard != null) {
+      app.get("/admin/upstream", adminAccess.guard(ctx -> ctx.json(upstreamGuard.state())))
+          .post(
+              "/admin/upstream/reset",
+              adminAccess.guard(
+                  ctx -> {
+                    upstreamGuard.reset();
+                    ctx.json(upstreamGuard.state());
+                  }));
+    }
+    app.exception(Exception.class, this::renderError)
+        .start("127.0.0.1", port);
+  }
+
+  /**
+   * Adds the pages and routes of this server to {@code javalin} under {@code prefix} ("" for the
+   * root), so several servers can share one Javalin instance. {@code baseUrl} is accepted for
+   * symmetry with the other flows; JWT apps have no redirect. Exceptions are not mapped here; the
+   * owner of {@code javalin} should send them to {@link #renderError}.
+   */
+  public void register(Javalin javalin, String prefix, String baseUrl) {
+    compilePages(prefix);
+    javalin
+        .get(prefix + "/", ctx -> indexPage.send(ctx))
+        .get(
+            prefix + "/callback",
+            ctx -> {
+              String storeKey = genTokenStoreKey(ctx);
+              String sessionName = ctx.queryParam("session_name");
+              if (sessionName != null && !validSessionName(sessionName)) {
+                throw new RuntimeException("Authorization failed: invalid session_name.");
+              }
+              boolean ajax = "XMLHttpRequest".equals(ctx.req.getHeader("X-Requested-With"));
+              ctx.contentType(ajax ? TokenJson.CONTENT_TYPE : "text/html");
+              respond(
+                  ctx,
+                  () -> {
+                    try {
+                      OAuthToken tokenResp =
+                          sessionName == null ? tokenCache.get() : sessionTokens.get(sessionName);
+                      tokenStore.put(storeKey, tokenResp);
+                      introspector.add(storeKey, sessionName, tokenResp);
+                      audit("token_issued", tokenResp, sessionName);
+                      String expiresIn =
+                          String.format(
+                              "%d (%s)",
+                              tokenResp.getExpiresIn(),
+                              timestampToDateTime(tokenResp.getExpiresIn()));
+                      if (ajax) {
+                        return TokenJson.toCallbackBytes(tokenResp, expiresIn);
+                      }
+                      Map<String, String> model = new HashMap<>();
+                      model.put("token_type", tokenResp.getTokenType());
+                      model.put("access_token", tokenResp.getAccessToken());
+                      model.put("refresh_token", "");
+                      model.put("expires_in", expiresIn);
+                      return callbackTemplate.render(model);
+
+                    } catch (UpstreamUnavailableException e) {
+                      throw e;
+                    } catch (Exception e) {
+                      throw new RuntimeException("Authorization failed: " + e.getMessage(), e);
                     }
-                    String html = formatHtml(readFromResources("websites/callback.html"), model);
-                    ctx.contentType("text/html");
-                    ctx.result(html);
-
-                  } catch (Exception e) {
-                    e.printStackTrace();
-                    throw new RuntimeException("Authorization failed: " + e.getMessage());
-                  }
-                })
-            .get(
-                "/login",
-                ctx -> {
-                  ctx.redirect("/callback");
-                })
-            .exception(
-                Exception.class,
-                (e, ctx) -> {
-                  Map<String, String> model = new HashMap<>();
-                  model.put("error", e.getMessage());
-                  String html = null;
-                  try {
-                    html = formatHtml(readFromResources("websites/error.html"), model);
-                  } catch (Exception e1) {
-                    ctx.status(500).result("Error getting html: " + e.getMessage());
-                    return;
-                  }
-                  ctx.contentType("text/html");
-                  ctx.result(html);
-                })
-            .start("127.0.0.1", port);
+                  });
+            })
+        .get(
+            prefix + "/login",
+            ctx -> {
+              ctx.redirect(prefix + "/callback");
+            })
+        .post(
+            prefix + "/session_tokens",
+            ctx -> {
+              if (sessionTokens == null) {
+                throw new RuntimeException("Authorization failed: per-user tokens are disabled.");
+              }
+              String[] sessionNames = ctx.bodyAsClass(String[].class);
+              if (sessionNames.length > MAX_BATCH_SIZE) {
+                throw new RuntimeException(
+                    "Authorization failed: at most "
+                        + MAX_BATCH_SIZE
+                        + " session names per request.");
+              }
+              ctx.contentType(TokenJson.CONTENT_TYPE);
+              streamTokens(
+                  ctx,
+                  sessionNames,
+                  sessionName -> {
+                    if (!validSessionName(sessionName)) {
+                      throw new IllegalArgumentException("invalid session_name");
+                    }
+                    return audit("token_issued", sessionTokens.get(sessionName), sessionName);
+                  });
+            })
+        .post(prefix + "/introspect", adminAccess.guard(this::introspect))
+        .post(prefix + "/introspect_tokens", adminAccess.guard(this::introspectBatch));
+  }
+
+  // tells whether the access token in the form field "token" is one a browser got from /callback
+  // and this server still holds, in the shape of an RFC 7662 introspection response
+  private void introspect(Context ctx) {
+    String token = ctx.formParam("token");
+    if (token == null) {
+      throw new RuntimeException("Introspection failed: no token given.");
+    }
+    ctx.header("Cache-Control", "no-store");
+    ctx.contentType(TokenJson.CONTENT_TYPE);
+    ctx.result(introspector.introspect(token).toBytes());
+  }
+
+  // introspects a JSON array of access tokens, answering with an array in the same order
+  private void introspectBatch(Context ctx) throws IOException {
+    String[] tokens = ctx.bodyAsClass(String[].class);
+    if (tokens.length > MAX_INTROSPECT_BATCH_SIZE) {
+      throw new RuntimeException(
+          "Introspection failed: at most " + MAX_INTROSPECT_BATCH_SIZE + " tokens per request.");
+    }
+    ctx.header("Cache-Control", "no-store");
+    ctx.contentType(TokenJson.CONTENT_TYPE);
+    try (Introspection.Batch batch = Introspection.batch(ctx.res.getOutputStream())) {
+      for (String token : tokens) {
+        batch.add(introspector.introspect(token));
+      }
+    }
+  }
+
+  /** Renders the error page for an exception thrown by one of this server's routes. */
+  public void renderError(Exception e, Context ctx) {
+    metrics.event(
+        "error",
+        "path",
+        ctx.path(),
+        "exception",
+        e.getClass().getName(),
+        "cause",
+        e.getCause() != null ? e.getCause().getClass().getName() : null,
+        "message",
+        e.getMessage());
+    Map<String, String> model = new HashMap<>();
+    model.put("error", e.getMessage());
+    String html = null;
+    try {
+      html = errorTemplate.render(model);
+    } catch (Exception e1) {
+      ctx.status(500).result("Error getting html: " + e.getMessage());
+      return;
+    }
+    if (e instanceof UpstreamUnavailableException) {
+      int status = ((UpstreamUnavailableException) e).getStatus();
+      ctx.status(status);
+      if (status == 429 || status == 503) {
+        long retryAfter = upstreamGuard != null ? upstreamGuard.retryAfterSeconds() : 1;
+        ctx.header("Retry-After", String.valueOf(retryAfter));
+      }
+    }
+    ctx.contentType("text/html");
+    ctx.result(html);
   }
 
   public void stop() {
     if (app != null) {
       app.stop();
     }
+    tokenStore.close();
+    tokenCache.close();
+    oauth.close();
+    if (upstreamExecutor != null) {
+      upstreamExecutor.close();
+    }
+  }
+
+  // runs a handler that calls the Coze auth API: inline, or on the upstream executor so the Jetty
+  // thread is released while it waits. A String or byte[] result is sent as is, anything else as
+  // JSON.
+  private void respond(Context ctx, Supplier<?> handler) {
+    if (upstreamExecutor != null) {
+      ctx.future(
+          upstreamExecutor.submit(
+              () -> {
+                Object result = handler.get();
+                return result instanceof byte[]
+                    ? new ByteArrayInputStream((byte[]) result)
+                    : result;
+              }));
+      return;
+    }
+    Object result = handler.get();
+    if (result instanceof String) {
+      ctx.result((String) result);
+    } else if (result instanceof byte[]) {
+      ctx.result((byte[]) result);
+    } else {
+      ctx.json(result);
+    }
   }
 
-  private String formatHtml(String html, Map<String, String> model) {
-    for (Map.Entry<String, String> entry : model.entrySet()) {
-      html = html.replace("{{" + entry.getKey() + "}}", entry.getValue());
+  // writes one token response per key as a JSON array, in the order of the keys, each flushed as
+  // soon as its token is there. A key that fails gets an {"error": ...} element instead. With the
+  // upstream executor all keys are loaded concurrently.
+  private void streamTokens(Context ctx, String[] keys, Function<String, OAuthToken> load)
+      throws IOException {
+    List<CompletableFuture<OAuthToken>> loading = new ArrayList<>(keys.length);
+    if (upstreamExecutor != null) {
+      for (String key : keys) {
+        CompletableFuture<OAuthToken> token;
+        try {
+          token = upstreamExecutor.submit(() -> load.apply(key));
+        } catch (UpstreamUnavailableException e) {
+          token = new CompletableFuture<>();
+          token.completeExceptionally(e);
+        }
+        loading.add(token);
+      }
+    }
+    try (TokenJson.Batch batch = TokenJson.batch(ctx.res.getOutputStream())) {
+      for (int i = 0; i < keys.length; i++) {
+        try {
+          batch.token(loading.isEmpty() ? load.apply(keys[i]) : loading.get(i).join());
+        } catch (CompletionException e) {
+          batch.error(String.valueOf(e.getCause().getMessage()));
+        } catch (RuntimeException e) {
+          batch.error(String.valueOf(e.getMessage()));
+        }
+      }
+    }
+  }
+
+  // the pages link to the routes by absolute path, so under a prefix the links must include it
+  private void compilePages(String prefix) {
+    pagePrefix = prefix;
+    renderIndexPage();
+    callbackTemplate =
+        HtmlTemplate.compile(withPrefix(readFromResources("websites/callback.html"), prefix));
+    errorTemplate =
+        HtmlTemplate.compile(withPrefix(readFromResources("websites/error.html"), prefix));
+  }
+
+  private void renderIndexPage() {
+    OAuthConfig appConfig = oauth.config();
+    Map<String, String> model = new HashMap<>();
+    model.put("client_id", appConfig.getClientId());
+    model.put("client_type", appConfig.getClientType());
+    indexPage =
+        StaticAssets.page(
+            HtmlTemplate.compile(withPrefix(readFromResources("websites/index.html"), pagePrefix))
+                .render(model));
+  }
+
+  private static String withPrefix(String html, String prefix) {
+    if (prefix.isEmpty()) {
+      return html;
+    }
+    for (String route : PAGE_LINKS) {
+      html =
+          html.replace("\"" + route + "\"", "\"" + prefix + route + "\"")
+              .replace("'" + route + "'", "'" + prefix + route + "'");
     }
     return html;
   }
@@ -140,13 +520,68 @@ public class TokenServer {
     }
   }
 
+  // records which token went out, by fingerprint only; returns the token
+  private OAuthToken audit(String action, OAuthToken token, String sessionName) {
+    metrics.event(
+        "audit",
+        "action",
+        action,
+        "client_id",
+        oauth.config().getClientId(),
+        "session_name",
+        sessionName,
+        "access_token",
+        EventLog.secret(token.getAccessToken()),
+        "refresh_token",
+        EventLog.secret(token.getRefreshToken()),
+        "expires_in",
+        token.getExpiresIn());
+    return token;
+  }
+
+  /** The rate limit and circuit breaker of this app's upstream calls; null when there are none. */
+  public UpstreamGuard getUpstreamGuard() {
+    return upstreamGuard;
+  }
+
   public static String timestampToDateTime(long timestamp) {
     LocalDateTime dateTime =
         LocalDateTime.ofInstant(Instant.ofEpochSecond(timestamp), ZoneId.systemDefault());
     return dateTime.format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
   }
 
+  private boolean validSessionName(String sessionName) {
+    return sessionTokens != null
+        && sessionName != null
+        && !sessionName.isEmpty()
+        && sessionName.length() <= MAX_SESSION_NAME_LENGTH;
+  }
+
   private String genTokenSessionKey() {
-    return String.format("access_token_%s", appConfig.getClientId());
+    return String.format("access_token_%s", oauth.config().getClientId());
+  }
+
+  private static String routeOf(Context ctx) {
+    String route = ctx.matchedPath();
+    return route == null || route.isEmpty() ? "static" : route;
+  }
+
+  private String genTokenStoreKey(Context ctx) {
+    return genTokenSessionKey() + ":" + sessionId(ctx);
+  }
+
+  // identifies the browser with our own cookie, so tokens do not live in the servlet session
+  private String sessionId(Context ctx) {
+    String sessionId = ctx.cookie(SESSION_COOKIE);
+    if (sessionId == null || sessionId.isEmpty() || sessionId.length() > 64) {
+      byte[] bytes = new byte[16];
+      random.nextBytes(bytes);
+      sessionId = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+      Cookie cookie = new Cookie(SESSION_COOKIE, sessionId);
+      cookie.setHttpOnly(true);
+      cookie.setPath("/");
+      ctx.res.addCookie(cookie);
+    }
+    return sessionId;
   }
 }
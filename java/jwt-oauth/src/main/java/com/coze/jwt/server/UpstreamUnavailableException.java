@@ -0,0 +1,15 @@
+package com.coze.jwt.server;
+
+/** The Coze auth API could not be called in time; carries the HTTP status to answer with. */
+public class UpstreamUnavailableException extends RuntimeException {
+  private final int status;
+
+  public UpstreamUnavailableException(int status, String message) {
+    super(message);
+    this.status = status;
+  }
+
+  public int getStatus() {
+    return status;
+  }
+}
@@ -0,0 +1,487 @@
+package com.coze.jwt.store;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import com.coze.openapi.client.auth.OAuthToken;
+
+/**
+ * Token store backed by a memory-mapped file, so tokens live in the page cache instead of on the
+ * heap, survive restarts and can be shared by several processes on the same host.
+ *
+ * <p>The file is an open-addressing hash table of fixed-size slots. Writers from all processes are
+ * serialized by a file lock on the header; readers take no lock and use a per-slot sequence number
+ * (odd while a write is in progress) to detect and retry torn reads. Accesses to a volatile field
+ * between the sequence number and the rest of the slot keep them in order. A reader that cannot get
+ * a clean read of a slot within {@value #MAX_READ_ATTEMPTS} attempts reads under the lock instead;
+ * a slot still odd there was left by a writer that died mid-write, and is cleared.
+ *
+ * <p>Removing a key marks its slot deleted, as a lookup must probe past it. Deleted slots that no
+ * longer lead to a used one become empty again at once; once more than a quarter of the slots are
+ * deleted anyway, the table is compacted in place under the lock: deleted and expired slots are
+ * emptied and every entry moves back to the first free slot on its probe path, so misses stop early
+ * again. Entries move while lock-free readers may be looking for them, so a compaction bumps a
+ * counter in the header (odd while it runs) and a reader that found nothing reads again under the
+ * lock if that counter changed. The file holds the tokens in plain text and is created readable and
+ * writable by its owner only where the file system supports POSIX permissions.
+ *
+ * <p>{@link #findKey} uses an index on the heap, filled from the file when it is opened and kept up
+ * to date by this process's writes; tokens another process stored since are not in it.
+ */
+public class MappedFileTokenStore implements TokenStore {
+  public static final int DEFAULT_CAPACITY = 1 << 18;
+  public static final int SLOT_SIZE = 512;
+
+  private static final int MAGIC = 0x435a5453; // "CZTS"
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 64;
+  private static final int HEADER_CAPACITY = 8;
+  private static final int HEADER_SLOT_SIZE = 12;
+  private static final int HEADER_COUNT = 16;
+  private static final int HEADER_DELETED = 20;
+  private static final int HEADER_EPOCH = 24;
+
+  private static final byte EMPTY = 0;
+  private static final byte USED = 1;
+  private static final byte DELETED = 2;
+
+  // slot layout
+  private static final int SEQ = 0;
+  private static final int STATE = 4;
+  private static final int EXPIRES_AT = 8;
+  private static final int HASH = 16;
+  private static final int PAYLOAD_LENGTH = 20;
+  private static final int PAYLOAD = 22;
+  private static final int MAX_PAYLOAD = SLOT_SIZE - PAYLOAD;
+  // 超过这个次数仍读不到完整的槽时改为加锁读取
+  static final int MAX_READ_ATTEMPTS = 1000;
+
+  private final FileChannel channel;
+  private final MappedByteBuffer buffer;
+  private final int capacity;
+  private final long retainSeconds;
+  private final AccessTokenIndex accessTokens = new AccessTokenIndex();
+  // the mapped buffer's gets and puts are plain accesses that may be reordered, and Java 8 has no
+  // VarHandle; writing this field orders the sequence number against the slot like a store fence,
+  // reading it like a load fence
+  private volatile int fence;
+
+  public MappedFileTokenStore(Path file) {
+    this(file, DEFAULT_CAPACITY, InMemoryTokenStore.DEFAULT_RETAIN_SECONDS);
+  }
+
+  public MappedFileTokenStore(Path file, int capacity, long retainSeconds) {
+    if (capacity <= 0 || (long) capacity * SLOT_SIZE + HEADER_SIZE > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("invalid capacity: " + capacity);
+    }
+    this.capacity = capacity;
+    this.retainSeconds = retainSeconds;
+    try {
+      channel =
+          OwnerOnlyFiles.open(
+              file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      try (FileLock ignored = channel.lock(0, HEADER_SIZE, false)) {
+        boolean fresh = channel.size() == 0;
+        long size = HEADER_SIZE + (long) capacity * SLOT_SIZE;
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        if (fresh) {
+          buffer.putInt(HEADER_CAPACITY, capacity);
+          buffer.putInt(HEADER_SLOT_SIZE, SLOT_SIZE);
+          buffer.putInt(4, VERSION);
+          buffer.putInt(0, MAGIC);
+        } else if (buffer.getInt(0) != MAGIC
+            || buffer.getInt(4) != VERSION
+            || buffer.getInt(HEADER_CAPACITY) != capacity
+            || buffer.getInt(HEADER_SLOT_SIZE) != SLOT_SIZE) {
+          throw new IllegalStateException("incompatible token store file: " + file);
+        }
+        int deleted = 0;
+        for (int i = 0; i < capacity; i++) {
+          addToIndex(offset(i));
+          if (buffer.get(offset(i) + STATE) == DELETED) {
+            deleted++;
+          }
+        }
+        // files written before the count was kept start from the table itself
+        buffer.putInt(HEADER_DELETED, deleted);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException("open token store failed: " + file, e);
+    }
+  }
+
+  @Override
+  public OAuthToken get(String key) {
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    int hash = key.hashCode();
+    long now = InMemoryTokenStore.nowSeconds();
+    int epoch = buffer.getInt(HEADER_EPOCH);
+    if ((epoch & 1) != 0) {
+      return lockedGet(keyBytes, hash, now);
+    }
+    loadFence();
+    int home = index(hash);
+    for (int i = 0; i < capacity; i++) {
+      int slot = offset((home + i) % capacity);
+      for (int attempt = 0; ; attempt++) {
+        if (attempt == MAX_READ_ATTEMPTS) {
+          return lockedGet(keyBytes, hash, now);
+        }
+        int seq = buffer.getInt(slot + SEQ);
+        if ((seq & 1) != 0) {
+          Thread.yield();
+          continue;
+        }
+        loadFence();
+        byte state = buffer.get(slot + STATE);
+        boolean candidate = state == USED && buffer.getInt(slot + HASH) == hash;
+        long expiresAt = buffer.getLong(slot + EXPIRES_AT);
+        byte[] payload = candidate ? readPayload(slot) : null;
+        loadFence();
+        if (buffer.getInt(slot + SEQ) != seq) {
+          continue;
+        }
+        if (state == EMPTY) {
+          return missed(keyBytes, hash, now, epoch);
+        }
+        if (!candidate) {
+          break;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(payload);
+        if (!Arrays.equals(keyBytes, readKey(buf))) {
+          break;
+        }
+        return expiresAt > now ? TokenCodec.decode(buf) : null;
+      }
+    }
+    return missed(keyBytes, hash, now, epoch);
+  }
+
+  @Override
+  public void put(String key, OAuthToken token) {
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    byte[] tokenBytes = TokenCodec.encode(token);
+    if (TokenCodec.length(keyBytes) + tokenBytes.length > MAX_PAYLOAD) {
+      throw new IllegalArgumentException("token entry too large for slot: " + key);
+    }
+    ByteBuffer payload = ByteBuffer.allocate(TokenCodec.length(keyBytes) + tokenBytes.length);
+    TokenCodec.putBytes(payload, keyBytes);
+    payload.put(tokenBytes);
+    long expiresAt = InMemoryTokenStore.expiresAt(token, retainSeconds);
+    int hash = key.hashCode();
+    withWriteLock(
+        () -> {
+          int slot = find(keyBytes, hash);
+          boolean added = slot < 0;
+          if (added) {
+            slot = freeSlot(hash);
+            clearIfTorn(slot);
+            if (buffer.get(slot + STATE) == DELETED) {
+              addDeleted(-1);
+            }
+          }
+          removeFromIndex(slot);
+          writeSlot(slot, USED, hash, expiresAt, payload.array());
+          if (added) {
+            addCount(1);
+          }
+          accessTokens.add(key, token);
+        });
+  }
+
+  @Override
+  public void remove(String key) {
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    int hash = key.hashCode();
+    withWriteLock(
+        () -> {
+          int slot = find(keyBytes, hash);
+          if (slot >= 0) {
+            removeFromIndex(slot);
+            writeSlot(slot, DELETED, 0, 0, new byte[0]);
+            addCount(-1);
+            addDeleted(1);
+            clearTombstones(slot);
+            // 删除标记超过容量的四分之一时整理整个表
+            if (buffer.getInt(HEADER_DELETED) > capacity / 4) {
+              compactSlots();
+            }
+          }
+        });
+  }
+
+  @Override
+  public String findKey(String accessToken) {
+    return accessTokens.find(accessToken);
+  }
+
+  @Override
+  public int size() {
+    return buffer.getInt(HEADER_COUNT);
+  }
+
+  @Override
+  public void close() {
+    try {
+      buffer.force();
+      channel.close();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  // a lock-free lookup that found nothing may have raced with a compaction moving the entry
+  private OAuthToken missed(byte[] keyBytes, int hash, long now, int epoch) {
+    loadFence();
+    return buffer.getInt(HEADER_EPOCH) == epoch ? null : lockedGet(keyBytes, hash, now);
+  }
+
+  // reads under the write lock, for when lock-free reads keep failing
+  private OAuthToken lockedGet(byte[] keyBytes, int hash, long now) {
+    OAuthToken[] found = new OAuthToken[1];
+    withWriteLock(
+        () -> {
+          int slot = find(keyBytes, hash);
+          if (slot >= 0 && buffer.getLong(slot + EXPIRES_AT) > now) {
+            ByteBuffer buf = ByteBuffer.wrap(readPayload(slot));
+            readKey(buf);
+            found[0] = TokenCodec.decode(buf);
+          }
+        });
+    return found[0];
+  }
+
+  // callers hold the write lock, so slots cannot change under them
+  private int find(byte[] keyBytes, int hash) {
+    int home = index(hash);
+    for (int i = 0; i < capacity; i++) {
+      int slot = offset((home + i) % capacity);
+      clearIfTorn(slot);
+      byte state = buffer.get(slot + STATE);
+      if (state == EMPTY) {
+        return -1;
+      }
+      if (state == USED
+          && buffer.getInt(slot + HASH) == hash
+          && Arrays.equals(keyBytes, readKey(ByteBuffer.wrap(readPayload(slot))))) {
+        return slot;
+      }
+    }
+    return -1;
+  }
+
+  // first empty, deleted or expired slot on the probe path; evicts the home slot when full
+  private int freeSlot(int hash) {
+    long now = InMemoryTokenStore.nowSeconds();
+    int home = index(hash);
+    for (int i = 0; i < capacity; i++) {
+      int slot = offset((home + i) % capacity);
+      byte state = buffer.get(slot + STATE);
+      if (state != USED) {
+        return slot;
+      }
+      if (buffer.getLong(slot + EXPIRES_AT) <= now) {
+        addCount(-1);
+        return slot;
+      }
+    }
+    addCount(-1);
+    return offset(home);
+  }
+
+  // under the write lock no write is in progress, so an odd sequence number means the writer died
+  // halfway; the slot's contents cannot be trusted and it becomes a deleted slot
+  private void clearIfTorn(int slot) {
+    if ((buffer.getInt(slot + SEQ) & 1) != 0) {
+      writeSlot(slot, DELETED, 0, 0, new byte[0]);
+      addDeleted(1);
+    }
+  }
+
+  private void writeSlot(int slot, byte state, int hash, long expiresAt, byte[] payload) {
+    // an odd number left by a dead writer is moved on to the next even one
+    int seq = (buffer.getInt(slot + SEQ) + 1) & ~1;
+    buffer.putInt(slot + SEQ, seq + 1);
+    storeFence();
+    buffer.put(slot + STATE, state);
+    buffer.putLong(slot + EXPIRES_AT, expiresAt);
+    buffer.putInt(slot + HASH, hash);
+    buffer.putShort(slot + PAYLOAD_LENGTH, (short) payload.length);
+    ByteBuffer dst = buffer.duplicate();
+    dst.position(slot + PAYLOAD);
+    dst.put(payload);
+    storeFence();
+    buffer.putInt(slot + SEQ, seq + 2);
+  }
+
+  // adds the live token a slot holds to the index; called with the header locked
+  private void addToIndex(int slot) {
+    if (buffer.get(slot + STATE) != USED
+        || (buffer.getInt(slot + SEQ) & 1) != 0
+        || buffer.getLong(slot + EXPIRES_AT) <= InMemoryTokenStore.nowSeconds()) {
+      return;
+    }
+    ByteBuffer buf = ByteBuffer.wrap(readPayload(slot));
+    byte[] key = readKey(buf);
+    if (key != null) {
+      accessTokens.add(new String(key, StandardCharsets.UTF_8), TokenCodec.decode(buf));
+    }
+  }
+
+  // drops the token a slot holds from the index before the slot is overwritten
+  private void removeFromIndex(int slot) {
+    if (buffer.get(slot + STATE) != USED) {
+      return;
+    }
+    ByteBuffer buf = ByteBuffer.wrap(readPayload(slot));
+    byte[] key = readKey(buf);
+    if (key != null) {
+      accessTokens.remove(new String(key, StandardCharsets.UTF_8), TokenCodec.decode(buf));
+    }
+  }
+
+  // a deleted slot followed by an empty one ends every probe that reaches it, so it can be empty
+  // itself, and so can the deleted slots right before it; called with the header locked
+  private void clearTombstones(int slot) {
+    int index = (slot - HEADER_SIZE) / SLOT_SIZE;
+    if (buffer.get(offset((index + 1) % capacity) + STATE) != EMPTY) {
+      return;
+    }
+    while (buffer.get(offset(index) + STATE) == DELETED) {
+      writeSlot(offset(index), EMPTY, 0, 0, new byte[0]);
+      addDeleted(-1);
+      index = (index - 1 + capacity) % capacity;
+    }
+  }
+
+  // empties deleted and expired slots, then moves every entry back to the first empty slot on its
+  // probe path; called with the header locked
+  private void compactSlots() {
+    // an odd number left by a process that died compacting is moved on to the next even one
+    int epoch = (buffer.getInt(HEADER_EPOCH) + 1) & ~1;
+    buffer.putInt(HEADER_EPOCH, epoch + 1);
+    storeFence();
+    long now = InMemoryTokenStore.nowSeconds();
+    int live = 0;
+    // no probe path goes past a slot that was empty before, so entries can be moved in order from
+    // there on; without one, paths may wrap all the way around and it takes passes until none moves
+    int start = -1;
+    for (int i = 0; i < capacity; i++) {
+      int slot = offset(i);
+      clearIfTorn(slot);
+      byte state = buffer.get(slot + STATE);
+      if (state == EMPTY && start < 0) {
+        start = i;
+      }
+      if (state == USED && buffer.getLong(slot + EXPIRES_AT) <= now) {
+        removeFromIndex(slot);
+        state = DELETED;
+      }
+      if (state == DELETED) {
+        writeSlot(slot, EMPTY, 0, 0, new byte[0]);
+        state = EMPTY;
+      }
+      if (state == USED) {
+        live++;
+      }
+    }
+    boolean wrapped = start < 0;
+    boolean moved;
+    do {
+      moved = false;
+      for (int n = 1; n <= capacity; n++) {
+        int slot = offset((Math.max(start, 0) + n) % capacity);
+        if (buffer.get(slot + STATE) == USED && moveBack(slot)) {
+          moved = true;
+        }
+      }
+    } while (wrapped && moved);
+    buffer.putInt(HEADER_COUNT, live);
+    buffer.putInt(HEADER_DELETED, 0);
+    storeFence();
+    buffer.putInt(HEADER_EPOCH, epoch + 2);
+  }
+
+  // moves the entry in slot to the first empty slot from its home slot on, if that comes before it;
+  // the old slot is emptied first, so a process dying in between loses the entry rather than
+  // leaving it twice
+  private boolean moveBack(int slot) {
+    int hash = buffer.getInt(slot + HASH);
+    for (int index = index(hash); offset(index) != slot; index = (index + 1) % capacity) {
+      if (buffer.get(offset(index) + STATE) == EMPTY) {
+        long expiresAt = buffer.getLong(slot + EXPIRES_AT);
+        byte[] payload = readPayload(slot);
+        writeSlot(slot, EMPTY, 0, 0, new byte[0]);
+        writeSlot(offset(index), USED, hash, expiresAt, payload);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private byte[] readPayload(int slot) {
+    int length = buffer.getShort(slot + PAYLOAD_LENGTH);
+    byte[] payload = new byte[Math.max(0, Math.min(length, MAX_PAYLOAD))];
+    ByteBuffer src = buffer.duplicate();
+    src.position(slot + PAYLOAD);
+    src.get(payload);
+    return payload;
+  }
+
+  private static byte[] readKey(ByteBuffer buf) {
+    short len = buf.remaining() >= Short.BYTES ? buf.getShort() : -1;
+    if (len < 0 || len > buf.remaining()) {
+      return null;
+    }
+    byte[] key = new byte[len];
+    buf.get(key);
+    return key;
+  }
+
+  private void addCount(int delta) {
+    buffer.putInt(HEADER_COUNT, buffer.getInt(HEADER_COUNT) + delta);
+  }
+
+  private void addDeleted(int delta) {
+    buffer.putInt(HEADER_DELETED, buffer.getInt(HEADER_DELETED) + delta);
+  }
+
+  private synchronized void withWriteLock(Runnable action) {
+    try (FileLock ignored = channel.lock(0, HEADER_SIZE, false)) {
+      if ((buffer.getInt(HEADER_EPOCH) & 1) != 0) {
+        // a process died compacting the table; finish the job before touching it
+        compactSlots();
+      }
+      action.run();
+    } catch (IOException e) {
+      throw new UncheckedIOException("lock token store failed", e);
+    }
+  }
+
+  // a volatile write lets no earlier write move after it, and HotSpot follows it with a full
+  // fence, so no later write moves before it either
+  private void storeFence() {
+    fence = 0;
+  }
+
+  // a volatile read lets no later read move before it
+  private void loadFence() {
+    int ignored = fence;
+  }
+
+  private int index(int hash) {
+    return (hash & Integer.MAX_VALUE) % capacity;
+  }
+
+  private static int offset(int index) {
+    return HEADER_SIZE + index * SLOT_SIZE;
+  }
+}
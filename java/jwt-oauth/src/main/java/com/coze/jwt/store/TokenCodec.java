@@ -0,0 +1,89 @@
+package com.coze.jwt.store;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import com.coze.openapi.client.auth.OAuthToken;
+
+/**
+ * Compact binary form of an {@link OAuthToken}: {@code expiresIn} as a long followed by the access
+ * token, refresh token and token type, each as a short byte length (-1 for null) and UTF-8 bytes.
+ */
+public final class TokenCodec {
+  private TokenCodec() {}
+
+  public static byte[] encode(OAuthToken token) {
+    ByteBuffer buf = ByteBuffer.allocate(encodedLength(token));
+    encode(token, buf);
+    return buf.array();
+  }
+
+  /** The number of bytes {@link #encode(OAuthToken, ByteBuffer)} writes for {@code token}. */
+  public static int encodedLength(OAuthToken token) {
+    return Long.BYTES
+        + stringLength(token.getAccessToken())
+        + stringLength(token.getRefreshToken())
+        + stringLength(token.getTokenType());
+  }
+
+  /** Writes {@code token} at the position of {@code buf}, which must have room for it. */
+  public static void encode(OAuthToken token, ByteBuffer buf) {
+    buf.putLong(token.getExpiresIn());
+    putBytes(buf, bytes(token.getAccessToken()));
+    putBytes(buf, bytes(token.getRefreshToken()));
+    putBytes(buf, bytes(token.getTokenType()));
+  }
+
+  public static OAuthToken decode(ByteBuffer buf) {
+    long expiresIn = buf.getLong();
+    return OAuthToken.builder()
+        .expiresIn((int) expiresIn)
+        .accessToken(getString(buf))
+        .refreshToken(getString(buf))
+        .tokenType(getString(buf))
+        .build();
+  }
+
+  static byte[] bytes(String s) {
+    return s == null ? null : s.getBytes(StandardCharsets.UTF_8);
+  }
+
+  // tokens are ASCII, for which this is exact; other text is measured by encoding it
+  static int stringLength(String s) {
+    if (s == null) {
+      return Short.BYTES;
+    }
+    for (int i = 0; i < s.length(); i++) {
+      if (s.charAt(i) >= 0x80) {
+        return length(bytes(s));
+      }
+    }
+    return Short.BYTES + s.length();
+  }
+
+  static int length(byte[] b) {
+    return Short.BYTES + (b == null ? 0 : b.length);
+  }
+
+  static void putBytes(ByteBuffer buf, byte[] b) {
+    if (b == null) {
+      buf.putShort((short) -1);
+      return;
+    }
+    if (b.length > Short.MAX_VALUE) {
+      throw new IllegalArgumentException("field too long: " + b.length + " bytes");
+    }
+    buf.putShort((short) b.length);
+    buf.put(b);
+  }
+
+  static String getString(ByteBuffer buf) {
+    short len = buf.getShort();
+    if (len < 0) {
+      return null;
+    }
+    byte[] b = new byte[len];
+    buf.get(b);
+    return new String(b, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,274 @@
+package com.coze.jwt.stub;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives a running token server with browser-like sessions at a fixed arrival rate and reports
+ * throughput and latency percentiles.
+ *
+ * <p>A session is {@code /login} (following redirects through the authorize page until they land
+ * on {@code /callback}), then {@code /callback}, then {@code POST /refresh_token}. Sessions start
+ * on schedule whether or not earlier ones have finished, and the session latency is measured from
+ * the scheduled start, so a server that falls behind shows up in the percentiles instead of
+ * quietly lowering the request rate.
+ */
+public class LoadGenerator {
+  private static final String ERROR_PAGE_MARKER = "<title>Authorization Failed";
+  private static final int MAX_REDIRECTS = 5;
+
+  private final String target;
+  private final boolean refresh;
+  private final Map<String, Step> steps = new LinkedHashMap<>();
+
+  public LoadGenerator(String target, boolean refresh) {
+    this.target = target.endsWith("/") ? target.substring(0, target.length() - 1) : target;
+    this.refresh = refresh;
+    for (String name : new String[] {"login", "callback", "refresh_token", "session"}) {
+      steps.put(name, new Step(name));
+    }
+  }
+
+  /** Starts {@code rate} sessions per second for {@code durationSeconds} and waits for them. */
+  public void run(double rate, long durationSeconds, int maxConcurrency)
+      throws InterruptedException {
+    long periodNanos = (long) (1e9 / rate);
+    long total = (long) (rate * durationSeconds);
+    ExecutorService workers = Executors.newFixedThreadPool(maxConcurrency);
+    long start = System.nanoTime();
+    try {
+      for (long i = 0; i < total; i++) {
+        long scheduled = start + i * periodNanos;
+        long wait = scheduled - System.nanoTime();
+        if (wait > 0) {
+          TimeUnit.NANOSECONDS.sleep(wait);
+        }
+        workers.execute(() -> session(scheduled));
+      }
+    } finally {
+      workers.shutdown();
+      workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+    print(System.nanoTime() - start);
+  }
+
+  private void session(long scheduled) {
+    Map<String, String> cookies = new LinkedHashMap<>();
+    try {
+      String callbackUrl = timed("login", () -> login(cookies));
+      timed("callback", () -> expectPage(send("GET", callbackUrl, cookies)));
+      if (refresh) {
+        timed("refresh_token", () -> expectJson(send("POST", target + "/refresh_token", cookies)));
+      }
+      steps.get("session").record(System.nanoTime() - scheduled);
+    } catch (Exception e) {
+      steps.get("session").failed.incrementAndGet();
+    }
+  }
+
+  private String login(Map<String, String> cookies) throws IOException {
+    String url = target + "/login";
+    for (int i = 0; i < MAX_REDIRECTS; i++) {
+      Response resp = send("GET", url, cookies);
+      String location = resp.location;
+      if (resp.status / 100 != 3 || location == null) {
+        throw new IOException("login did not redirect, status " + resp.status);
+      }
+      url = location.startsWith("/") ? target + location : location;
+      if (url.startsWith(target + "/callback")) {
+        return url;
+      }
+    }
+    throw new IOException("too many redirects from /login");
+  }
+
+  private static Void expectPage(Response resp) throws IOException {
+    if (resp.status != 200 || resp.body.contains(ERROR_PAGE_MARKER)) {
+      throw new IOException("callback failed, status " + resp.status);
+    }
+    return null;
+  }
+
+  private static Void expectJson(Response resp) throws IOException {
+    if (resp.status != 200 || !resp.body.contains("access_token")) {
+      throw new IOException("refresh failed, status " + resp.status);
+    }
+    return null;
+  }
+
+  private <T> T timed(String step, Call<T> call) throws IOException {
+    long start = System.nanoTime();
+    try {
+      T result = call.call();
+      steps.get(step).record(System.nanoTime() - start);
+      return result;
+    } catch (IOException | RuntimeException e) {
+      steps.get(step).failed.incrementAndGet();
+      throw e;
+    }
+  }
+
+  private static Response send(String method, String url, Map<String, String> cookies)
+      throws IOException {
+    HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+    conn.setRequestMethod(method);
+    conn.setInstanceFollowRedirects(false);
+    if (!cookies.isEmpty()) {
+      StringBuilder header = new StringBuilder();
+      for (Map.Entry<String, String> cookie : cookies.entrySet()) {
+        if (header.length() > 0) {
+          header.append("; ");
+        }
+        header.append(cookie.getKey()).append('=').append(cookie.getValue());
+      }
+      conn.setRequestProperty("Cookie", header.toString());
+    }
+    int status = conn.getResponseCode();
+    List<String> setCookies = conn.getHeaderFields().get("Set-Cookie");
+    if (setCookies != null) {
+      for (String setCookie : setCookies) {
+        String pair = setCookie.split(";", 2)[0];
+        int eq = pair.indexOf('=');
+        if (eq > 0) {
+          cookies.put(pair.substring(0, eq).trim(), pair.substring(eq + 1).trim());
+        }
+      }
+    }
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    try (InputStream in = status >= 400 ? conn.getErrorStream() : conn.getInputStream()) {
+      if (in != null) {
+        byte[] buffer = new byte[8192];
+        for (int n; (n = in.read(buffer)) != -1; ) {
+          body.write(buffer, 0, n);
+        }
+      }
+    }
+    return new Response(
+        status,
+        conn.getHeaderField("Location"),
+        new String(body.toByteArray(), StandardCharsets.UTF_8));
+  }
+
+  private void print(long elapsedNanos) {
+    double seconds = elapsedNanos / 1e9;
+    Step session = steps.get("session");
+    System.out.printf(
+        "%d sessions in %.1fs: %.1f sessions/s, %d failed%n",
+        session.latencies.size(),
+        seconds,
+        session.latencies.size() / seconds,
+        session.failed.get());
+    System.out.printf(
+        "%-14s %8s %8s %9s %9s %9s %9s%n",
+        "step",
+        "ok",
+        "failed",
+        "p50 ms",
+        "p90 ms",
+        "p99 ms",
+        "max ms");
+    for (Step step : steps.values()) {
+      if (step.name.equals("refresh_token") && !refresh) {
+        continue;
+      }
+      step.print();
+    }
+  }
+
+  private interface Call<T> {
+    T call() throws IOException;
+  }
+
+  private static final class Response {
+    private final int status;
+    private final String location;
+    private final String body;
+
+    private Response(int status, String location, String body) {
+      this.status = status;
+      this.location = location;
+      this.body = body;
+    }
+  }
+
+  private static final class Step {
+    private final String name;
+    private final List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger failed = new AtomicInteger();
+
+    private Step(String name) {
+      this.name = name;
+    }
+
+    private void record(long nanos) {
+      latencies.add(nanos);
+    }
+
+    private void print() {
+      List<Long> sorted = new ArrayList<>(latencies);
+      Collections.sort(sorted);
+      System.out.printf(
+          "%-14s %8d %8d %9.2f %9.2f %9.2f %9.2f%n",
+          name,
+          sorted.size(),
+          failed.get(),
+          percentile(sorted, 0.50),
+          percentile(sorted, 0.90),
+          percentile(sorted, 0.99),
+          percentile(sorted, 1.0));
+    }
+
+    private static double percentile(List<Long> sorted, double p) {
+      if (sorted.isEmpty()) {
+        return 0;
+      }
+      int index = (int) Math.ceil(p * sorted.size()) - 1;
+      return sorted.get(Math.max(0, Math.min(index, sorted.size() - 1))) / 1e6;
+    }
+  }
+
+  /**
+   * Usage: {@code [--target http://127.0.0.1:8080] [--rate 50] [--duration 30] [--concurrency
+   * 200]}.
+   */
+  public static void main(String[] args) throws Exception {
+    String target = "http://127.0.0.1:8080";
+    double rate = 50;
+    long duration = 30;
+    int concurrency = 200;
+    // the JWT server has no /refresh_token
+    boolean refresh = false;
+    for (int i = 0; i < args.length; i++) {
+      switch (args[i]) {
+        case "--target":
+          target = args[++i];
+          break;
+        case "--rate":
+          rate = Double.parseDouble(args[++i]);
+          break;
+        case "--duration":
+          duration = Long.parseLong(args[++i]);
+          break;
+        case "--concurrency":
+          concurrency = Integer.parseInt(args[++i]);
+          break;
+        default:
+          throw new IllegalArgumentException("unknown option: " + args[i]);
+      }
+    }
+    new LoadGenerator(target, refresh).run(rate, duration, concurrency);
+  }
+}
@@ -3,6 +3,8 @@ plugins {
     id("application")
 
     id("com.diffplug.spotless") version "6.11.0"
+    id("me.champeau.jmh") version "0.7.2"
+    id("org.graalvm.buildtools.native") version "0.10.3"
 }
 
 group = "com.coze"
@@ -43,6 +45,9 @@ dependencies {
 
     implementation("commons-io:commons-io:2.11.0")
 
+    // 监控指标
+    implementation("io.micrometer:micrometer-registry-prometheus:1.9.17")
+
     // 测试依赖
     testImplementation(platform("org.junit:junit-bom:5.10.0"))
     testImplementation("org.junit.jupiter:junit-jupiter")
@@ -64,6 +69,63 @@ tasks.register<Jar>("uberJar") {
     duplicatesStrategy = DuplicatesStrategy.EXCLUDE
 }
 
+// 本地模拟 Coze 授权服务, 离线压测用:
+// ./gradlew stubServer --args="--latency-ms 50 --config coze_oauth_config.json"
+tasks.register<JavaExec>("stubServer") {
+    classpath = sourceSets.main.get().runtimeClasspath
+    mainClass.set("com.coze.pkce.stub.StubAuthServer")
+}
+
+// 压测 /login -> /callback -> /refresh_token: ./gradlew loadTest --args="--rate 100 --duration 60"
+tasks.register<JavaExec>("loadTest") {
+    classpath = sourceSets.main.get().runtimeClasspath
+    mainClass.set("com.coze.pkce.stub.LoadGenerator")
+}
+
+// AppCDS 归档: ./gradlew cdsArchive 用 JDK 17 运行一次 uber jar, 启动完成后退出, 把加载过的类写入
+// build/cds/app.jsa; 运行时用同一个 JDK 和 jar 加上 -XX:SharedArchiveFile=build/cds/app.jsa
+val cdsLauncher = javaToolchains.launcherFor {
+    languageVersion.set(JavaLanguageVersion.of(17))
+}
+
+tasks.register<JavaExec>("cdsArchive") {
+    classpath = files(tasks.named("uberJar"))
+    mainClass.set("com.coze.pkce.Main")
+    javaLauncher.set(cdsLauncher)
+    val archive = layout.buildDirectory.file("cds/app.jsa")
+    outputs.file(archive)
+    jvmArgs("-XX:ArchiveClassesAtExit=" + archive.get().asFile.absolutePath)
+    systemProperty("coze.startup.exit", "true")
+    systemProperty("coze.http.warmup", "0")
+    doFirst {
+        archive.get().asFile.parentFile.mkdirs()
+    }
+}
+
+// 冷启动耗时, 依次启动命令若干次:
+// ./gradlew startupBenchmark --args="--runs 10 --
+//     java -jar build/libs/pkce-oauth-1.0-SNAPSHOT-uber.jar"
+tasks.register<JavaExec>("startupBenchmark") {
+    classpath = sourceSets.main.get().runtimeClasspath
+    mainClass.set("com.coze.pkce.stub.StartupBenchmark")
+}
+
+// GraalVM native image: 设置 GRAALVM_HOME 后 ./gradlew nativeCompile, 输出
+// build/native/nativeCompile/pkce-oauth; 本项目模型的反射配置在 META-INF/native-image 下,
+// 依赖库的配置来自 GraalVM reachability metadata 仓库
+graalvmNative {
+    toolchainDetection.set(false)
+    metadataRepository {
+        enabled.set(true)
+    }
+    binaries {
+        named("main") {
+            imageName.set("pkce-oauth")
+            buildArgs.add("--no-fallback")
+        }
+    }
+}
+
 java {
     toolchain {
         languageVersion.set(JavaLanguageVersion.of(8))
@@ -74,6 +136,17 @@ tasks.named<Test>("test") {
     useJUnitPlatform()
 }
 
+// JMH 基准测试: ./gradlew jmh, 结果以 JSON 输出到 build/results/jmh/results.json
+jmh {
+    fork.set(1)
+    warmupIterations.set(3)
+    iterations.set(5)
+    resultFormat.set("JSON")
+    resultsFile.set(layout.buildDirectory.file("results/jmh/results.json"))
+    // gc.alloc.rate.norm 为每次操作分配的字节数
+    profilers.add("gc")
+}
+
 spotless {
     java {
         // 使用 Google Java 格式化规则
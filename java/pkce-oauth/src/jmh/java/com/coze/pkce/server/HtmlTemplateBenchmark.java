@@ -0,0 +1,58 @@
+package com.coze.pkce.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/** Compares the precompiled {@link HtmlTemplate} with the old per-request replace rendering. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class HtmlTemplateBenchmark {
+  private String html;
+  private HtmlTemplate template;
+  private Map<String, String> model;
+
+  @Setup
+  public void setup() throws IOException {
+    ClassLoader classLoader = getClass().getClassLoader();
+    try (InputStream in = classLoader.getResourceAsStream("websites/callback.html")) {
+      if (in == null) {
+        throw new IllegalStateException("websites/callback.html not found, run build.sh first");
+      }
+      html = new String(IOUtils.toByteArray(in), StandardCharsets.UTF_8);
+    }
+    template = HtmlTemplate.compile(html);
+    model = new HashMap<>();
+    model.put("token_type", "Bearer");
+    model.put("access_token", "czs_KbtA8qvPfTfRnB1iXqTnZDhZ7AP5Y5w4kBJJ3wGxLsWkuQ8Nz2vOmrTcHd0eJ");
+    model.put("refresh_token", "3z2dpSKzQ9R3fZtb6JgXhMLkVCm1Fw7yUH8n5DPaErcYoTiB0AGNsqxOvIWlj4u");
+    model.put("expires_in", "1735689600 (2025-01-01 08:00:00)");
+  }
+
+  @Benchmark
+  public String formatHtml() {
+    String result = html;
+    for (Map.Entry<String, String> entry : model.entrySet()) {
+      result = result.replace("{{" + entry.getKey() + "}}", entry.getValue());
+    }
+    return result;
+  }
+
+  @Benchmark
+  public String template() {
+    return template.render(model);
+  }
+}
@@ -0,0 +1,68 @@
+package com.coze.pkce.log;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded queue for many producers and one consumer that never locks.
+ *
+ * <p>A producer claims the next sequence with a compare-and-set and then fills its slot; a full
+ * queue makes {@link #offer} return false at once instead of waiting. The consumer empties slots
+ * in sequence order and only then moves {@code head}, so a producer never claims a slot that is
+ * still in use. A claimed slot that is not filled yet reads as empty, and the consumer simply
+ * comes back for it.
+ */
+final class RingBuffer<E> {
+  private final AtomicReferenceArray<E> slots;
+  private final int mask;
+  private final AtomicLong tail = new AtomicLong();
+  private final AtomicLong head = new AtomicLong();
+
+  /** {@code capacity} is rounded up to a power of two. */
+  RingBuffer(int capacity) {
+    if (capacity < 1 || capacity > 1 << 30) {
+      throw new IllegalArgumentException("capacity must be in [1, 2^30]: " + capacity);
+    }
+    int size = Integer.highestOneBit(capacity);
+    if (size < capacity) {
+      size <<= 1;
+    }
+    this.slots = new AtomicReferenceArray<>(size);
+    this.mask = size - 1;
+  }
+
+  /** Adds {@code e}, or returns false without waiting when the queue is full. */
+  boolean offer(E e) {
+    while (true) {
+      long t = tail.get();
+      if (t - head.get() > mask) {
+        return false;
+      }
+      if (tail.compareAndSet(t, t + 1)) {
+        slots.lazySet((int) t & mask, e);
+        return true;
+      }
+    }
+  }
+
+  /** Takes the oldest element, or null when there is none yet; only the consumer may call it. */
+  E poll() {
+    long h = head.get();
+    int index = (int) h & mask;
+    E e = slots.get(index);
+    if (e == null) {
+      return null;
+    }
+    slots.lazySet(index, null);
+    head.lazySet(h + 1);
+    return e;
+  }
+
+  int size() {
+    return (int) Math.max(0, tail.get() - head.get());
+  }
+
+  int capacity() {
+    return mask + 1;
+  }
+}
@@ -0,0 +1,137 @@
+package com.coze.pkce.model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.SerializedString;
+
+/**
+ * The answer about one access token, in the shape of an OAuth 2.0 token introspection response
+ * (RFC 7662): {@code active}, and for an active token the {@code client_id} of its app, {@code sub}
+ * (the fingerprint of the session it was issued to), {@code token_type} and {@code exp}.
+ *
+ * <p>Written with a streaming generator like {@link TokenJson}; {@link #batch} writes many answers
+ * as one JSON array.
+ */
+public final class Introspection {
+  /** The answer for a token that is unknown, expired or replaced. */
+  public static final Introspection INACTIVE = new Introspection(false, null, null, null, 0);
+
+  private static final JsonFactory FACTORY = new JsonFactory();
+  private static final SerializableString ACTIVE = new SerializedString("active");
+  private static final SerializableString CLIENT_ID = new SerializedString("client_id");
+  private static final SerializableString SUB = new SerializedString("sub");
+  private static final SerializableString TOKEN_TYPE = new SerializedString("token_type");
+  private static final SerializableString EXP = new SerializedString("exp");
+  private static final int INITIAL_BUFFER_SIZE = 128;
+
+  private final boolean active;
+  private final String clientId;
+  private final String subject;
+  private final String tokenType;
+  private final long exp;
+
+  private Introspection(
+      boolean active, String clientId, String subject, String tokenType, long exp) {
+    this.active = active;
+    this.clientId = clientId;
+    this.subject = subject;
+    this.tokenType = tokenType;
+    this.exp = exp;
+  }
+
+  public static Introspection active(String clientId, String subject, String tokenType, long exp) {
+    return new Introspection(true, clientId, subject, tokenType, exp);
+  }
+
+  /** An inactive answer that is known to stay so until {@code exp}. */
+  public static Introspection inactiveUntil(long exp) {
+    return new Introspection(false, null, null, null, exp);
+  }
+
+  public boolean isActive() {
+    return active;
+  }
+
+  public String getClientId() {
+    return clientId;
+  }
+
+  public String getSubject() {
+    return subject;
+  }
+
+  public String getTokenType() {
+    return tokenType;
+  }
+
+  /** Expiry in epoch seconds. */
+  public long getExp() {
+    return exp;
+  }
+
+  /** The answer as UTF-8 JSON; an inactive one is just {@code {"active":false}}. */
+  public byte[] toBytes() {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(INITIAL_BUFFER_SIZE);
+    try (JsonGenerator gen = FACTORY.createGenerator(out, JsonEncoding.UTF8)) {
+      write(gen);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return out.toByteArray();
+  }
+
+  public void write(JsonGenerator gen) throws IOException {
+    gen.writeStartObject();
+    gen.writeFieldName(ACTIVE);
+    gen.writeBoolean(active);
+    if (active) {
+      if (clientId != null) {
+        gen.writeFieldName(CLIENT_ID);
+        gen.writeString(clientId);
+      }
+      if (subject != null) {
+        gen.writeFieldName(SUB);
+        gen.writeString(subject);
+      }
+      if (tokenType != null) {
+        gen.writeFieldName(TOKEN_TYPE);
+        gen.writeString(tokenType);
+      }
+      gen.writeFieldName(EXP);
+      gen.writeNumber(exp);
+    }
+    gen.writeEndObject();
+  }
+
+  /** Starts a JSON array of answers on {@code out}; close it to end the array. */
+  public static Batch batch(OutputStream out) throws IOException {
+    return new Batch(FACTORY.createGenerator(out, JsonEncoding.UTF8));
+  }
+
+  /** A JSON array written one answer at a time. */
+  public static final class Batch implements AutoCloseable {
+    private final JsonGenerator gen;
+
+    private Batch(JsonGenerator gen) throws IOException {
+      this.gen = gen;
+      gen.writeStartArray();
+    }
+
+    public void add(Introspection introspection) throws IOException {
+      introspection.write(gen);
+    }
+
+    @Override
+    public void close() throws IOException {
+      gen.writeEndArray();
+      gen.close();
+    }
+  }
+}
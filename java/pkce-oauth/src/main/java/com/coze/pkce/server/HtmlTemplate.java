@@ -0,0 +1,88 @@
+package com.coze.pkce.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An html page parsed once into literal chunks and {@code {{key}}} placeholder slots.
+ *
+ * <p>Rendering walks the segments a single time and writes into one pre-sized builder, instead of
+ * doing a full {@link String#replace} pass over the page for every model key. Placeholders without
+ * a model value are written back verbatim, the same as the old replace-based rendering did.
+ */
+public final class HtmlTemplate {
+  private static final String OPEN = "{{";
+  private static final String CLOSE = "}}";
+
+  // literals.length == keys.length + 1, literal i is written before slot i
+  private final String[] literals;
+  private final String[] keys;
+  private final int literalLength;
+
+  private HtmlTemplate(String[] literals, String[] keys) {
+    this.literals = literals;
+    this.keys = keys;
+    int length = 0;
+    for (String literal : literals) {
+      length += literal.length();
+    }
+    this.literalLength = length;
+  }
+
+  public static HtmlTemplate compile(String html) {
+    List<String> literals = new ArrayList<>();
+    List<String> keys = new ArrayList<>();
+    int start = 0;
+    int from = 0;
+    while (true) {
+      int open = html.indexOf(OPEN, from);
+      if (open < 0) {
+        break;
+      }
+      int close = html.indexOf(CLOSE, open + OPEN.length());
+      if (close < 0) {
+        break;
+      }
+      String key = html.substring(open + OPEN.length(), close);
+      if (!isKey(key)) {
+        from = open + 1;
+        continue;
+      }
+      literals.add(html.substring(start, open));
+      keys.add(key);
+      start = close + CLOSE.length();
+      from = start;
+    }
+    literals.add(html.substring(start));
+    return new HtmlTemplate(literals.toArray(new String[0]), keys.toArray(new String[0]));
+  }
+
+  public String render(Map<String, String> model) {
+    String[] values = new String[keys.length];
+    int length = literalLength;
+    for (int i = 0; i < keys.length; i++) {
+      String value = model.get(keys[i]);
+      values[i] = value != null ? value : OPEN + keys[i] + CLOSE;
+      length += values[i].length();
+    }
+    StringBuilder sb = new StringBuilder(length);
+    for (int i = 0; i < keys.length; i++) {
+      sb.append(literals[i]).append(values[i]);
+    }
+    return sb.append(literals[keys.length]).toString();
+  }
+
+  private static boolean isKey(String key) {
+    if (key.isEmpty()) {
+      return false;
+    }
+    for (int i = 0; i < key.length(); i++) {
+      char c = key.charAt(i);
+      if (!(Character.isLetterOrDigit(c) || c == '_')) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,104 @@
+package com.coze.pkce.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Seals the PKCE {@code state} and {@code code_verifier} of a login into an AES-GCM encrypted
+ * cookie value, so the callback can be completed by any server sharing the key without a server
+ * side session.
+ */
+public class PkceStateCookie {
+  public static final String NAME = "coze_pkce";
+  public static final int MAX_AGE_SECONDS = 600;
+
+  private static final int IV_LENGTH = 12;
+  private static final int TAG_BITS = 128;
+  private static final byte[] AAD = NAME.getBytes(StandardCharsets.UTF_8);
+
+  private final SecretKeySpec key;
+  private final SecureRandom random = new SecureRandom();
+
+  public PkceStateCookie(byte[] key) {
+    if (key.length != 16 && key.length != 24 && key.length != 32) {
+      throw new IllegalArgumentException("AES key must be 16, 24 or 32 bytes");
+    }
+    this.key = new SecretKeySpec(key, "AES");
+  }
+
+  /** Creates a sealer from a base64 encoded AES key. */
+  public static PkceStateCookie fromBase64(String key) {
+    return new PkceStateCookie(Base64.getDecoder().decode(key.trim()));
+  }
+
+  public String newState() {
+    byte[] bytes = new byte[16];
+    random.nextBytes(bytes);
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+  }
+
+  public String seal(String state, String codeVerifier) {
+    byte[] stateBytes = state.getBytes(StandardCharsets.UTF_8);
+    byte[] verifierBytes = codeVerifier.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer plain = ByteBuffer.allocate(8 + 2 + stateBytes.length + verifierBytes.length);
+    plain.putLong(System.currentTimeMillis() / 1000);
+    plain.putShort((short) stateBytes.length);
+    plain.put(stateBytes);
+    plain.put(verifierBytes);
+    byte[] iv = new byte[IV_LENGTH];
+    random.nextBytes(iv);
+    try {
+      Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+      cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, iv));
+      cipher.updateAAD(AAD);
+      byte[] sealed = cipher.doFinal(plain.array());
+      ByteBuffer out = ByteBuffer.allocate(IV_LENGTH + sealed.length);
+      out.put(iv).put(sealed);
+      return Base64.getUrlEncoder().withoutPadding().encodeToString(out.array());
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("seal pkce cookie failed", e);
+    }
+  }
+
+  /**
+   * Opens a sealed value and checks it belongs to the given {@code state} and is not older than
+   * {@link #MAX_AGE_SECONDS}. Returns the code verifier.
+   */
+  public String open(String value, String state) {
+    if (value == null || value.isEmpty()) {
+      throw new RuntimeException("Authorization failed: PKCE cookie missing.");
+    }
+    ByteBuffer plain;
+    try {
+      byte[] sealed = Base64.getUrlDecoder().decode(value);
+      if (sealed.length <= IV_LENGTH) {
+        throw new RuntimeException("Authorization failed: invalid PKCE cookie.");
+      }
+      Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+      cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, sealed, 0, IV_LENGTH));
+      cipher.updateAAD(AAD);
+      plain = ByteBuffer.wrap(cipher.doFinal(sealed, IV_LENGTH, sealed.length - IV_LENGTH));
+    } catch (GeneralSecurityException | IllegalArgumentException e) {
+      throw new RuntimeException("Authorization failed: invalid PKCE cookie.");
+    }
+    long issuedAt = plain.getLong();
+    if (System.currentTimeMillis() / 1000 - issuedAt > MAX_AGE_SECONDS) {
+      throw new RuntimeException("Authorization failed: login expired, please try again.");
+    }
+    byte[] stateBytes = new byte[plain.getShort()];
+    plain.get(stateBytes);
+    if (!new String(stateBytes, StandardCharsets.UTF_8).equals(state)) {
+      throw new RuntimeException("Authorization failed: state mismatch.");
+    }
+    byte[] verifierBytes = new byte[plain.remaining()];
+    plain.get(verifierBytes);
+    return new String(verifierBytes, StandardCharsets.UTF_8);
+  }
+}
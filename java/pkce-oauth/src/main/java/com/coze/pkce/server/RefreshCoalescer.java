@@ -0,0 +1,127 @@
+package com.coze.pkce.server;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import com.coze.openapi.client.auth.OAuthToken;
+
+/**
+ * Coalesces concurrent refreshes of the same refresh token into one upstream call.
+ *
+ * <p>Refresh tokens are rotated on use, so a second refresh with the same token (another browser
+ * tab, a client retry) would fail upstream. Callers that arrive while a refresh is running wait for
+ * its result, and callers that arrive shortly after it finished get the same result from a small
+ * cache that keeps results for {@code resultTtlMillis}.
+ */
+public class RefreshCoalescer {
+  public static final long DEFAULT_RESULT_TTL_MILLIS = 10_000;
+
+  private final Function<String, OAuthToken> refresher;
+  private final long resultTtlMillis;
+  private final Map<String, CompletableFuture<OAuthToken>> inflight = new ConcurrentHashMap<>();
+  private final Map<String, Result> recent = new ConcurrentHashMap<>();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private volatile long lastSweep = System.currentTimeMillis();
+
+  public RefreshCoalescer(Function<String, OAuthToken> refresher, long resultTtlMillis) {
+    this.refresher = refresher;
+    this.resultTtlMillis = resultTtlMillis;
+  }
+
+  public OAuthToken refresh(String refreshToken) {
+    OAuthToken cached = recentResult(refreshToken);
+    if (cached != null) {
+      hits.incrementAndGet();
+      return cached;
+    }
+    CompletableFuture<OAuthToken> mine = new CompletableFuture<>();
+    CompletableFuture<OAuthToken> running = inflight.putIfAbsent(refreshToken, mine);
+    if (running != null) {
+      hits.incrementAndGet();
+      return join(running);
+    }
+    try {
+      // a refresh may have finished between the cache check and taking the slot
+      OAuthToken token = recentResult(refreshToken);
+      if (token == null) {
+        misses.incrementAndGet();
+        token = refresher.apply(refreshToken);
+        remember(refreshToken, token);
+      } else {
+        hits.incrementAndGet();
+      }
+      mine.complete(token);
+      return token;
+    } catch (Throwable e) {
+      // an Error too, or the callers waiting on mine would wait forever
+      mine.completeExceptionally(e);
+      throw e;
+    } finally {
+      inflight.remove(refreshToken, mine);
+    }
+  }
+
+  /** Refreshes answered from a running or recent refresh instead of an upstream call. */
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  private OAuthToken recentResult(String refreshToken) {
+    Result result = recent.get(refreshToken);
+    if (result == null) {
+      return null;
+    }
+    if (result.expiresAt <= System.currentTimeMillis()) {
+      recent.remove(refreshToken, result);
+      return null;
+    }
+    return result.token;
+  }
+
+  private void remember(String refreshToken, OAuthToken token) {
+    long now = System.currentTimeMillis();
+    recent.put(refreshToken, new Result(token, now + resultTtlMillis));
+    if (now - lastSweep >= resultTtlMillis) {
+      lastSweep = now;
+      for (Iterator<Result> it = recent.values().iterator(); it.hasNext(); ) {
+        if (it.next().expiresAt <= now) {
+          it.remove();
+        }
+      }
+    }
+  }
+
+  private static OAuthToken join(CompletableFuture<OAuthToken> future) {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      if (e.getCause() instanceof Error) {
+        throw (Error) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  private static final class Result {
+    private final OAuthToken token;
+    private final long expiresAt;
+
+    private Result(OAuthToken token, long expiresAt) {
+      this.token = token;
+      this.expiresAt = expiresAt;
+    }
+  }
+}
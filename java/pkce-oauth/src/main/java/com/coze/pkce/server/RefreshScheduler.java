@@ -0,0 +1,368 @@
+package com.coze.pkce.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+import com.coze.openapi.client.auth.OAuthToken;
+import com.coze.openapi.client.exception.CozeAuthException;
+import com.coze.pkce.metrics.Metrics;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Refreshes stored tokens shortly before they expire, so a user coming back does not wait for a
+ * refresh on the request path.
+ *
+ * <p>Tokens are kept in a queue ordered by when they are due: {@code leadSeconds} before the
+ * token's {@code expiresIn}, moved earlier by a random part of {@code jitterSeconds} so that
+ * tokens issued together are not all refreshed in the same moment. One thread waits for the head
+ * of the queue and takes up to {@value #BATCH_SIZE} due tokens at a time, which {@code parallelism}
+ * workers refresh before the next batch is taken; a burst of due tokens, say after a restart, is
+ * therefore worked off at a bounded rate. Scheduling a key again replaces its entry. A refresh the
+ * auth server refuses drops the token; other failures are retried after {@value #RETRY_SECONDS}
+ * seconds while the token still has time left.
+ *
+ * <p>Only sessions in use are kept fresh. A call to {@link #schedule}, made when the session logs
+ * in or refreshes its token, counts as a use; the refreshes this scheduler runs itself do not. A
+ * token that falls due more than {@code idleSeconds} after its session was last used is dropped
+ * instead of refreshed, so it expires in the store like any token without a background refresh, and
+ * the next visit of the user refreshes it on the request path. Without this bound every session
+ * ever stored would be refreshed for as long as the auth server keeps accepting its refresh token.
+ */
+@Slf4j
+public class RefreshScheduler implements AutoCloseable {
+  public static final long DEFAULT_LEAD_SECONDS = 120;
+  public static final long DEFAULT_JITTER_SECONDS = 60;
+  public static final int DEFAULT_PARALLELISM = 4;
+  public static final int DEFAULT_MAX_SIZE = 100_000;
+  public static final long DEFAULT_IDLE_SECONDS = TimeUnit.DAYS.toSeconds(1);
+  static final int BATCH_SIZE = 64;
+  static final long RETRY_SECONDS = 30;
+
+  private final long leadMillis;
+  private final long jitterMillis;
+  private final int parallelism;
+  private final int maxSize;
+  private final long idleMillis;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition changed = lock.newCondition();
+  // 被替换或取消的条目留在队列中, 取出时跳过
+  private final PriorityQueue<Entry> queue =
+      new PriorityQueue<>((a, b) -> Long.compare(a.dueMillis, b.dueMillis));
+  private final Map<String, Entry> entries = new HashMap<>();
+  // 正在刷新的条目, 刷新后重新调度时沿用其最近使用时间
+  private final Map<String, Entry> refreshing = new HashMap<>();
+  private final AtomicLong refreshed = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong overflow = new AtomicLong();
+  private final AtomicLong idle = new AtomicLong();
+  private volatile Metrics metrics;
+  private ExecutorService workers;
+  private Thread scheduler;
+  private boolean closed;
+
+  public RefreshScheduler() {
+    this(
+        DEFAULT_LEAD_SECONDS,
+        DEFAULT_JITTER_SECONDS,
+        DEFAULT_PARALLELISM,
+        DEFAULT_MAX_SIZE,
+        DEFAULT_IDLE_SECONDS);
+  }
+
+  public RefreshScheduler(long leadSeconds, long jitterSeconds, int parallelism, int maxSize) {
+    this(leadSeconds, jitterSeconds, parallelism, maxSize, DEFAULT_IDLE_SECONDS);
+  }
+
+  /** A scheduler that stops refreshing sessions not used for {@code idleSeconds}. */
+  public RefreshScheduler(
+      long leadSeconds, long jitterSeconds, int parallelism, int maxSize, long idleSeconds) {
+    if (parallelism <= 0) {
+      throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+    }
+    if (idleSeconds <= 0) {
+      throw new IllegalArgumentException("idleSeconds must be positive: " + idleSeconds);
+    }
+    this.leadMillis = TimeUnit.SECONDS.toMillis(leadSeconds);
+    this.jitterMillis = TimeUnit.SECONDS.toMillis(jitterSeconds);
+    this.parallelism = parallelism;
+    this.maxSize = maxSize;
+    this.idleMillis = TimeUnit.SECONDS.toMillis(idleSeconds);
+  }
+
+  /**
+   * Starts refreshing with {@code refresher}, which gets the key and the token scheduled for it. It
+   * stores the new token, and schedules it again, itself; an exception counts as a failure.
+   */
+  public synchronized void start(BiConsumer<String, OAuthToken> refresher) {
+    if (scheduler != null) {
+      throw new IllegalStateException("refresh scheduler already started");
+    }
+    AtomicInteger index = new AtomicInteger();
+    workers =
+        Executors.newFixedThreadPool(
+            parallelism,
+            r -> {
+              Thread t = new Thread(r, "coze-token-refresh-" + index.incrementAndGet());
+              t.setDaemon(true);
+              return t;
+            });
+    scheduler = new Thread(() -> run(refresher), "coze-token-refresh");
+    scheduler.setDaemon(true);
+    scheduler.start();
+  }
+
+  public void bindMetrics(Metrics metrics) {
+    this.metrics = metrics;
+    metrics.gauge("coze.token.refresh.scheduled", this, RefreshScheduler::size);
+    metrics.gauge("coze.token.refresh.next.seconds", this, RefreshScheduler::secondsToNext);
+    metrics.counter("coze.token.refresh.overflow", overflow, AtomicLong::get);
+    metrics.counter("coze.token.refresh.idle", idle, AtomicLong::get);
+  }
+
+  /**
+   * Schedules {@code token} under {@code key}; a token without a refresh token is unscheduled. The
+   * session counts as used now, unless this is the scheduler's own refresh storing its result.
+   */
+  public void schedule(String key, OAuthToken token) {
+    if (token.getRefreshToken() == null || token.getRefreshToken().isEmpty()) {
+      unschedule(key);
+      return;
+    }
+    long jitter = jitterMillis > 0 ? ThreadLocalRandom.current().nextLong(jitterMillis) : 0;
+    long due = TimeUnit.SECONDS.toMillis(token.getExpiresIn()) - leadMillis - jitter;
+    add(new Entry(key, token, due, System.currentTimeMillis()), true);
+  }
+
+  public void unschedule(String key) {
+    lock.lock();
+    try {
+      Entry entry = entries.remove(key);
+      if (entry != null) {
+        entry.cancelled = true;
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Tokens waiting for their refresh. */
+  public int size() {
+    lock.lock();
+    try {
+      return entries.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public long getRefreshed() {
+    return refreshed.get();
+  }
+
+  public long getFailed() {
+    return failed.get();
+  }
+
+  /** Tokens dropped instead of refreshed because their session was idle. */
+  public long getIdle() {
+    return idle.get();
+  }
+
+  @Override
+  public void close() {
+    lock.lock();
+    try {
+      closed = true;
+      changed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    synchronized (this) {
+      if (workers != null) {
+        workers.shutdownNow();
+      }
+    }
+  }
+
+  // replace: whether the entry replaces one already scheduled for the key, or is a retry that
+  // yields to it
+  private void add(Entry entry, boolean replace) {
+    lock.lock();
+    try {
+      if (closed) {
+        return;
+      }
+      Entry inFlight = refreshing.get(entry.key);
+      if (inFlight != null && inFlight.refresher == Thread.currentThread()) {
+        // the refresh of this key storing its result, which is no use of the session
+        entry.lastUsedMillis = inFlight.lastUsedMillis;
+      }
+      Entry previous = entries.get(entry.key);
+      if (previous != null) {
+        if (!replace) {
+          return;
+        }
+        previous.cancelled = true;
+      } else if (entries.size() >= maxSize) {
+        overflow.incrementAndGet();
+        return;
+      }
+      entries.put(entry.key, entry);
+      if (queue.size() > 2 * entries.size() + BATCH_SIZE) {
+        queue.removeIf(e -> e.cancelled);
+      }
+      queue.add(entry);
+      if (queue.peek() == entry) {
+        changed.signal();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void run(BiConsumer<String, OAuthToken> refresher) {
+    while (true) {
+      List<Entry> batch = takeBatch();
+      if (batch == null) {
+        return;
+      }
+      List<Future<?>> running = new ArrayList<>(batch.size());
+      for (Entry entry : batch) {
+        running.add(workers.submit(() -> refresh(refresher, entry)));
+      }
+      for (Future<?> future : running) {
+        try {
+          future.get();
+        } catch (InterruptedException e) {
+          return;
+        } catch (Exception e) {
+          // refresh() handles its own failures
+        }
+      }
+    }
+  }
+
+  // waits until at least one entry is due and takes the due ones; null once closed
+  private List<Entry> takeBatch() {
+    lock.lock();
+    try {
+      while (!closed) {
+        Entry head = queue.peek();
+        if (head != null && head.cancelled) {
+          queue.poll();
+          continue;
+        }
+        long wait = head == null ? Long.MAX_VALUE : head.dueMillis - System.currentTimeMillis();
+        if (wait > 0) {
+          changed.await(Math.min(wait, TimeUnit.MINUTES.toMillis(1)), TimeUnit.MILLISECONDS);
+          continue;
+        }
+        List<Entry> batch = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        while (batch.size() < BATCH_SIZE && (head = queue.peek()) != null) {
+          if (head.cancelled) {
+            queue.poll();
+          } else if (head.dueMillis <= now) {
+            queue.poll();
+            entries.remove(head.key);
+            if (now - head.lastUsedMillis > idleMillis) {
+              idle.incrementAndGet();
+            } else {
+              refreshing.put(head.key, head);
+              batch.add(head);
+            }
+          } else {
+            break;
+          }
+        }
+        return batch;
+      }
+      return null;
+    } catch (InterruptedException e) {
+      return null;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void refresh(BiConsumer<String, OAuthToken> refresher, Entry entry) {
+    long start = System.currentTimeMillis();
+    String outcome = "success";
+    lock.lock();
+    try {
+      entry.refresher = Thread.currentThread();
+    } finally {
+      lock.unlock();
+    }
+    try {
+      refresher.accept(entry.key, entry.token);
+      refreshed.incrementAndGet();
+    } catch (RuntimeException e) {
+      failed.incrementAndGet();
+      outcome = "failure";
+      long retryAt = start + TimeUnit.SECONDS.toMillis(RETRY_SECONDS);
+      if (!(e instanceof CozeAuthException)
+          && TimeUnit.SECONDS.toMillis(entry.token.getExpiresIn()) > retryAt) {
+        add(new Entry(entry.key, entry.token, retryAt, entry.lastUsedMillis), false);
+      }
+      // the key holds the browser's session id, so it is not logged
+      log.debug("Scheduled token refresh failed", e);
+    } finally {
+      lock.lock();
+      try {
+        refreshing.remove(entry.key, entry);
+      } finally {
+        lock.unlock();
+      }
+    }
+    Metrics m = metrics;
+    if (m != null) {
+      m.recordScheduledRefresh(outcome, TimeUnit.MILLISECONDS.toNanos(start - entry.dueMillis));
+    }
+  }
+
+  private double secondsToNext() {
+    lock.lock();
+    try {
+      for (Entry head; (head = queue.peek()) != null; queue.poll()) {
+        if (!head.cancelled) {
+          return (head.dueMillis - System.currentTimeMillis()) / 1000.0;
+        }
+      }
+      return 0;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private static final class Entry {
+    private final String key;
+    private final OAuthToken token;
+    private final long dueMillis;
+    private long lastUsedMillis;
+    private boolean cancelled;
+    // the worker refreshing this entry, whose call to schedule() stores the result
+    private Thread refresher;
+
+    private Entry(String key, OAuthToken token, long dueMillis, long lastUsedMillis) {
+      this.key = key;
+      this.token = token;
+      this.dueMillis = dueMillis;
+      this.lastUsedMillis = lastUsedMillis;
+    }
+  }
+}
@@ -0,0 +1,234 @@
+package com.coze.pkce.server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import com.coze.openapi.client.auth.OAuthToken;
+import com.coze.pkce.log.Redaction;
+import com.coze.pkce.model.Introspection;
+import com.coze.pkce.store.TokenStore;
+
+/**
+ * Answers whether an access token is one this server handed out and still holds, and whom it
+ * belongs to, without a call to Coze.
+ *
+ * <p>The token store is keyed by session, so each token this server stores is also recorded here
+ * under the SHA-256 of its access token, along with the session key it was stored under. A token
+ * with no entry is looked up with {@link TokenStore#findKey}, which also knows the tokens restored
+ * from disk or replicated from a peer, and recorded if the store holds it under one of this app's
+ * keys. A lookup hashes the token, finds its session and checks that the store still holds this
+ * very token there; a token that was refreshed or logged out since is turned into a negative entry,
+ * so asking about it again does not touch the store. Entries expire with the token's {@code
+ * expiresIn}, and the cache is bounded to {@code maxSize} entries, evicting the least recently
+ * used. Tokens the store does not hold are not cached: they are inactive either way, and
+ * remembering them would let arbitrary strings push out real entries.
+ */
+public class TokenIntrospector {
+  public static final int DEFAULT_MAX_SIZE = 200_000;
+
+  private static final ThreadLocal<MessageDigest> SHA256 =
+      ThreadLocal.withInitial(
+          () -> {
+            try {
+              return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+              throw new IllegalStateException("SHA-256 is not available", e);
+            }
+          });
+
+  private final TokenStore tokenStore;
+  private final Supplier<String> clientId;
+  // 只回答本应用存储的 token; 多个应用可能共用一个 token 存储
+  private final Predicate<String> ownsKey;
+  // access-ordered, so the least recently asked about entry is evicted first; guarded by itself
+  private final LinkedHashMap<Hash, Item> entries;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * Answers for the tokens {@code tokenStore} holds under a key {@code ownsKey} accepts, as tokens
+   * of the app whose client id {@code clientId} supplies.
+   */
+  public TokenIntrospector(
+      TokenStore tokenStore, Supplier<String> clientId, Predicate<String> ownsKey, int maxSize) {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+    }
+    this.tokenStore = tokenStore;
+    this.clientId = clientId;
+    this.ownsKey = ownsKey;
+    this.entries =
+        new LinkedHashMap<Hash, Item>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<Hash, Item> eldest) {
+            return size() > maxSize;
+          }
+        };
+  }
+
+  /**
+   * Records {@code token}, just stored under {@code storeKey}; its subject is the fingerprint of
+   * the session key.
+   */
+  public void add(String storeKey, OAuthToken token) {
+    add(storeKey, subjectOf(storeKey), token);
+  }
+
+  /** Records {@code token} with {@code subject} as whom it belongs to, or none if null. */
+  public void add(String storeKey, String subject, OAuthToken token) {
+    if (token.getAccessToken() == null) {
+      return;
+    }
+    Hash hash = hash(token.getAccessToken());
+    Item entry = item(storeKey, subject, token);
+    synchronized (entries) {
+      entries.put(hash, entry);
+    }
+  }
+
+  public Introspection introspect(String accessToken) {
+    if (accessToken == null || accessToken.isEmpty()) {
+      return Introspection.INACTIVE;
+    }
+    Hash hash = hash(accessToken);
+    Item entry;
+    synchronized (entries) {
+      entry = entries.get(hash);
+    }
+    if (entry == null) {
+      misses.incrementAndGet();
+      return lookUp(hash, accessToken);
+    }
+    hits.incrementAndGet();
+    if (entry.result.getExp() <= System.currentTimeMillis() / 1000) {
+      remove(hash, entry);
+      return Introspection.INACTIVE;
+    }
+    if (!entry.result.isActive()) {
+      return Introspection.INACTIVE;
+    }
+    OAuthToken current = tokenStore.get(entry.storeKey);
+    if (current == null || !Objects.equals(current.getAccessToken(), entry.accessToken)) {
+      // refreshed or logged out since; keep answering no until the token would have expired
+      Introspection inactive = Introspection.inactiveUntil(entry.result.getExp());
+      replace(hash, entry, new Item(null, null, inactive));
+      return Introspection.INACTIVE;
+    }
+    return entry.result;
+  }
+
+  /** Lookups answered from an entry, positive or negative. */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /** Lookups of tokens with no entry. */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  // finds a token that was not stored through add, such as one restored from disk or replicated
+  // from a peer, in the store's own index
+  private Introspection lookUp(Hash hash, String accessToken) {
+    String storeKey = tokenStore.findKey(accessToken);
+    if (storeKey == null || !ownsKey.test(storeKey)) {
+      return Introspection.INACTIVE;
+    }
+    OAuthToken token = tokenStore.get(storeKey);
+    if (token == null
+        || !accessToken.equals(token.getAccessToken())
+        || token.getExpiresIn() <= System.currentTimeMillis() / 1000) {
+      return Introspection.INACTIVE;
+    }
+    Item entry = item(storeKey, subjectOf(storeKey), token);
+    synchronized (entries) {
+      entries.putIfAbsent(hash, entry);
+    }
+    return entry.result;
+  }
+
+  private Item item(String storeKey, String subject, OAuthToken token) {
+    Introspection result =
+        Introspection.active(clientId.get(), subject, token.getTokenType(), token.getExpiresIn());
+    return new Item(storeKey, token.getAccessToken(), result);
+  }
+
+  private static String subjectOf(String storeKey) {
+    return Redaction.fingerprint(storeKey);
+  }
+
+  private void remove(Hash hash, Item entry) {
+    synchronized (entries) {
+      entries.remove(hash, entry);
+    }
+  }
+
+  private void replace(Hash hash, Item entry, Item replacement) {
+    synchronized (entries) {
+      entries.replace(hash, entry, replacement);
+    }
+  }
+
+  // the first 16 bytes of the SHA-256 of the token
+  private static Hash hash(String accessToken) {
+    MessageDigest sha256 = SHA256.get();
+    byte[] digest = sha256.digest(accessToken.getBytes(StandardCharsets.UTF_8));
+    long high = 0;
+    long low = 0;
+    for (int i = 0; i < 8; i++) {
+      high = (high << 8) | (digest[i] & 0xff);
+      low = (low << 8) | (digest[8 + i] & 0xff);
+    }
+    return new Hash(high, low);
+  }
+
+  private static final class Hash {
+    private final long high;
+    private final long low;
+
+    private Hash(long high, long low) {
+      this.high = high;
+      this.low = low;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Hash)) {
+        return false;
+      }
+      Hash other = (Hash) o;
+      return high == other.high && low == other.low;
+    }
+
+    @Override
+    public int hashCode() {
+      return (int) low;
+    }
+  }
+
+  private static final class Item {
+    // null for a negative entry
+    private final String storeKey;
+    private final String accessToken;
+    private final Introspection result;
+
+    private Item(String storeKey, String accessToken, Introspection result) {
+      this.storeKey = storeKey;
+      this.accessToken = accessToken;
+      this.result = result;
+    }
+  }
+}
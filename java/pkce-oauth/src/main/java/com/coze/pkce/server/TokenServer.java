@@ -1,14 +1,26 @@
 package com.coze.pkce.server;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Base64;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import javax.servlet.http.Cookie;
 
 import org.apache.commons.io.IOUtils;
 
@@ -16,131 +28,502 @@ import com.coze.openapi.client.auth.GetPKCEAuthURLResp;
 import com.coze.openapi.client.auth.OAuthConfig;
 import com.coze.openapi.client.auth.OAuthToken;
 import com.coze.openapi.service.auth.PKCEOAuthClient;
-import com.coze.pkce.model.TokenResponse;
+import com.coze.pkce.config.ReloadableConfig;
+import com.coze.pkce.log.EventLog;
+import com.coze.pkce.metrics.Metrics;
+import com.coze.pkce.model.Introspection;
+import com.coze.pkce.model.TokenJson;
+import com.coze.pkce.store.InMemoryTokenStore;
+import com.coze.pkce.store.TokenStore;
 
 import io.javalin.Javalin;
-import io.javalin.http.staticfiles.Location;
+import io.javalin.http.Context;
 
 public class TokenServer {
-  private final PKCEOAuthClient oauthClient;
-  private final OAuthConfig appConfig;
+  private static final String SESSION_COOKIE = "coze_session";
+  private static final String[] PAGE_LINKS = {"/", "/login", "/callback", "/refresh_token"};
+  // 一次批量刷新最多多少个会话的 token
+  private static final int MAX_BATCH_SIZE = 100;
+  // 一次批量校验最多多少个 access token; 校验不调用上游, 上限比批量刷新高
+  private static final int MAX_INTROSPECT_BATCH_SIZE = 1000;
+
+  // 配置文件修改后会替换为新的配置和客户端, 每次使用时读取
+  private final ReloadableConfig<PKCEOAuthClient> oauth;
+  private final RefreshCoalescer refreshCoalescer;
+  private final TokenStore tokenStore;
+  private final Metrics metrics;
+  // 非空时在独立线程上调用 Coze 授权接口, 上游变慢时不会占满 Jetty 的请求线程
+  private final UpstreamExecutor upstreamExecutor;
+  // 非空时对 Coze 授权接口的调用限流并熔断, 状态见 /admin/upstream
+  private final UpstreamGuard upstreamGuard;
+  // 非空时在 token 过期前于后台刷新, 用户不必在请求中等待刷新
+  private final RefreshScheduler refreshScheduler;
+  // 非空时 code_verifier 和 state 保存在加密 cookie 中, 不依赖服务端 session
+  private final PkceStateCookie stateCookie;
+  // 按 access token 的哈希查找存储它的会话, 供 /introspect 使用
+  private final TokenIntrospector introspector;
+  // 决定谁能访问 /metrics, /admin/upstream 和 /introspect
+  private final AdminAccess adminAccess;
+  private final SecureRandom random = new SecureRandom();
   private Javalin app;
-  private final String redirectUri = "http://127.0.0.1:8080/callback";
+  // 首页只依赖应用配置, 启动时和配置重新加载后渲染一次并预先压缩
+  private volatile StaticAssets.Asset indexPage;
+  private volatile String pagePrefix = "";
+  private HtmlTemplate callbackTemplate;
+  private HtmlTemplate errorTemplate;
+  private String redirectUri = "http://127.0.0.1:8080/callback";
 
   public TokenServer(PKCEOAuthClient oauthClient, OAuthConfig appConfig) {
-    this.oauthClient = oauthClient;
-    this.appConfig = appConfig;
+    this(oauthClient, appConfig, new InMemoryTokenStore());
+  }
+
+  public TokenServer(PKCEOAuthClient oauthClient, OAuthConfig appConfig, TokenStore tokenStore) {
+    this(oauthClient, appConfig, tokenStore, null, new Metrics());
+  }
+
+  public TokenServer(
+      PKCEOAuthClient oauthClient,
+      OAuthConfig appConfig,
+      TokenStore tokenStore,
+      PkceStateCookie stateCookie,
+      Metrics metrics) {
+    this(oauthClient, appConfig, tokenStore, stateCookie, metrics, null);
+  }
+
+  public TokenServer(
+      PKCEOAuthClient oauthClient,
+      OAuthConfig appConfig,
+      TokenStore tokenStore,
+      PkceStateCookie stateCookie,
+      Metrics metrics,
+      UpstreamExecutor upstreamExecutor) {
+    this(oauthClient, appConfig, tokenStore, stateCookie, metrics, upstreamExecutor, null);
+  }
+
+  public TokenServer(
+      PKCEOAuthClient oauthClient,
+      OAuthConfig appConfig,
+      TokenStore tokenStore,
+      PkceStateCookie stateCookie,
+      Metrics metrics,
+      UpstreamExecutor upstreamExecutor,
+      UpstreamGuard upstreamGuard) {
+    this(
+        ReloadableConfig.fixed(appConfig, oauthClient),
+        tokenStore,
+        stateCookie,
+        metrics,
+        upstreamExecutor,
+        upstreamGuard);
+  }
+
+  /**
+   * A server whose config and client are swapped when {@code oauth} reloads them; requests already
+   * running finish with the client they started with.
+   */
+  public TokenServer(
+      ReloadableConfig<PKCEOAuthClient> oauth,
+      TokenStore tokenStore,
+      PkceStateCookie stateCookie,
+      Metrics metrics,
+      UpstreamExecutor upstreamExecutor,
+      UpstreamGuard upstreamGuard) {
+    this(oauth, tokenStore, stateCookie, metrics, upstreamExecutor, upstreamGuard, null);
+  }
+
+  /**
+   * A server that also refreshes stored tokens before they expire with {@code refreshScheduler},
+   * which it starts and closes.
+   */
+  public TokenServer(
+      ReloadableConfig<PKCEOAuthClient> oauth,
+      TokenStore tokenStore,
+      PkceStateCookie stateCookie,
+      Metrics metrics,
+      UpstreamExecutor upstreamExecutor,
+      UpstreamGuard upstreamGuard,
+      RefreshScheduler refreshScheduler) {
+    this(
+        oauth,
+        tokenStore,
+        stateCookie,
+        metrics,
+        upstreamExecutor,
+        upstreamGuard,
+        refreshScheduler,
+        AdminAccess.loopbackOnly());
+  }
+
+  /**
+   * A server whose metrics, admin and introspection routes only answer the requests {@code
+   * adminAccess} allows; the other constructors allow direct requests from this host only.
+   */
+  public TokenServer(
+      ReloadableConfig<PKCEOAuthClient> oauth,
+      TokenStore tokenStore,
+      PkceStateCookie stateCookie,
+      Metrics metrics,
+      UpstreamExecutor upstreamExecutor,
+      UpstreamGuard upstreamGuard,
+      RefreshScheduler refreshScheduler,
+      AdminAccess adminAccess) {
+    this.oauth = oauth;
+    this.tokenStore = tokenStore;
+    this.stateCookie = stateCookie;
+    this.metrics = metrics;
+    this.upstreamExecutor = upstreamExecutor;
+    this.upstreamGuard = upstreamGuard;
+    this.refreshScheduler = refreshScheduler;
+    this.adminAccess = adminAccess;
+    this.refreshCoalescer =
+        new RefreshCoalescer(
+            refreshToken ->
+                audit(
+                    "token_refreshed",
+                    metrics.upstream(
+                        "refreshToken",
+                        () -> guarded(() -> oauth.client().refreshToken(refreshToken)))),
+            RefreshCoalescer.DEFAULT_RESULT_TTL_MILLIS);
+    compilePages("");
+    oauth.onReload(snapshot -> renderIndexPage());
+    oauth.bindMetrics(metrics);
+    metrics.bindCache(
+        "refresh", refreshCoalescer, RefreshCoalescer::getHits, RefreshCoalescer::getMisses);
+    metrics.gauge("coze.token.store.size", tokenStore, TokenStore::size);
+    this.introspector =
+        new TokenIntrospector(
+            tokenStore,
+            () -> oauth.config().getClientId(),
+            key -> key.startsWith(genTokenSessionKey() + ":"),
+            TokenIntrospector.DEFAULT_MAX_SIZE);
+    metrics.bindCache(
+        "introspect", introspector, TokenIntrospector::getHits, TokenIntrospector::getMisses);
+    metrics.gauge("coze.introspect.cache.size", introspector, TokenIntrospector::size);
+    if (upstreamExecutor != null) {
+      metrics.gauge("coze.upstream.inflight", upstreamExecutor, UpstreamExecutor::inFlight);
+      metrics.counter("coze.upstream.rejected", upstreamExecutor, UpstreamExecutor::getRejected);
+      metrics.counter("coze.upstream.timeouts", upstreamExecutor, UpstreamExecutor::getTimedOut);
+    }
+    if (upstreamGuard != null) {
+      upstreamGuard.bindMetrics(metrics);
+    }
+    if (refreshScheduler != null) {
+      refreshScheduler.bindMetrics(metrics);
+      refreshScheduler.start(this::refreshStored);
+    }
   }
 
   public void start(int port) {
     app =
         Javalin.create(
-                config -> {
-                  config.addStaticFiles(
-                      staticFiles -> {
-                        staticFiles.directory = "/assets";
-                        staticFiles.location = Location.CLASSPATH;
-                        staticFiles.hostedPath = "/assets";
-                      });
-                  config.addStaticFiles(
-                      staticFiles -> {
-                        staticFiles.directory = "/websites";
-                        staticFiles.location = Location.CLASSPATH;
-                      });
-                })
-            .get(
-                "/",
-                ctx -> {
-                  Map<String, String> model = new HashMap<>();
-                  model.put("client_type", appConfig.getClientType());
-                  model.put("client_id", appConfig.getClientId());
-                  String html = null;
-                  try {
-                    html = formatHtml(readFromResources("websites/index.html"), model);
-                  } catch (Exception e) {
-                    e.printStackTrace();
-                    throw e;
-                  }
-                  ctx.contentType("text/html");
-                  ctx.html(html);
-                })
-            .post(
-                "/refresh_token",
-                ctx -> {
-                  OAuthToken oldToken = ctx.sessionAttribute(genTokenSessionKey());
-                  if (oldToken == null) {
-                    throw new RuntimeException(
-                        "Authorization failed: No authorization code received.");
-                  }
-                  OAuthToken tokenResp = oauthClient.refreshToken(oldToken.getRefreshToken());
-                  ctx.sessionAttribute(genTokenSessionKey(), tokenResp);
-                  ctx.json(TokenResponse.convertToTokenResponse(tokenResp));
-                })
-            .get(
-                "/callback",
-                ctx -> {
-                  String code = ctx.queryParam("code");
-                  if (code == null) {
-                    throw new RuntimeException(
-                        "Authorization failed: No authorization code received.");
-                  }
-                  try {
-                    String codeVerifier = ctx.sessionAttribute(genCodeVerifierSessionKey());
-                    OAuthToken tokenResp =
-                        oauthClient.getAccessToken(code, redirectUri, codeVerifier);
-                    ctx.sessionAttribute(genTokenSessionKey(), tokenResp);
-                    Map<String, String> model = new HashMap<>();
-                    model.put("token_type", tokenResp.getTokenType());
-                    model.put("access_token", tokenResp.getAccessToken());
-                    model.put("refresh_token", tokenResp.getRefreshToken());
-                    model.put(
-                        "expires_in",
-                        String.format(
-                            "%d (%s)",
-                            tokenResp.getExpiresIn(),
-                            timestampToDateTime(tokenResp.getExpiresIn())));
-                    String html = formatHtml(readFromResources("websites/callback.html"), model);
-                    ctx.contentType("text/html");
-                    ctx.result(html);
-
-                  } catch (Exception e) {
-                    throw new RuntimeException("Authorization failed: " + e.getMessage());
-                  }
-                })
-            .get(
-                "/login",
+            config -> {
+              config.requestLogger(
+                  (ctx, ms) ->
+                      metrics.recordRequest(
+                          routeOf(ctx), ctx.method(), ctx.status(), (long) (ms * 1e6)));
+            });
+    register(app, "", "http://127.0.0.1:" + port);
+    StaticAssets.fromClasspath("assets", StaticAssets.ASSET_CACHE_CONTROL).register(app, "/assets");
+    StaticAssets.fromClasspath("websites", StaticAssets.PAGE_CACHE_CONTROL).register(app, "");
+    app
+        .get(
+            "/metrics",
+            adminAccess.guard(
                 ctx -> {
-                  GetPKCEAuthURLResp resp = oauthClient.genOAuthURL(redirectUri, "state");
-                  ctx.sessionAttribute(genCodeVerifierSessionKey(), resp.getCodeVerifier());
-                  ctx.redirect(resp.getAuthorizationURL());
-                })
-            .exception(
-                Exception.class,
-                (e, ctx) -> {
-                  Map<String, String> model = new HashMap<>();
-                  model.put("error", e.getMessage());
-                  String html = null;
-                  try {
-                    html = formatHtml(readFromResources("websites/error.html"), model);
-                  } catch (Exception e1) {
-                    ctx.status(500).result("Error getting html: " + e.getMessage());
-                    return;
-                  }
-                  ctx.contentType("text/html");
-                  ctx.result(html);
-                })
-            .start("127.0.0.1", port);
+                  ctx.contentType(Metrics.CONTENT_TYPE);
+                  ctx.result(metrics.scrape());
+                }));
+    if (upstreamGuard != null) {
+      app.get("/admin/upstream", adminAccess.guard(ctx -> ctx.json(upstreamGuard.state())))
+          .post(
+              "/admin/upstream/reset",
+              adminAccess.guard(
+                  ctx -> {
+                    upstreamGuard.reset();
+                    ctx.json(upstreamGuard.state());
+                  }));
+    }
+    app.exception(Exception.class, this::renderError)
+        .start("127.0.0.1", port);
+  }
+
+  /**
+   * Adds the pages and routes of this server to {@code javalin} under {@code prefix} ("" for the
+   * root), so several servers can share one Javalin instance. {@code baseUrl} is the externally
+   * visible origin the OAuth redirect comes back to. Exceptions are not mapped here; the owner of
+   * {@code javalin} should send them to {@link #renderError}.
+   */
+  public void register(Javalin javalin, String prefix, String baseUrl) {
+    redirectUri = baseUrl + prefix + "/callback";
+    compilePages(prefix);
+    javalin
+        .get(prefix + "/", ctx -> indexPage.send(ctx))
+        .post(
+            prefix + "/refresh_token",
+            ctx -> {
+              String storeKey = genTokenStoreKey(ctx);
+              OAuthToken oldToken = tokenStore.get(storeKey);
+              if (oldToken == null) {
+                throw new RuntimeException("Authorization failed: No authorization code received.");
+              }
+              ctx.contentType(TokenJson.CONTENT_TYPE);
+              respond(
+                  ctx,
+                  () -> {
+                    OAuthToken tokenResp = refreshCoalescer.refresh(oldToken.getRefreshToken());
+                    store(storeKey, tokenResp);
+                    return TokenJson.toBytes(tokenResp);
+                  });
+            })
+        .post(
+            prefix + "/refresh_tokens",
+            ctx -> {
+              String[] sessionIds = ctx.bodyAsClass(String[].class);
+              if (sessionIds.length > MAX_BATCH_SIZE) {
+                throw new RuntimeException(
+                    "Refresh failed: at most " + MAX_BATCH_SIZE + " sessions per request.");
+              }
+              ctx.contentType(TokenJson.CONTENT_TYPE);
+              streamTokens(ctx, sessionIds, this::refreshSession);
+            })
+        .post(prefix + "/introspect", adminAccess.guard(this::introspect))
+        .post(prefix + "/introspect_tokens", adminAccess.guard(this::introspectBatch))
+        .get(
+            prefix + "/callback",
+            ctx -> {
+              String code = ctx.queryParam("code");
+              if (code == null) {
+                throw new RuntimeException("Authorization failed: No authorization code received.");
+              }
+              String codeVerifier;
+              if (stateCookie != null) {
+                codeVerifier =
+                    stateCookie.open(
+                        ctx.cookie(PkceStateCookie.NAME), ctx.queryParam("state"));
+                setCookie(ctx, PkceStateCookie.NAME, "", 0);
+              } else {
+                codeVerifier = ctx.sessionAttribute(genCodeVerifierSessionKey());
+              }
+              String storeKey = genTokenStoreKey(ctx);
+              ctx.contentType("text/html");
+              respond(
+                  ctx,
+                  () -> {
+                    try {
+                      OAuthToken tokenResp =
+                          metrics.upstream(
+                              "getAccessToken",
+                              () ->
+                                  guarded(
+                                      () ->
+                                          oauth
+                                              .client()
+                                              .getAccessToken(code, redirectUri, codeVerifier)));
+                      store(storeKey, tokenResp);
+                      audit("token_issued", tokenResp);
+                      Map<String, String> model = new HashMap<>();
+                      model.put("token_type", tokenResp.getTokenType());
+                      model.put("access_token", tokenResp.getAccessToken());
+                      model.put("refresh_token", tokenResp.getRefreshToken());
+                      model.put(
+                          "expires_in",
+                          String.format(
+                              "%d (%s)",
+                              tokenResp.getExpiresIn(),
+                              timestampToDateTime(tokenResp.getExpiresIn())));
+                      return callbackTemplate.render(model);
+
+                    } catch (UpstreamUnavailableException e) {
+                      throw e;
+                    } catch (Exception e) {
+                      throw new RuntimeException("Authorization failed: " + e.getMessage());
+                    }
+                  });
+            })
+        .get(
+            prefix + "/login",
+            ctx -> {
+              if (stateCookie != null) {
+                String state = stateCookie.newState();
+                GetPKCEAuthURLResp resp =
+                    metrics.upstream(
+                        "genOAuthURL", () -> oauth.client().genOAuthURL(redirectUri, state));
+                setCookie(
+                    ctx,
+                    PkceStateCookie.NAME,
+                    stateCookie.seal(state, resp.getCodeVerifier()),
+                    PkceStateCookie.MAX_AGE_SECONDS);
+                ctx.redirect(resp.getAuthorizationURL());
+                return;
+              }
+              GetPKCEAuthURLResp resp =
+                  metrics.upstream(
+                      "genOAuthURL", () -> oauth.client().genOAuthURL(redirectUri, "state"));
+              ctx.sessionAttribute(genCodeVerifierSessionKey(), resp.getCodeVerifier());
+              ctx.redirect(resp.getAuthorizationURL());
+            });
+  }
+
+  // tells whether the access token in the form field "token" is one this server issued and still
+  // holds, in the shape of an RFC 7662 introspection response
+  private void introspect(Context ctx) {
+    String token = ctx.formParam("token");
+    if (token == null) {
+      throw new RuntimeException("Introspection failed: no token given.");
+    }
+    ctx.header("Cache-Control", "no-store");
+    ctx.contentType(TokenJson.CONTENT_TYPE);
+    ctx.result(introspector.introspect(token).toBytes());
+  }
+
+  // introspects a JSON array of access tokens, answering with an array in the same order
+  private void introspectBatch(Context ctx) throws IOException {
+    String[] tokens = ctx.bodyAsClass(String[].class);
+    if (tokens.length > MAX_INTROSPECT_BATCH_SIZE) {
+      throw new RuntimeException(
+          "Introspection failed: at most " + MAX_INTROSPECT_BATCH_SIZE + " tokens per request.");
+    }
+    ctx.header("Cache-Control", "no-store");
+    ctx.contentType(TokenJson.CONTENT_TYPE);
+    try (Introspection.Batch batch = Introspection.batch(ctx.res.getOutputStream())) {
+      for (String token : tokens) {
+        batch.add(introspector.introspect(token));
+      }
+    }
+  }
+
+  /** Renders the error page for an exception thrown by one of this server's routes. */
+  public void renderError(Exception e, Context ctx) {
+    metrics.event(
+        "error",
+        "path",
+        ctx.path(),
+        "exception",
+        e.getClass().getName(),
+        "cause",
+        e.getCause() != null ? e.getCause().getClass().getName() : null,
+        "message",
+        e.getMessage());
+    Map<String, String> model = new HashMap<>();
+    model.put("error", e.getMessage());
+    String html = null;
+    try {
+      html = errorTemplate.render(model);
+    } catch (Exception e1) {
+      ctx.status(500).result("Error getting html: " + e.getMessage());
+      return;
+    }
+    if (e instanceof UpstreamUnavailableException) {
+      int status = ((UpstreamUnavailableException) e).getStatus();
+      ctx.status(status);
+      if (status == 429 || status == 503) {
+        long retryAfter = upstreamGuard != null ? upstreamGuard.retryAfterSeconds() : 1;
+        ctx.header("Retry-After", String.valueOf(retryAfter));
+      }
+    }
+    ctx.contentType("text/html");
+    ctx.result(html);
   }
 
   public void stop() {
     if (app != null) {
       app.stop();
     }
+    if (refreshScheduler != null) {
+      refreshScheduler.close();
+    }
+    tokenStore.close();
+    oauth.close();
+    if (upstreamExecutor != null) {
+      upstreamExecutor.close();
+    }
+  }
+
+  // runs a handler that calls the Coze auth API: inline, or on the upstream executor so the Jetty
+  // thread is released while it waits. A String or byte[] result is sent as is, anything else as
+  // JSON.
+  private void respond(Context ctx, Supplier<?> handler) {
+    if (upstreamExecutor != null) {
+      ctx.future(
+          upstreamExecutor.submit(
+              () -> {
+                Object result = handler.get();
+                return result instanceof byte[]
+                    ? new ByteArrayInputStream((byte[]) result)
+                    : result;
+              }));
+      return;
+    }
+    Object result = handler.get();
+    if (result instanceof String) {
+      ctx.result((String) result);
+    } else if (result instanceof byte[]) {
+      ctx.result((byte[]) result);
+    } else {
+      ctx.json(result);
+    }
+  }
+
+  // writes one token response per key as a JSON array, in the order of the keys, each flushed as
+  // soon as its token is there. A key that fails gets an {"error": ...} element instead. With the
+  // upstream executor all keys are loaded concurrently.
+  private void streamTokens(Context ctx, String[] keys, Function<String, OAuthToken> load)
+      throws IOException {
+    List<CompletableFuture<OAuthToken>> loading = new ArrayList<>(keys.length);
+    if (upstreamExecutor != null) {
+      for (String key : keys) {
+        CompletableFuture<OAuthToken> token;
+        try {
+          token = upstreamExecutor.submit(() -> load.apply(key));
+        } catch (UpstreamUnavailableException e) {
+          token = new CompletableFuture<>();
+          token.completeExceptionally(e);
+        }
+        loading.add(token);
+      }
+    }
+    try (TokenJson.Batch batch = TokenJson.batch(ctx.res.getOutputStream())) {
+      for (int i = 0; i < keys.length; i++) {
+        try {
+          batch.token(loading.isEmpty() ? load.apply(keys[i]) : loading.get(i).join());
+        } catch (CompletionException e) {
+          batch.error(String.valueOf(e.getCause().getMessage()));
+        } catch (RuntimeException e) {
+          batch.error(String.valueOf(e.getMessage()));
+        }
+      }
+    }
   }
 
-  private String formatHtml(String html, Map<String, String> model) {
-    for (Map.Entry<String, String> entry : model.entrySet()) {
-      html = html.replace("{{" + entry.getKey() + "}}", entry.getValue());
+  // the pages link to the routes by absolute path, so under a prefix the links must include it
+  private void compilePages(String prefix) {
+    pagePrefix = prefix;
+    renderIndexPage();
+    callbackTemplate =
+        HtmlTemplate.compile(withPrefix(readFromResources("websites/callback.html"), prefix));
+    errorTemplate =
+        HtmlTemplate.compile(withPrefix(readFromResources("websites/error.html"), prefix));
+  }
+
+  private void renderIndexPage() {
+    OAuthConfig appConfig = oauth.config();
+    Map<String, String> model = new HashMap<>();
+    model.put("client_id", appConfig.getClientId());
+    model.put("client_type", appConfig.getClientType());
+    indexPage =
+        StaticAssets.page(
+            HtmlTemplate.compile(withPrefix(readFromResources("websites/index.html"), pagePrefix))
+                .render(model));
+  }
+
+  private static String withPrefix(String html, String prefix) {
+    if (prefix.isEmpty()) {
+      return html;
+    }
+    for (String route : PAGE_LINKS) {
+      html =
+          html.replace("\"" + route + "\"", "\"" + prefix + route + "\"")
+              .replace("'" + route + "'", "'" + prefix + route + "'");
     }
     return html;
   }
@@ -159,6 +542,67 @@ public class TokenServer {
     }
   }
 
+  // records which token went out, by fingerprint only; returns the token
+  private OAuthToken audit(String action, OAuthToken token) {
+    metrics.event(
+        "audit",
+        "action",
+        action,
+        "client_id",
+        oauth.config().getClientId(),
+        "access_token",
+        EventLog.secret(token.getAccessToken()),
+        "refresh_token",
+        EventLog.secret(token.getRefreshToken()),
+        "expires_in",
+        token.getExpiresIn());
+    return token;
+  }
+
+  /** The rate limit and circuit breaker of this app's upstream calls; null when there are none. */
+  public UpstreamGuard getUpstreamGuard() {
+    return upstreamGuard;
+  }
+
+  private void store(String storeKey, OAuthToken token) {
+    tokenStore.put(storeKey, token);
+    introspector.add(storeKey, token);
+    if (refreshScheduler != null) {
+      refreshScheduler.schedule(storeKey, token);
+    }
+  }
+
+  // refreshes the token of the session whose cookie is sessionId and stores the new one, as
+  // /refresh_token does for the caller's own session; holding the session id is what proves the
+  // caller owns the session, like the cookie does
+  private OAuthToken refreshSession(String sessionId) {
+    if (!validSessionId(sessionId)) {
+      throw new IllegalArgumentException("invalid session id");
+    }
+    String storeKey = genTokenSessionKey() + ":" + sessionId;
+    OAuthToken oldToken = tokenStore.get(storeKey);
+    if (oldToken == null) {
+      throw new IllegalArgumentException("no token for this session");
+    }
+    OAuthToken token = refreshCoalescer.refresh(oldToken.getRefreshToken());
+    store(storeKey, token);
+    return token;
+  }
+
+  // refreshes a token the scheduler found due, unless the session has moved on since: it logged
+  // out, or a refresh on another path or node stored a newer token
+  private void refreshStored(String storeKey, OAuthToken token) {
+    OAuthToken current = tokenStore.get(storeKey);
+    if (current == null || !Objects.equals(current.getAccessToken(), token.getAccessToken())) {
+      return;
+    }
+    store(storeKey, refreshCoalescer.refresh(current.getRefreshToken()));
+  }
+
+  private <T> T guarded(Supplier<T> call) {
+    return upstreamGuard != null ? upstreamGuard.call(call) : call.get();
+  }
+
   public static String timestampToDateTime(long timestamp) {
     LocalDateTime dateTime =
         LocalDateTime.ofInstant(Instant.ofEpochSecond(timestamp), ZoneId.systemDefault());
@@ -166,10 +610,43 @@ public class TokenServer {
   }
 
   private String genCodeVerifierSessionKey() {
-    return String.format("code_verifier_%s", appConfig.getClientId());
+    return String.format("code_verifier_%s", oauth.config().getClientId());
   }
 
   private String genTokenSessionKey() {
-    return String.format("access_token_%s", appConfig.getClientId());
+    return String.format("access_token_%s", oauth.config().getClientId());
+  }
+
+  private static boolean validSessionId(String sessionId) {
+    return sessionId != null && !sessionId.isEmpty() && sessionId.length() <= 64;
+  }
+
+  private static String routeOf(Context ctx) {
+    String route = ctx.matchedPath();
+    return route == null || route.isEmpty() ? "static" : route;
+  }
+
+  private String genTokenStoreKey(Context ctx) {
+    return genTokenSessionKey() + ":" + sessionId(ctx);
+  }
+
+  // identifies the browser with our own cookie, so tokens do not live in the servlet session
+  private String sessionId(Context ctx) {
+    String sessionId = ctx.cookie(SESSION_COOKIE);
+    if (!validSessionId(sessionId)) {
+      byte[] bytes = new byte[16];
+      random.nextBytes(bytes);
+      sessionId = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+      setCookie(ctx, SESSION_COOKIE, sessionId, -1);
+    }
+    return sessionId;
+  }
+
+  private static void setCookie(Context ctx, String name, String value, int maxAge) {
+    Cookie cookie = new Cookie(name, value);
+    cookie.setHttpOnly(true);
+    cookie.setPath("/");
+    cookie.setMaxAge(maxAge);
+    ctx.res.addCookie(cookie);
   }
 }
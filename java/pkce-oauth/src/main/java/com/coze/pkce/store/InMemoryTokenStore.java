@@ -0,0 +1,121 @@
+package com.coze.pkce.store;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.coze.openapi.client.auth.OAuthToken;
+
+/**
+ * Heap token store bounded to {@code maxSize} entries, evicting the least recently used entry when
+ * full. Entries expire at the token's {@code expiresIn}, plus {@code retainSeconds} for tokens that
+ * carry a refresh token so that the session can still be refreshed after the access token expired.
+ * The entries are also indexed by access token for {@link #findKey}.
+ */
+public class InMemoryTokenStore implements TokenStore {
+  public static final int DEFAULT_MAX_SIZE = 100_000;
+  public static final long DEFAULT_RETAIN_SECONDS = 30 * 24 * 3600L;
+
+  private final long retainSeconds;
+  private final LinkedHashMap<String, Item> entries;
+  private final AccessTokenIndex accessTokens = new AccessTokenIndex();
+
+  public InMemoryTokenStore() {
+    this(DEFAULT_MAX_SIZE, DEFAULT_RETAIN_SECONDS);
+  }
+
+  public InMemoryTokenStore(int maxSize) {
+    this(maxSize, DEFAULT_RETAIN_SECONDS);
+  }
+
+  public InMemoryTokenStore(int maxSize, long retainSeconds) {
+    this.retainSeconds = retainSeconds;
+    this.entries =
+        new LinkedHashMap<String, Item>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, Item> eldest) {
+            if (size() <= maxSize) {
+              return false;
+            }
+            accessTokens.remove(eldest.getKey(), eldest.getValue().token);
+            return true;
+          }
+        };
+  }
+
+  @Override
+  public synchronized OAuthToken get(String key) {
+    Item entry = entries.get(key);
+    if (entry == null) {
+      return null;
+    }
+    if (entry.expiresAt <= nowSeconds()) {
+      remove(key);
+      return null;
+    }
+    return entry.token;
+  }
+
+  @Override
+  public synchronized void put(String key, OAuthToken token) {
+    Item previous = entries.put(key, new Item(token, expiresAt(token, retainSeconds)));
+    if (previous != null) {
+      accessTokens.remove(key, previous.token);
+    }
+    accessTokens.add(key, token);
+  }
+
+  @Override
+  public synchronized void remove(String key) {
+    Item previous = entries.remove(key);
+    if (previous != null) {
+      accessTokens.remove(key, previous.token);
+    }
+  }
+
+  @Override
+  public String findKey(String accessToken) {
+    return accessTokens.find(accessToken);
+  }
+
+  @Override
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /** The live entries, least recently used first. */
+  synchronized List<Map.Entry<String, OAuthToken>> snapshot() {
+    long now = nowSeconds();
+    List<Map.Entry<String, OAuthToken>> live = new ArrayList<>(entries.size());
+    for (Map.Entry<String, Item> entry : entries.entrySet()) {
+      if (entry.getValue().expiresAt > now) {
+        live.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), entry.getValue().token));
+      }
+    }
+    return live;
+  }
+
+  static long expiresAt(OAuthToken token, long retainSeconds) {
+    long expiresAt = token.getExpiresIn();
+    if (token.getRefreshToken() != null && !token.getRefreshToken().isEmpty()) {
+      expiresAt += retainSeconds;
+    }
+    return expiresAt;
+  }
+
+  static long nowSeconds() {
+    return System.currentTimeMillis() / 1000;
+  }
+
+  private static final class Item {
+    private final OAuthToken token;
+    private final long expiresAt;
+
+    private Item(OAuthToken token, long expiresAt) {
+      this.token = token;
+      this.expiresAt = expiresAt;
+    }
+  }
+}
@@ -0,0 +1,27 @@
+package com.coze.pkce.store;
+
+import com.coze.openapi.client.auth.OAuthToken;
+
+/** Keeps the OAuth token of each browser session, keyed by a per-session string. */
+public interface TokenStore extends AutoCloseable {
+  /** Returns the token stored under {@code key}, or null if there is none or it has expired. */
+  OAuthToken get(String key);
+
+  void put(String key, OAuthToken token);
+
+  void remove(String key);
+
+  /**
+   * Returns the key a token with {@code accessToken} is stored under, or null if there is none or
+   * the store cannot tell. The token may have changed since, so check it with {@link #get}.
+   */
+  default String findKey(String accessToken) {
+    return null;
+  }
+
+  /** Number of live entries; may be approximate. */
+  int size();
+
+  @Override
+  default void close() {}
+}
@@ -0,0 +1,117 @@
+package com.coze.pkce.store;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.coze.openapi.client.auth.OAuthToken;
+
+class ClusteredTokenStoreTest {
+  private static final int MAGIC = 0x435a5443;
+  private static final byte PUT = 1;
+  private static final byte ACK = 3;
+  private static final int NODE_BITS = 10;
+  private static final long PEER_NODE = 7;
+
+  private InMemoryTokenStore local;
+  private ClusteredTokenStore store;
+  private DatagramSocket peer;
+  private long seq;
+
+  @BeforeEach
+  void open() throws Exception {
+    local = new InMemoryTokenStore();
+    store =
+        new ClusteredTokenStore(
+            local, new InetSocketAddress("127.0.0.1", 0), Collections.emptyList(), null, 0);
+    peer = new DatagramSocket(new InetSocketAddress("127.0.0.1", 0));
+    peer.setSoTimeout(2000);
+  }
+
+  @AfterEach
+  void close() {
+    peer.close();
+    store.close();
+  }
+
+  @Test
+  void freshChangeIsApplied() throws Exception {
+    long acked = sendPut(version(System.currentTimeMillis()), "k", token("fresh"));
+    awaitAck(acked);
+
+    assertEquals("fresh", local.get("k").getAccessToken());
+  }
+
+  @Test
+  void changeOlderThanTheAppliedOneIsDropped() throws Exception {
+    long now = System.currentTimeMillis();
+    awaitAck(sendPut(version(now), "k", token("newer")));
+    // delivered late, after the change that replaced it; still acknowledged so it is not resent
+    awaitAck(sendPut(version(now - 1000), "k", token("older")));
+
+    assertEquals("newer", local.get("k").getAccessToken());
+  }
+
+  @Test
+  void replayedChangeIsDropped() throws Exception {
+    long now = System.currentTimeMillis();
+    sendPut(version(now - 2 * ClusteredTokenStore.FRESHNESS_MILLIS), "k", token("replayed"));
+    // datagrams are handled in order, so once this one is through the replay has been seen
+    awaitAck(sendPut(version(now), "other", token("fresh")));
+
+    assertNull(local.get("k"));
+    assertEquals("fresh", local.get("other").getAccessToken());
+  }
+
+  private static long version(long millis) {
+    return millis << NODE_BITS | PEER_NODE;
+  }
+
+  // the unencrypted datagram a peer would send; returns its sequence number
+  private long sendPut(long version, String key, OAuthToken token) throws Exception {
+    byte[] keyBytes = TokenCodec.bytes(key);
+    byte[] tokenBytes = TokenCodec.encode(token);
+    ByteBuffer datagram =
+        ByteBuffer.allocate(
+            Integer.BYTES + 1 + 3 * Long.BYTES + TokenCodec.length(keyBytes) + tokenBytes.length);
+    datagram.putInt(MAGIC).put(PUT).putLong(PEER_NODE).putLong(++seq).putLong(version);
+    TokenCodec.putBytes(datagram, keyBytes);
+    datagram.put(tokenBytes);
+    peer.send(
+        new DatagramPacket(datagram.array(), datagram.capacity(), store.getLocalAddress()));
+    return seq;
+  }
+
+  private void awaitAck(long expected) throws Exception {
+    byte[] buf = new byte[512];
+    while (true) {
+      DatagramPacket packet = new DatagramPacket(buf, buf.length);
+      peer.receive(packet);
+      ByteBuffer body = ByteBuffer.wrap(buf, 0, packet.getLength());
+      if (body.getInt() == MAGIC && body.get() == ACK) {
+        body.getLong();
+        if (body.getLong() == expected) {
+          return;
+        }
+      }
+    }
+  }
+
+  private static OAuthToken token(String accessToken) {
+    return OAuthToken.builder()
+        .accessToken(accessToken)
+        .refreshToken("refresh-" + accessToken)
+        .tokenType("Bearer")
+        .expiresIn((int) (System.currentTimeMillis() / 1000 + 900))
+        .build();
+  }
+}
@@ -0,0 +1,158 @@
+package com.coze.pkce.store;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.coze.openapi.client.auth.OAuthToken;
+
+class SnapshotTokenStoreTest {
+  private static final byte PUT = 1;
+
+  @TempDir Path dir;
+
+  @Test
+  void tokensSurviveReopen() {
+    Path file = dir.resolve("tokens.snapshot");
+    SnapshotTokenStore store = open(file);
+    store.put("a", token("access-a"));
+    store.put("b", token("access-b"));
+    store.remove("b");
+    store.put("a", token("access-a2"));
+    store.close();
+
+    store = open(file);
+    try {
+      assertEquals(1, store.getRestored());
+      assertEquals("access-a2", store.get("a").getAccessToken());
+      assertNull(store.get("b"));
+    } finally {
+      store.close();
+    }
+  }
+
+  @Test
+  void recordCutShortByACrashIsDropped() throws IOException {
+    Path file = dir.resolve("tokens.snapshot");
+    SnapshotTokenStore store = open(file);
+    store.put("a", token("access-a"));
+    store.put("b", token("access-b"));
+    store.close();
+    long written = Files.size(file);
+    // the process died halfway through appending a put: the header made it, the token did not
+    byte[] key = "c".getBytes(StandardCharsets.UTF_8);
+    ByteBuffer torn = ByteBuffer.allocate(1 + Short.BYTES + key.length + Integer.BYTES + 3);
+    torn.put(PUT).putShort((short) key.length).put(key).putInt(200).put(new byte[3]);
+    Files.write(file, torn.array(), StandardOpenOption.APPEND);
+
+    store = open(file);
+    try {
+      assertEquals(2, store.getRestored());
+      assertEquals("access-a", store.get("a").getAccessToken());
+      assertEquals("access-b", store.get("b").getAccessToken());
+      assertNull(store.get("c"));
+      // rewritten without the broken tail, so later appends do not land behind it
+      assertEquals(written, Files.size(file));
+      store.put("d", token("access-d"));
+    } finally {
+      store.close();
+    }
+
+    store = open(file);
+    try {
+      assertEquals(3, store.getRestored());
+      assertEquals("access-d", store.get("d").getAccessToken());
+    } finally {
+      store.close();
+    }
+  }
+
+  @Test
+  void leftoverFromACrashedCompactionIsReplaced() throws IOException {
+    Path file = dir.resolve("tokens.snapshot");
+    Path tmp = dir.resolve("tokens.snapshot.tmp");
+    SnapshotTokenStore store = open(file);
+    store.put("a", token("access-a"));
+    store.put("a", token("access-a2"));
+    store.close();
+    // a compaction died before its rename; the journal it was replacing is still the real file
+    Files.write(tmp, new byte[] {1, 2, 3});
+    boolean posix = Files.getFileStore(dir).supportsFileAttributeView("posix");
+    if (posix) {
+      Files.setPosixFilePermissions(tmp, PosixFilePermissions.fromString("rw-r--r--"));
+    }
+
+    // two records for one live token, so opening compacts
+    store = open(file);
+    try {
+      assertEquals("access-a2", store.get("a").getAccessToken());
+      assertFalse(Files.exists(tmp));
+      if (posix) {
+        assertEquals(
+            "rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(file)));
+      }
+    } finally {
+      store.close();
+    }
+
+    store = open(file);
+    try {
+      assertEquals(1, store.getRestored());
+      assertTrue(store.getFileBytes() > 0);
+    } finally {
+      store.close();
+    }
+  }
+
+  @Test
+  void findKeyWorksAfterReopen() {
+    Path file = dir.resolve("tokens.snapshot");
+    SnapshotTokenStore store = open(file);
+    store.put("a", token("access-a"));
+    store.put("b", token("access-b"));
+    store.put("a", token("access-a2"));
+    store.remove("b");
+    store.close();
+
+    store = open(file);
+    try {
+      // the index is rebuilt from the file, not only from puts made since opening
+      assertEquals("a", store.findKey("access-a2"));
+      assertNull(store.findKey("access-a"));
+      assertNull(store.findKey("access-b"));
+    } finally {
+      store.close();
+    }
+  }
+
+  // no background flush or compaction, so only open and close touch the file
+  private static SnapshotTokenStore open(Path file) {
+    return new SnapshotTokenStore(
+        file,
+        InMemoryTokenStore.DEFAULT_MAX_SIZE,
+        InMemoryTokenStore.DEFAULT_RETAIN_SECONDS,
+        60_000,
+        60_000);
+  }
+
+  private static OAuthToken token(String accessToken) {
+    return OAuthToken.builder()
+        .accessToken(accessToken)
+        .refreshToken("refresh-" + accessToken)
+        .tokenType("Bearer")
+        .expiresIn((int) (System.currentTimeMillis() / 1000 + 900))
+        .build();
+  }
+}
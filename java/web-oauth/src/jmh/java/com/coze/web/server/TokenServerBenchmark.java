@@ -0,0 +1,135 @@
+package com.coze.web.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import com.coze.openapi.client.auth.LoadAuthConfig;
+import com.coze.openapi.client.auth.OAuthConfig;
+import com.coze.openapi.service.auth.WebOAuthClient;
+import com.coze.web.stub.StubAuthServer;
+
+/**
+ * Hot paths of the token server: resource loading, expiry formatting and end-to-end {@code
+ * /callback} and {@code /refresh_token} requests against an in-process {@link StubAuthServer}.
+ */
+@State(Scope.Benchmark)
+public class TokenServerBenchmark {
+  private StubAuthServer stub;
+  private TokenServer server;
+  private Path configFile;
+  private String baseUrl;
+
+  @Setup
+  public void setup() throws IOException {
+    stub = new StubAuthServer();
+    stub.start(0);
+    configFile = Files.createTempFile("coze_oauth_config", ".json");
+    stub.writeConfig(configFile, StubAuthServer.CLIENT_TYPE);
+    LoadAuthConfig loadConfig = new LoadAuthConfig(configFile.toString());
+    server =
+        new TokenServer(WebOAuthClient.loadFromConfig(loadConfig), OAuthConfig.load(loadConfig));
+    int port = freePort();
+    server.start(port);
+    baseUrl = "http://127.0.0.1:" + port;
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    server.stop();
+    stub.stop();
+    Files.deleteIfExists(configFile);
+  }
+
+  /** A browser session that went through /callback once and refreshes its token. */
+  @State(Scope.Thread)
+  public static class Session {
+    private String cookie;
+
+    @Setup
+    public void login(TokenServerBenchmark benchmark) throws IOException {
+      HttpURLConnection conn = benchmark.open("GET", "/callback?code=bench", null);
+      String setCookie = conn.getHeaderField("Set-Cookie");
+      drain(conn);
+      cookie = setCookie.substring(0, setCookie.indexOf(';'));
+    }
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public String readFromResources() {
+    return server.readFromResources("websites/callback.html");
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public String timestampToDateTime() {
+    return TokenServer.timestampToDateTime(1735689600L);
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.Throughput)
+  @OutputTimeUnit(TimeUnit.SECONDS)
+  @Threads(8)
+  public int callback() throws IOException {
+    return drain(open("GET", "/callback?code=bench", null));
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.Throughput)
+  @OutputTimeUnit(TimeUnit.SECONDS)
+  @Threads(8)
+  public int refreshToken(Session session) throws IOException {
+    return drain(open("POST", "/refresh_token", session.cookie));
+  }
+
+  private HttpURLConnection open(String method, String path, String cookie) throws IOException {
+    HttpURLConnection conn = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+    conn.setRequestMethod(method);
+    conn.setInstanceFollowRedirects(false);
+    if (cookie != null) {
+      conn.setRequestProperty("Cookie", cookie);
+    }
+    return conn;
+  }
+
+  // reads the whole body so the keep-alive connection goes back to the pool
+  private static int drain(HttpURLConnection conn) throws IOException {
+    int status = conn.getResponseCode();
+    if (status != 200) {
+      throw new IllegalStateException("unexpected status " + status);
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (InputStream in = conn.getInputStream()) {
+      byte[] buffer = new byte[8192];
+      for (int n; (n = in.read(buffer)) != -1; ) {
+        out.write(buffer, 0, n);
+      }
+    }
+    return out.size();
+  }
+
+  private static int freePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+}
@@ -1,31 +1,191 @@
 package com.coze.web;
 
-import com.coze.openapi.client.auth.LoadAuthConfig;
+import java.net.InetSocketAddress;
+import java.nio.file.Paths;
+
 import com.coze.openapi.client.auth.OAuthConfig;
 import com.coze.openapi.service.auth.WebOAuthClient;
+import com.coze.web.config.ReloadableConfig;
+import com.coze.web.http.UpstreamHttpPool;
+import com.coze.web.log.EventLog;
+import com.coze.web.metrics.Metrics;
+import com.coze.web.server.AdminAccess;
+import com.coze.web.server.RefreshScheduler;
 import com.coze.web.server.TokenServer;
+import com.coze.web.server.UpstreamExecutor;
+import com.coze.web.server.UpstreamGuard;
+import com.coze.web.store.ClusteredTokenStore;
+import com.coze.web.store.InMemoryTokenStore;
+import com.coze.web.store.MappedFileTokenStore;
+import com.coze.web.store.SnapshotTokenStore;
+import com.coze.web.store.TokenStore;
 
 public class Main {
-  private static final int PORT = 8080;
+  // 同一台机器上运行多个实例时用 -Dcoze.port 区分端口
+  private static final int PORT = Integer.getInteger("coze.port", 8080);
   private static final String configFilePath = "coze_oauth_config.json";
+  // 设置 -Dcoze.token.store.file=<path> 时使用内存映射文件存储 token, 可被同机多个进程共享
+  private static final String TOKEN_STORE_FILE = System.getProperty("coze.token.store.file");
+  // 设置 -Dcoze.token.snapshot.file=<path> 时 token 保存在内存中, 同时追加写入该文件, 重启后从文件恢复;
+  // 同时设置 -Dcoze.token.store.file 时不生效
+  private static final String TOKEN_SNAPSHOT_FILE = System.getProperty("coze.token.snapshot.file");
+  // 堆内存中 (默认和设置 -Dcoze.token.snapshot.file 时) 最多保存的 token 数, 超出时淘汰最久未使用的会话
+  private static final int TOKEN_MAX_SIZE =
+      Integer.getInteger("coze.token.max.size", InMemoryTokenStore.DEFAULT_MAX_SIZE);
+  // 设置 -Dcoze.cluster.port=<port> 时在该 UDP 端口与 -Dcoze.cluster.peers=<host:port,...> 中的节点同步 token,
+  // 负载均衡后的多个实例无需粘性会话; -Dcoze.cluster.bind 为监听地址, -Dcoze.cluster.key=<base64 AES key>
+  // 时加密节点间的消息, -Dcoze.cluster.fetch.timeout.ms 为本地没有 token 时等待其他节点回答的时间
+  private static final int CLUSTER_PORT = Integer.getInteger("coze.cluster.port", 0);
+  private static final String CLUSTER_BIND = System.getProperty("coze.cluster.bind", "127.0.0.1");
+  private static final String CLUSTER_PEERS = System.getProperty("coze.cluster.peers");
+  private static final String CLUSTER_KEY = System.getProperty("coze.cluster.key");
+  private static final long CLUSTER_FETCH_TIMEOUT_MILLIS =
+      Long.getLong(
+          "coze.cluster.fetch.timeout.ms", ClusteredTokenStore.DEFAULT_FETCH_TIMEOUT_MILLIS);
+  // 设置 -Dcoze.refresh.lead.seconds=<n> 时在 token 过期前 n 秒左右于后台刷新, 再随机提前最多
+  // -Dcoze.refresh.jitter.seconds 秒以错开刷新; -Dcoze.refresh.parallelism 为同时刷新的数量
+  private static final long REFRESH_LEAD_SECONDS = Long.getLong("coze.refresh.lead.seconds", 0);
+  private static final long REFRESH_JITTER_SECONDS =
+      Long.getLong("coze.refresh.jitter.seconds", RefreshScheduler.DEFAULT_JITTER_SECONDS);
+  private static final int REFRESH_PARALLELISM =
+      Integer.getInteger("coze.refresh.parallelism", RefreshScheduler.DEFAULT_PARALLELISM);
+  // 超过 -Dcoze.refresh.idle.seconds 秒 (默认 1 天) 未登录或刷新的会话不再后台刷新, token 到期后照常失效
+  private static final long REFRESH_IDLE_SECONDS =
+      Long.getLong("coze.refresh.idle.seconds", RefreshScheduler.DEFAULT_IDLE_SECONDS);
+  // 设置 -Dcoze.async.max.inflight=<n> 时在独立线程上调用 Coze 授权接口, 最多 n 个调用同时进行,
+  // 超出时直接返回 503; -Dcoze.async.timeout.ms 为单次调用超时, 超时返回 504
+  private static final int ASYNC_MAX_IN_FLIGHT = Integer.getInteger("coze.async.max.inflight", 0);
+  private static final long ASYNC_TIMEOUT_MILLIS =
+      Long.getLong("coze.async.timeout.ms", UpstreamExecutor.DEFAULT_TIMEOUT_MILLIS);
+  // Coze 授权接口的 HTTP 连接池: -Dcoze.http.max.idle 为保留的空闲连接数, -Dcoze.http.keepalive.ms
+  // 为空闲连接的保留时间, -Dcoze.http.http2=false 时只用 HTTP/1.1, -Dcoze.http.warmup 为启动时预先建立的连接数
+  private static final int HTTP_MAX_IDLE =
+      Integer.getInteger("coze.http.max.idle", UpstreamHttpPool.DEFAULT_MAX_IDLE);
+  private static final long HTTP_KEEP_ALIVE_MILLIS =
+      Long.getLong("coze.http.keepalive.ms", UpstreamHttpPool.DEFAULT_KEEP_ALIVE_MILLIS);
+  private static final boolean HTTP2 =
+      Boolean.parseBoolean(System.getProperty("coze.http.http2", "true"));
+  private static final int HTTP_WARM_UP_CONNECTIONS = Integer.getInteger("coze.http.warmup", 1);
+  // 配置文件修改后在后台重新加载并替换 OAuth 客户端, 设置 -Dcoze.config.watch=false 时不监听
+  private static final boolean CONFIG_WATCH =
+      Boolean.parseBoolean(System.getProperty("coze.config.watch", "true"));
+  // 设置 -Dcoze.log.events=<path> 时把请求, 上游调用和审计事件以 JSON lines 写入该文件 ("-" 为标准输出),
+  // 由后台线程写入, token 只记录指纹; -Dcoze.log.buffer 为待写事件的队列长度, 队列满时丢弃事件
+  private static final String EVENT_LOG = System.getProperty("coze.log.events");
+  private static final int EVENT_LOG_BUFFER =
+      Integer.getInteger("coze.log.buffer", EventLog.DEFAULT_CAPACITY);
+  // 设置 -Dcoze.startup.exit=true 时启动完成后立即退出, 用于生成 AppCDS 归档的训练运行
+  private static final boolean STARTUP_EXIT = Boolean.getBoolean("coze.startup.exit");
+  // 对 Coze 授权接口的调用限流: -Dcoze.upstream.rate 为每秒允许的调用数 (0 不限流), -Dcoze.upstream.burst
+  // 为允许的突发调用数; 连续失败 -Dcoze.upstream.breaker.failures 次 (0 不熔断) 后熔断
+  // -Dcoze.upstream.breaker.open.ms 毫秒, 期间直接返回 503, 之后放行一个探测调用
+  private static final double UPSTREAM_RATE =
+      Double.parseDouble(System.getProperty("coze.upstream.rate", "0"));
+  private static final int UPSTREAM_BURST = Integer.getInteger("coze.upstream.burst", 10);
+  private static final int BREAKER_FAILURES =
+      Integer.getInteger("coze.upstream.breaker.failures", 5);
+  private static final long BREAKER_OPEN_MILLIS =
+      Long.getLong("coze.upstream.breaker.open.ms", 30_000);
+  // 设置 -Dcoze.admin.token=<token> 时 /metrics, /admin/upstream 和 /introspect 须带
+  // Authorization: Bearer <token>; 未设置时只允许本机不经代理直接访问
+  private static final String ADMIN_TOKEN = System.getProperty("coze.admin.token");
 
   public static void main(String[] args) throws Exception {
     TokenServer server = null;
+    EventLog eventLog = EventLog.DISABLED;
     try {
-      // 加载配置
-      OAuthConfig config = OAuthConfig.load(new LoadAuthConfig(configFilePath));
-
-      // 初始化 WEB OAuth 客户端
-      WebOAuthClient oauth = WebOAuthClient.loadFromConfig(new LoadAuthConfig(configFilePath));
+      // 加载配置, 初始化 WEB OAuth 客户端, 共享一个连接池
+      UpstreamHttpPool httpPool =
+          new UpstreamHttpPool(HTTP_MAX_IDLE, HTTP_KEEP_ALIVE_MILLIS, HTTP2);
+      ReloadableConfig<WebOAuthClient> oauth =
+          new ReloadableConfig<>(Paths.get(configFilePath), c -> buildClient(c, httpPool));
+      OAuthConfig config = oauth.config();
 
       // 启动服务器
-      server = new TokenServer(oauth, config);
+      SnapshotTokenStore snapshotStore =
+          TOKEN_SNAPSHOT_FILE != null && TOKEN_STORE_FILE == null
+              ? new SnapshotTokenStore(Paths.get(TOKEN_SNAPSHOT_FILE), TOKEN_MAX_SIZE)
+              : null;
+      TokenStore tokenStore =
+          TOKEN_STORE_FILE != null
+              ? new MappedFileTokenStore(Paths.get(TOKEN_STORE_FILE))
+              : snapshotStore != null ? snapshotStore : new InMemoryTokenStore(TOKEN_MAX_SIZE);
+      ClusteredTokenStore cluster = null;
+      if (CLUSTER_PORT > 0) {
+        cluster =
+            new ClusteredTokenStore(
+                tokenStore,
+                new InetSocketAddress(CLUSTER_BIND, CLUSTER_PORT),
+                ClusteredTokenStore.parsePeers(CLUSTER_PEERS),
+                ClusteredTokenStore.keyFromBase64(CLUSTER_KEY),
+                CLUSTER_FETCH_TIMEOUT_MILLIS);
+        tokenStore = cluster;
+      }
+      UpstreamExecutor upstreamExecutor =
+          ASYNC_MAX_IN_FLIGHT > 0
+              ? new UpstreamExecutor(ASYNC_MAX_IN_FLIGHT, ASYNC_TIMEOUT_MILLIS)
+              : null;
+      Metrics metrics = new Metrics();
+      eventLog = EventLog.open(EVENT_LOG, EVENT_LOG_BUFFER);
+      metrics.bindEventLog(eventLog);
+      httpPool.bindMetrics(metrics);
+      if (snapshotStore != null) {
+        snapshotStore.bindMetrics(metrics);
+      }
+      if (cluster != null) {
+        cluster.bindMetrics(metrics);
+      }
+      // 同一 client_id 的调用共享一个限流器和熔断器
+      UpstreamGuard upstreamGuard =
+          UpstreamGuard.of(
+              config.getClientId(),
+              UPSTREAM_RATE,
+              UPSTREAM_BURST,
+              BREAKER_FAILURES,
+              BREAKER_OPEN_MILLIS);
+      RefreshScheduler refreshScheduler =
+          REFRESH_LEAD_SECONDS > 0
+              ? new RefreshScheduler(
+                  REFRESH_LEAD_SECONDS,
+                  REFRESH_JITTER_SECONDS,
+                  REFRESH_PARALLELISM,
+                  RefreshScheduler.DEFAULT_MAX_SIZE,
+                  REFRESH_IDLE_SECONDS)
+              : null;
+      server =
+          new TokenServer(
+              oauth,
+              tokenStore,
+              metrics,
+              upstreamExecutor,
+              upstreamGuard,
+              refreshScheduler,
+              AdminAccess.withToken(ADMIN_TOKEN));
       server.start(PORT);
+      if (CONFIG_WATCH) {
+        oauth.watch();
+      }
+      // 服务先开始监听, 再预热连接
+      httpPool.warmUp(config.getCozeApiBase(), HTTP_WARM_UP_CONNECTIONS);
+      if (STARTUP_EXIT) {
+        return;
+      }
 
       // 保持主线程运行
       Thread.currentThread().join();
     } finally {
       server.stop();
+      eventLog.close();
     }
   }
+
+  private static WebOAuthClient buildClient(OAuthConfig config, UpstreamHttpPool httpPool) {
+    return new WebOAuthClient.WebOAuthBuilder()
+        .clientID(config.getClientId())
+        .clientSecret(config.getClientSecret())
+        .baseURL(config.getCozeApiBase())
+        .wwwURL(config.getCozeWwwBase())
+        .client(httpPool.client())
+        .build();
+  }
 }
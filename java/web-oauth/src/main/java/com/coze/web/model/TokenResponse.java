@@ -5,6 +5,7 @@ import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 
 import com.coze.openapi.client.auth.OAuthToken;
+import com.coze.web.log.Redaction;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 import lombok.AllArgsConstructor;
@@ -32,7 +33,7 @@ public class TokenResponse {
 
   public void print() {
     System.out.println("Successfully refresh access token:");
-    System.out.println("Access Token: " + this.accessToken);
+    System.out.println("Access Token: " + Redaction.fingerprint(this.accessToken));
     Instant expiresAt = Instant.ofEpochSecond(this.expiresIn);
     System.out.println(
         "Token will expire at: "
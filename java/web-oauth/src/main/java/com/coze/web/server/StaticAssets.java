@@ -0,0 +1,234 @@
+package com.coze.web.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import io.javalin.Javalin;
+import io.javalin.http.Context;
+
+/**
+ * Static files read from the classpath once at startup and served from memory.
+ *
+ * <p>Each file keeps its bytes, a gzip encoding computed on the first request that accepts it (and
+ * kept when it is smaller) and a brotli encoding when a pre-compressed {@code <file>.br} is shipped
+ * next to it. Responses carry
+ * an ETag derived from a SHA-256 of the content plus a {@code Cache-Control} header, and a
+ * matching {@code If-None-Match} is answered with an empty 304.
+ */
+public class StaticAssets {
+  /** Cache-Control of files under {@code /assets}: cached for a day, then revalidated. */
+  public static final String ASSET_CACHE_CONTROL = "public, max-age=86400";
+  /** Cache-Control of pages: always revalidated, which the ETag makes a cheap 304. */
+  public static final String PAGE_CACHE_CONTROL = "no-cache";
+
+  private static final Map<String, String> CONTENT_TYPES = new HashMap<>();
+
+  static {
+    CONTENT_TYPES.put("html", "text/html; charset=utf-8");
+    CONTENT_TYPES.put("css", "text/css; charset=utf-8");
+    CONTENT_TYPES.put("js", "application/javascript; charset=utf-8");
+    CONTENT_TYPES.put("json", "application/json");
+    CONTENT_TYPES.put("svg", "image/svg+xml");
+    CONTENT_TYPES.put("png", "image/png");
+    CONTENT_TYPES.put("jpg", "image/jpeg");
+    CONTENT_TYPES.put("ico", "image/x-icon");
+    CONTENT_TYPES.put("woff2", "font/woff2");
+    CONTENT_TYPES.put("txt", "text/plain; charset=utf-8");
+  }
+
+  // path relative to the loaded directory -> asset
+  private final Map<String, Asset> assets;
+
+  private StaticAssets(Map<String, Asset> assets) {
+    this.assets = assets;
+  }
+
+  /**
+   * Loads every file under classpath directory {@code dir}, from the file system, from inside a jar
+   * or from the resources of a native image. A missing directory gives no assets.
+   */
+  public static StaticAssets fromClasspath(String dir, String cacheControl) {
+    ClassLoader classLoader = StaticAssets.class.getClassLoader();
+    URL url = classLoader.getResource(dir);
+    if (url == null) {
+      return new StaticAssets(Collections.emptyMap());
+    }
+    try {
+      URI uri = url.toURI();
+      // a native image serves its resources from a "resource:" file system
+      if (!"jar".equals(uri.getScheme()) && !"resource".equals(uri.getScheme())) {
+        return new StaticAssets(load(Paths.get(uri), cacheControl));
+      }
+      try (FileSystem fs = FileSystems.newFileSystem(uri, Collections.emptyMap())) {
+        return new StaticAssets(load(fs.getPath(dir), cacheControl));
+      } catch (FileSystemAlreadyExistsException e) {
+        return new StaticAssets(load(FileSystems.getFileSystem(uri).getPath(dir), cacheControl));
+      }
+    } catch (IOException | URISyntaxException e) {
+      throw new RuntimeException("load static assets failed: " + dir, e);
+    }
+  }
+
+  /** Wraps a page rendered once at startup, so it is served like a static file. */
+  public static Asset page(String html) {
+    return new Asset(
+        html.getBytes(StandardCharsets.UTF_8), null, CONTENT_TYPES.get("html"), PAGE_CACHE_CONTROL);
+  }
+
+  /** Adds a GET route under {@code hostedPath} ("" for the root) for each loaded file. */
+  public void register(Javalin javalin, String hostedPath) {
+    assets.forEach((path, asset) -> javalin.get(hostedPath + "/" + path, asset::send));
+  }
+
+  public int size() {
+    return assets.size();
+  }
+
+  private static Map<String, Asset> load(Path root, String cacheControl) throws IOException {
+    List<Path> files;
+    try (Stream<Path> walk = Files.walk(root)) {
+      files = walk.filter(Files::isRegularFile).collect(Collectors.toList());
+    }
+    Map<String, Asset> assets = new TreeMap<>();
+    for (Path file : files) {
+      String path = root.relativize(file).toString().replace('\\', '/');
+      if (path.endsWith(".br") || path.endsWith(".gz")) {
+        continue;
+      }
+      Path brotli = file.resolveSibling(file.getFileName() + ".br");
+      assets.put(
+          path,
+          new Asset(
+              Files.readAllBytes(file),
+              Files.exists(brotli) ? Files.readAllBytes(brotli) : null,
+              contentTypeOf(path),
+              cacheControl));
+    }
+    return assets;
+  }
+
+  private static String contentTypeOf(String path) {
+    String ext = path.substring(path.lastIndexOf('.') + 1).toLowerCase();
+    return CONTENT_TYPES.getOrDefault(ext, "application/octet-stream");
+  }
+
+  /** One file with its pre-computed encodings and validator. */
+  public static final class Asset {
+    private static final byte[] NOT_SMALLER = new byte[0];
+
+    private final byte[] identity;
+    // compressed lazily so startup does not pay for files nobody asks for; NOT_SMALLER when gzip
+    // would not save anything. Racing requests may both compress, with the same result.
+    private volatile byte[] gzip;
+    private final byte[] brotli;
+    private final String hash;
+    private final String contentType;
+    private final String cacheControl;
+
+    private Asset(byte[] identity, byte[] brotli, String contentType, String cacheControl) {
+      this.identity = identity;
+      this.brotli = brotli;
+      this.hash = sha256(identity);
+      this.contentType = contentType;
+      this.cacheControl = cacheControl;
+    }
+
+    public void send(Context ctx) {
+      String acceptEncoding = ctx.header("Accept-Encoding");
+      String encoding = null;
+      byte[] body = identity;
+      byte[] gzipped;
+      if (brotli != null && accepts(acceptEncoding, "br")) {
+        encoding = "br";
+        body = brotli;
+      } else if (accepts(acceptEncoding, "gzip") && (gzipped = gzipped()) != null) {
+        encoding = "gzip";
+        body = gzipped;
+      }
+      ctx.header("Cache-Control", cacheControl);
+      ctx.header("Vary", "Accept-Encoding");
+      // each encoding is a representation of its own with its own strong ETag; all of them share
+      // the content hash, which is what If-None-Match is matched against
+      ctx.header("ETag", "\"" + hash + (encoding == null ? "" : "-" + encoding) + "\"");
+      String ifNoneMatch = ctx.header("If-None-Match");
+      if (ifNoneMatch != null && ifNoneMatch.contains(hash)) {
+        ctx.status(304);
+        return;
+      }
+      if (encoding != null) {
+        ctx.header("Content-Encoding", encoding);
+      }
+      ctx.contentType(contentType);
+      ctx.result(body);
+    }
+
+    private byte[] gzipped() {
+      byte[] encoded = gzip;
+      if (encoded == null) {
+        byte[] compressed = gzip(identity);
+        encoded = compressed.length < identity.length ? compressed : NOT_SMALLER;
+        gzip = encoded;
+      }
+      return encoded == NOT_SMALLER ? null : encoded;
+    }
+
+    private static boolean accepts(String acceptEncoding, String coding) {
+      if (acceptEncoding == null) {
+        return false;
+      }
+      for (String part : acceptEncoding.split(",")) {
+        String[] params = part.trim().split(";");
+        if (params[0].trim().equalsIgnoreCase(coding)) {
+          return params.length == 1 || !params[1].trim().matches("q=0(\\.0*)?");
+        }
+      }
+      return false;
+    }
+
+    private static byte[] gzip(byte[] data) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      try (GZIPOutputStream gz =
+          new GZIPOutputStream(out) {
+            {
+              def.setLevel(Deflater.BEST_COMPRESSION);
+            }
+          }) {
+        gz.write(data);
+      } catch (IOException e) {
+        throw new RuntimeException("gzip failed", e);
+      }
+      return out.toByteArray();
+    }
+
+    private static String sha256(byte[] data) {
+      try {
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(digest).substring(0, 22);
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+}
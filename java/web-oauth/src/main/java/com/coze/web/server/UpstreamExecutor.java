@@ -0,0 +1,145 @@
+package com.coze.web.server;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Runs blocking calls to the Coze auth API off Jetty's request threads.
+ *
+ * <p>At most {@code maxInFlight} calls run or wait at a time; a call beyond that is refused at once
+ * with a 503 instead of being queued, and a call that takes longer than {@code timeoutMillis} is
+ * interrupted and answered with a 504. Calls run on virtual threads when the JVM has them and on a
+ * fixed pool of {@code maxInFlight} threads otherwise.
+ */
+public class UpstreamExecutor implements AutoCloseable {
+  public static final long DEFAULT_TIMEOUT_MILLIS = 10_000;
+
+  private static final int QUEUED = 0;
+  private static final int RUNNING = 1;
+  private static final int CANCELLED = 2;
+
+  private final int maxInFlight;
+  private final long timeoutMillis;
+  private final Semaphore permits;
+  private final ExecutorService workers;
+  private final ScheduledExecutorService timer;
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong timedOut = new AtomicLong();
+
+  public UpstreamExecutor(int maxInFlight, long timeoutMillis) {
+    if (maxInFlight <= 0) {
+      throw new IllegalArgumentException("maxInFlight must be positive: " + maxInFlight);
+    }
+    this.maxInFlight = maxInFlight;
+    this.timeoutMillis = timeoutMillis;
+    this.permits = new Semaphore(maxInFlight);
+    this.workers = newWorkers(maxInFlight);
+    this.timer =
+        Executors.newSingleThreadScheduledExecutor(
+            r -> {
+              Thread t = new Thread(r, "upstream-timeout");
+              t.setDaemon(true);
+              return t;
+            });
+  }
+
+  /**
+   * Starts {@code call} on a worker. Throws {@link UpstreamUnavailableException} (503) right away
+   * when {@code maxInFlight} calls are already running; the returned future fails with one (504)
+   * when the call times out.
+   */
+  public <T> CompletableFuture<T> submit(Supplier<T> call) {
+    if (!permits.tryAcquire()) {
+      rejected.incrementAndGet();
+      throw new UpstreamUnavailableException(503, "Server busy, please retry later.");
+    }
+    CompletableFuture<T> result = new CompletableFuture<>();
+    // the permit is released by whoever moves the call out of QUEUED: the worker when it finishes
+    // running it, or the timer when the call never got to start
+    AtomicInteger state = new AtomicInteger(QUEUED);
+    Future<?> task;
+    try {
+      task =
+          workers.submit(
+              () -> {
+                if (!state.compareAndSet(QUEUED, RUNNING)) {
+                  return;
+                }
+                try {
+                  result.complete(call.get());
+                } catch (Throwable e) {
+                  result.completeExceptionally(e);
+                } finally {
+                  permits.release();
+                }
+              });
+    } catch (RejectedExecutionException e) {
+      permits.release();
+      throw new UpstreamUnavailableException(503, "Server is shutting down.");
+    }
+    ScheduledFuture<?> timeout =
+        timer.schedule(
+            () -> {
+              if (!result.completeExceptionally(
+                  new UpstreamUnavailableException(
+                      504, "Authorization failed: Coze auth API timed out."))) {
+                return;
+              }
+              timedOut.incrementAndGet();
+              if (state.compareAndSet(QUEUED, CANCELLED)) {
+                permits.release();
+              }
+              task.cancel(true);
+            },
+            timeoutMillis,
+            TimeUnit.MILLISECONDS);
+    result.whenComplete((value, e) -> timeout.cancel(false));
+    return result;
+  }
+
+  /** Calls running or waiting for a worker. */
+  public int inFlight() {
+    return maxInFlight - permits.availablePermits();
+  }
+
+  /** Calls refused because {@code maxInFlight} calls were already running. */
+  public long getRejected() {
+    return rejected.get();
+  }
+
+  public long getTimedOut() {
+    return timedOut.get();
+  }
+
+  @Override
+  public void close() {
+    timer.shutdownNow();
+    workers.shutdownNow();
+  }
+
+  private static ExecutorService newWorkers(int threads) {
+    try {
+      return (ExecutorService)
+          Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      AtomicInteger seq = new AtomicInteger();
+      return Executors.newFixedThreadPool(
+          threads,
+          r -> {
+            Thread t = new Thread(r, "upstream-" + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+          });
+    }
+  }
+}
@@ -0,0 +1,46 @@
+package com.coze.web.store;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.coze.openapi.client.auth.OAuthToken;
+
+/**
+ * Maps the access token of each stored token to the key it is stored under, so a store can be
+ * asked about an access token without scanning its entries.
+ *
+ * <p>Access tokens are kept as a 64-bit hash rather than the string itself, so the index stays
+ * small for stores that do not hold their tokens on the heap. Two tokens with the same hash share
+ * one entry; callers check what they find against the store, so a collision can only hide a token,
+ * never reveal another one.
+ */
+final class AccessTokenIndex {
+  private final Map<Long, String> keys = new ConcurrentHashMap<>();
+
+  void add(String key, OAuthToken token) {
+    if (token.getAccessToken() != null) {
+      keys.put(hash(token.getAccessToken()), key);
+    }
+  }
+
+  /** Drops the entry of {@code token}, if it still points to {@code key}. */
+  void remove(String key, OAuthToken token) {
+    if (token.getAccessToken() != null) {
+      keys.remove(hash(token.getAccessToken()), key);
+    }
+  }
+
+  String find(String accessToken) {
+    return keys.get(hash(accessToken));
+  }
+
+  // 64-bit FNV-1a over the UTF-16 code units
+  private static long hash(String accessToken) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < accessToken.length(); i++) {
+      hash ^= accessToken.charAt(i);
+      hash *= 0x100000001b3L;
+    }
+    return hash;
+  }
+}
@@ -0,0 +1,561 @@
+package com.coze.web.store;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.coze.openapi.client.auth.OAuthToken;
+import com.coze.web.metrics.Metrics;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Token store shared by several servers, each keeping a full copy in a local store and telling its
+ * peers about every change over UDP.
+ *
+ * <p>Reads are served from the local store. A {@code put} or {@code remove} is applied locally and
+ * sent to every peer, which acknowledges it; unacknowledged messages are sent again every {@value
+ * #RETRY_MILLIS} ms, up to {@value #MAX_ATTEMPTS} times. Each change carries a version made of the
+ * wall clock and the node, raised past every version seen from a peer, and a change is applied only
+ * if its version is newer than the last one applied for its key. So a refresh on one server
+ * replaces the old token on all of them, whatever order the messages arrive in. The last applied
+ * version of a key is kept as long as its token may still be in the local store, and a change
+ * whose version is more than {@value #FRESHNESS_MILLIS} ms away from this server's clock is
+ * dropped, so a late or replayed message cannot bring back a rotated or removed token once its
+ * version has been forgotten; the servers' clocks must agree to well within that.
+ *
+ * <p>A server that starts, or missed a change for longer than the retries, has no entry for a key
+ * its peers know. A local miss therefore asks the peers and waits up to {@code fetchTimeoutMillis}
+ * for the first answer. With a key, every datagram is encrypted and authenticated with AES-GCM, and
+ * datagrams that do not open are dropped; without one, tokens travel in the clear, which only suits
+ * a loopback or otherwise private network.
+ */
+@Slf4j
+public class ClusteredTokenStore implements TokenStore {
+  public static final long DEFAULT_FETCH_TIMEOUT_MILLIS = 50;
+  static final long RETRY_MILLIS = 100;
+  static final int MAX_ATTEMPTS = 5;
+
+  private static final int MAGIC = 0x435a5443; // "CZTC"
+  private static final byte PUT = 1;
+  private static final byte INVALIDATE = 2;
+  private static final byte ACK = 3;
+  private static final byte FETCH = 4;
+  private static final byte ANSWER = 5;
+  private static final int MAX_DATAGRAM = 8192;
+  private static final int IV_LENGTH = 12;
+  private static final int TAG_BITS = 128;
+  // 版本号低位为节点号, 时间相同时以节点号决定先后
+  private static final int NODE_BITS = 10;
+  // 变更的版本时间与本机时钟相差超过这个时间时丢弃; 正常消息最多晚到重试的总时长
+  static final long FRESHNESS_MILLIS = 60_000;
+  // 每隔这么久清理一次不再需要的版本号
+  private static final long PRUNE_MILLIS = 1000;
+  // 写本地存储时按 key 分段加锁的段数
+  private static final int WRITE_STRIPES = 64;
+
+  private final TokenStore local;
+  private final DatagramSocket socket;
+  private final List<InetSocketAddress> peers;
+  private final SecretKeySpec key;
+  private final long fetchTimeoutMillis;
+  private final long nodeId;
+  private final SecureRandom random = new SecureRandom();
+  private final AtomicLong clock = new AtomicLong();
+  private final AtomicLong sequence = new AtomicLong();
+  private final Map<String, Applied> versions = new ConcurrentHashMap<>();
+  private final Object[] writeLocks = new Object[WRITE_STRIPES];
+  private final Map<Long, Pending> pending = new ConcurrentHashMap<>();
+  private final Map<Long, CompletableFuture<OAuthToken>> fetches = new ConcurrentHashMap<>();
+  private final AtomicLong sent = new AtomicLong();
+  private final AtomicLong received = new AtomicLong();
+  private final AtomicLong stale = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong retransmitted = new AtomicLong();
+  private final AtomicLong lost = new AtomicLong();
+  private final AtomicLong fetched = new AtomicLong();
+  private final Thread receiver;
+  private volatile boolean closed;
+
+  /**
+   * Listens on {@code bind} and replicates to {@code peers}; peers that are this server's own
+   * address are skipped, so every server can be given the same list. {@code key} is a 16, 24 or 32
+   * byte AES key, or null to send datagrams unencrypted.
+   */
+  public ClusteredTokenStore(
+      TokenStore local,
+      InetSocketAddress bind,
+      List<InetSocketAddress> peers,
+      byte[] key,
+      long fetchTimeoutMillis)
+      throws SocketException {
+    if (key != null && key.length != 16 && key.length != 24 && key.length != 32) {
+      throw new IllegalArgumentException("AES key must be 16, 24 or 32 bytes");
+    }
+    this.local = local;
+    for (int i = 0; i < writeLocks.length; i++) {
+      writeLocks[i] = new Object();
+    }
+    this.key = key != null ? new SecretKeySpec(key, "AES") : null;
+    this.fetchTimeoutMillis = fetchTimeoutMillis;
+    this.nodeId = random.nextLong();
+    this.socket = new DatagramSocket(bind);
+    socket.setSoTimeout((int) (RETRY_MILLIS / 2));
+    List<InetSocketAddress> others = new ArrayList<>();
+    for (InetSocketAddress peer : peers) {
+      if (!isSelf(peer, socket.getLocalPort())) {
+        others.add(peer);
+      }
+    }
+    this.peers = Collections.unmodifiableList(others);
+    this.receiver = new Thread(this::receiveLoop, "coze-token-cluster");
+    receiver.setDaemon(true);
+    receiver.start();
+  }
+
+  /** Parses {@code host:port,host:port}; blank entries are skipped. */
+  public static List<InetSocketAddress> parsePeers(String peers) {
+    List<InetSocketAddress> addresses = new ArrayList<>();
+    if (peers == null) {
+      return addresses;
+    }
+    for (String peer : peers.split(",")) {
+      peer = peer.trim();
+      if (peer.isEmpty()) {
+        continue;
+      }
+      int colon = peer.lastIndexOf(':');
+      if (colon <= 0) {
+        throw new IllegalArgumentException("peer must be host:port: " + peer);
+      }
+      int port = Integer.parseInt(peer.substring(colon + 1));
+      addresses.add(new InetSocketAddress(peer.substring(0, colon), port));
+    }
+    return addresses;
+  }
+
+  /** Decodes a base64 AES key; null or empty gives null. */
+  public static byte[] keyFromBase64(String key) {
+    return key == null || key.trim().isEmpty() ? null : Base64.getDecoder().decode(key.trim());
+  }
+
+  public void bindMetrics(Metrics metrics) {
+    metrics.gauge("coze.cluster.peers", peers, List::size);
+    metrics.counter("coze.cluster.sent", sent, AtomicLong::get);
+    metrics.counter("coze.cluster.received", received, AtomicLong::get);
+    metrics.counter("coze.cluster.stale", stale, AtomicLong::get);
+    metrics.counter("coze.cluster.rejected", rejected, AtomicLong::get);
+    metrics.counter("coze.cluster.retransmitted", retransmitted, AtomicLong::get);
+    metrics.counter("coze.cluster.lost", lost, AtomicLong::get);
+    metrics.counter("coze.cluster.fetched", fetched, AtomicLong::get);
+    metrics.gauge("coze.cluster.pending", pending, Map::size);
+  }
+
+  /** The address this store listens on. */
+  public InetSocketAddress getLocalAddress() {
+    return (InetSocketAddress) socket.getLocalSocketAddress();
+  }
+
+  public List<InetSocketAddress> getPeers() {
+    return peers;
+  }
+
+  @Override
+  public OAuthToken get(String key) {
+    OAuthToken token = local.get(key);
+    if (token != null || peers.isEmpty() || fetchTimeoutMillis <= 0) {
+      return token;
+    }
+    // 已知被删除的 key 不再询问其他节点
+    Applied applied = versions.get(key);
+    if (applied != null && applied.removed) {
+      return null;
+    }
+    return fetch(key);
+  }
+
+  @Override
+  public void put(String key, OAuthToken token) {
+    long version = nextVersion();
+    apply(key, version, token);
+    broadcast(PUT, key, version, TokenCodec.encode(token));
+  }
+
+  @Override
+  public void remove(String key) {
+    long version = nextVersion();
+    apply(key, version, null);
+    broadcast(INVALIDATE, key, version, null);
+  }
+
+  /** Looks only at the local store, which holds the tokens replicated from peers as well. */
+  @Override
+  public String findKey(String accessToken) {
+    return local.findKey(accessToken);
+  }
+
+  @Override
+  public int size() {
+    return local.size();
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    socket.close();
+    try {
+      receiver.join(TimeUnit.SECONDS.toMillis(1));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    local.close();
+  }
+
+  // applies the change if it is newer than the last one applied for the key. The version is
+  // decided in compute, but the local store, which may write to disk, is only written once compute
+  // has returned, so its I/O does not hold up the map; the write happens under the key's stripe
+  // and only while this change is still the key's latest, so when two changes race past compute
+  // the older one cannot land on top of the newer
+  private boolean apply(String key, long version, OAuthToken token) {
+    Applied mine = new Applied(version, token);
+    Applied decided =
+        versions.compute(
+            key, (k, current) -> current != null && current.version >= version ? current : mine);
+    if (decided != mine) {
+      return false;
+    }
+    synchronized (writeLocks[(key.hashCode() & 0x7fffffff) % WRITE_STRIPES]) {
+      Applied latest = versions.get(key);
+      // pruned meanwhile means no newer change came in
+      if (latest != null && latest != mine) {
+        return true;
+      }
+      if (token != null) {
+        local.put(key, token);
+      } else {
+        local.remove(key);
+      }
+    }
+    return true;
+  }
+
+  private static long millisOf(long version) {
+    return version >>> NODE_BITS;
+  }
+
+  private long nextVersion() {
+    while (true) {
+      long last = clock.get();
+      long millis = Math.max(System.currentTimeMillis(), (last >>> NODE_BITS) + 1);
+      long next = millis << NODE_BITS | (nodeId & ((1 << NODE_BITS) - 1));
+      if (clock.compareAndSet(last, next)) {
+        return next;
+      }
+    }
+  }
+
+  private OAuthToken fetch(String key) {
+    long seq = sequence.incrementAndGet();
+    CompletableFuture<OAuthToken> answer = new CompletableFuture<>();
+    fetches.put(seq, answer);
+    try {
+      byte[] datagram = encode(FETCH, seq, 0, key, null);
+      for (InetSocketAddress peer : peers) {
+        send(datagram, peer);
+      }
+      OAuthToken token = answer.get(fetchTimeoutMillis, TimeUnit.MILLISECONDS);
+      fetched.incrementAndGet();
+      return token;
+    } catch (TimeoutException | ExecutionException e) {
+      return null;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    } finally {
+      fetches.remove(seq);
+    }
+  }
+
+  private void broadcast(byte type, String key, long version, byte[] token) {
+    if (peers.isEmpty()) {
+      return;
+    }
+    long seq = sequence.incrementAndGet();
+    byte[] datagram = encode(type, seq, version, key, token);
+    Pending message = new Pending(datagram, peers);
+    pending.put(seq, message);
+    for (InetSocketAddress peer : peers) {
+      send(datagram, peer);
+    }
+  }
+
+  private void send(byte[] datagram, SocketAddress peer) {
+    try {
+      socket.send(new DatagramPacket(datagram, datagram.length, peer));
+      sent.incrementAndGet();
+    } catch (IOException e) {
+      if (!closed) {
+        log.debug("Sending to token cluster peer {} failed", peer, e);
+      }
+    }
+  }
+
+  private void receiveLoop() {
+    byte[] buf = new byte[MAX_DATAGRAM];
+    DatagramPacket packet = new DatagramPacket(buf, buf.length);
+    long lastRetry = System.currentTimeMillis();
+    long lastPrune = lastRetry;
+    while (!closed) {
+      try {
+        packet.setLength(buf.length);
+        socket.receive(packet);
+        received.incrementAndGet();
+        handle(packet);
+      } catch (SocketTimeoutException e) {
+        // 没有消息时也按时重发
+      } catch (IOException e) {
+        if (!closed) {
+          log.warn("Token cluster receive failed", e);
+        }
+      } catch (RuntimeException e) {
+        rejected.incrementAndGet();
+        log.debug("Dropped a malformed token cluster datagram", e);
+      }
+      long now = System.currentTimeMillis();
+      if (now - lastRetry >= RETRY_MILLIS / 2) {
+        lastRetry = now;
+        retry(now);
+      }
+      if (now - lastPrune >= PRUNE_MILLIS) {
+        lastPrune = now;
+        versions.values().removeIf(applied -> applied.keepUntil < now);
+      }
+    }
+  }
+
+  private void handle(DatagramPacket packet) {
+    ByteBuffer body = open(packet.getData(), packet.getLength());
+    if (body == null) {
+      rejected.incrementAndGet();
+      return;
+    }
+    byte type = body.get();
+    long sender = body.getLong();
+    long seq = body.getLong();
+    long version = body.getLong();
+    String key = TokenCodec.getString(body);
+    if (sender == nodeId) {
+      return;
+    }
+    SocketAddress from = packet.getSocketAddress();
+    switch (type) {
+      case PUT:
+      case INVALIDATE:
+        if (Math.abs(millisOf(version) - System.currentTimeMillis()) > FRESHNESS_MILLIS) {
+          // replayed, or from a server whose clock is off; its version may already be forgotten
+          stale.incrementAndGet();
+          break;
+        }
+        clock.accumulateAndGet(version, Math::max);
+        OAuthToken token = type == PUT ? TokenCodec.decode(body) : null;
+        if (!apply(key, version, token)) {
+          stale.incrementAndGet();
+        }
+        send(encode(ACK, seq, 0, "", null), from);
+        break;
+      case ACK:
+        Pending message = pending.get(seq);
+        if (message != null) {
+          message.waiting.remove(from);
+          if (message.waiting.isEmpty()) {
+            pending.remove(seq);
+          }
+        }
+        break;
+      case FETCH:
+        OAuthToken known = local.get(key);
+        if (known != null) {
+          Applied knownVersion = versions.get(key);
+          send(
+              encode(
+                  ANSWER,
+                  seq,
+                  knownVersion != null ? knownVersion.version : 0,
+                  key,
+                  TokenCodec.encode(known)),
+              from);
+        }
+        break;
+      case ANSWER:
+        CompletableFuture<OAuthToken> answer = fetches.get(seq);
+        if (answer != null) {
+          OAuthToken answered = TokenCodec.decode(body);
+          apply(key, version, answered);
+          answer.complete(answered);
+        }
+        break;
+      default:
+        rejected.incrementAndGet();
+    }
+  }
+
+  private void retry(long now) {
+    for (Iterator<Map.Entry<Long, Pending>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+      Pending message = it.next().getValue();
+      if (now - message.lastSent < RETRY_MILLIS) {
+        continue;
+      }
+      if (message.attempts >= MAX_ATTEMPTS) {
+        lost.addAndGet(message.waiting.size());
+        it.remove();
+        continue;
+      }
+      message.attempts++;
+      message.lastSent = now;
+      for (SocketAddress peer : message.waiting) {
+        retransmitted.incrementAndGet();
+        send(message.datagram, peer);
+      }
+    }
+  }
+
+  // magic, then type, sender, sequence, version, key and token, sealed when there is a key
+  private byte[] encode(byte type, long seq, long version, String key, byte[] token) {
+    byte[] keyBytes = TokenCodec.bytes(key);
+    ByteBuffer body =
+        ByteBuffer.allocate(
+            1 + 3 * Long.BYTES + TokenCodec.length(keyBytes) + (token == null ? 0 : token.length));
+    body.put(type).putLong(nodeId).putLong(seq).putLong(version);
+    TokenCodec.putBytes(body, keyBytes);
+    if (token != null) {
+      body.put(token);
+    }
+    byte[] plain = body.array();
+    ByteBuffer datagram;
+    if (this.key == null) {
+      datagram = ByteBuffer.allocate(Integer.BYTES + plain.length);
+      datagram.putInt(MAGIC).put(plain);
+    } else {
+      byte[] iv = new byte[IV_LENGTH];
+      random.nextBytes(iv);
+      try {
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, this.key, new GCMParameterSpec(TAG_BITS, iv));
+        cipher.updateAAD(magic());
+        byte[] sealed = cipher.doFinal(plain);
+        datagram = ByteBuffer.allocate(Integer.BYTES + IV_LENGTH + sealed.length);
+        datagram.putInt(MAGIC).put(iv).put(sealed);
+      } catch (GeneralSecurityException e) {
+        throw new IllegalStateException("seal token cluster datagram failed", e);
+      }
+    }
+    if (datagram.capacity() > MAX_DATAGRAM) {
+      throw new IllegalArgumentException("token too large to replicate: " + datagram.capacity());
+    }
+    return datagram.array();
+  }
+
+  // the body of a datagram, or null when it is not ours or does not open with the key
+  private ByteBuffer open(byte[] data, int length) {
+    if (length < Integer.BYTES || ByteBuffer.wrap(data).getInt() != MAGIC) {
+      return null;
+    }
+    if (key == null) {
+      return ByteBuffer.wrap(data, Integer.BYTES, length - Integer.BYTES).slice();
+    }
+    if (length <= Integer.BYTES + IV_LENGTH) {
+      return null;
+    }
+    try {
+      Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+      cipher.init(
+          Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, data, Integer.BYTES, IV_LENGTH));
+      cipher.updateAAD(magic());
+      int offset = Integer.BYTES + IV_LENGTH;
+      return ByteBuffer.wrap(cipher.doFinal(data, offset, length - offset));
+    } catch (GeneralSecurityException e) {
+      return null;
+    }
+  }
+
+  private static byte[] magic() {
+    return ByteBuffer.allocate(Integer.BYTES).putInt(MAGIC).array();
+  }
+
+  private static boolean isSelf(InetSocketAddress peer, int localPort) {
+    if (peer.getPort() != localPort) {
+      return false;
+    }
+    InetAddress address = peer.getAddress();
+    if (address == null) {
+      return false;
+    }
+    try {
+      return address.isLoopbackAddress()
+          || address.isAnyLocalAddress()
+          || NetworkInterface.getByInetAddress(address) != null;
+    } catch (SocketException e) {
+      return false;
+    }
+  }
+
+  // the last change applied for a key, kept while the key's token may still be in the local store
+  // and at least as long as a message for it could still count as fresh
+  private static final class Applied {
+    private final long version;
+    private final boolean removed;
+    private final long keepUntil;
+
+    private Applied(long version, OAuthToken token) {
+      this.version = version;
+      this.removed = token == null;
+      long fresh = millisOf(version) + FRESHNESS_MILLIS;
+      this.keepUntil =
+          removed
+              ? fresh
+              : Math.max(
+                  fresh,
+                  TimeUnit.SECONDS.toMillis(
+                      InMemoryTokenStore.expiresAt(
+                          token, InMemoryTokenStore.DEFAULT_RETAIN_SECONDS)));
+    }
+  }
+
+  private static final class Pending {
+    private final byte[] datagram;
+    private final Set<SocketAddress> waiting = ConcurrentHashMap.newKeySet();
+    private int attempts = 1;
+    private long lastSent = System.currentTimeMillis();
+
+    private Pending(byte[] datagram, List<InetSocketAddress> peers) {
+      this.datagram = datagram;
+      waiting.addAll(peers);
+    }
+  }
+}
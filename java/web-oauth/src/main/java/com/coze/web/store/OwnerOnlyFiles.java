@@ -0,0 +1,30 @@
+package com.coze.web.store;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/** Opens files that hold tokens in plain text, creating them readable by their owner only. */
+final class OwnerOnlyFiles {
+  private static final FileAttribute<Set<PosixFilePermission>> OWNER_READ_WRITE =
+      PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"));
+
+  private OwnerOnlyFiles() {}
+
+  static FileChannel open(Path file, OpenOption... options) throws IOException {
+    Set<OpenOption> optionSet = new HashSet<>(Arrays.asList(options));
+    try {
+      return FileChannel.open(file, optionSet, OWNER_READ_WRITE);
+    } catch (UnsupportedOperationException e) {
+      // not a POSIX file system, as on Windows; the directory's access rules apply
+      return FileChannel.open(file, optionSet);
+    }
+  }
+}
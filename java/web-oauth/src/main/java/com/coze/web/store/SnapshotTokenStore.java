@@ -0,0 +1,387 @@
+package com.coze.web.store;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.coze.openapi.client.auth.OAuthToken;
+import com.coze.web.metrics.Metrics;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Heap token store that survives restarts: an {@link InMemoryTokenStore} whose changes are also
+ * appended to a file, which is read back when the store is created.
+ *
+ * <p>{@code put} and {@code remove} only encode a record with {@link TokenCodec} into a buffer; a
+ * background thread appends the buffer to the file every {@code flushMillis}, so a request never
+ * waits for the disk and a crash loses at most that much. Records leave the buffer only once they
+ * are written; a failed append is cut back off the file, and if that fails too, or a compaction
+ * fails, the next flush writes a fresh snapshot instead of appending. Every {@code compactMillis},
+ * once the file has grown to twice the size of the live entries, it is replaced by a fresh snapshot
+ * of them: written to a temporary file, synced and renamed over the old one. Loading maps the file
+ * and replays its records in order, stops at a record cut short by a crash and drops expired
+ * entries, and rewrites the file only when it held more than the live entries or ended in a broken
+ * record.
+ *
+ * <p>The file holds the tokens in plain text, so it is created readable and writable by its owner
+ * only where the file system supports POSIX permissions.
+ *
+ * <p>The file starts with a magic number and a version; each record is a type byte, the key as a
+ * short length and UTF-8 bytes and, for a put, the token's length as an int and its encoding.
+ */
+@Slf4j
+public class SnapshotTokenStore implements TokenStore {
+  public static final long DEFAULT_FLUSH_MILLIS = 1000;
+  public static final long DEFAULT_COMPACT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+  private static final int MAGIC = 0x435a534e; // "CZSN"
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 8;
+  private static final byte PUT = 1;
+  private static final byte REMOVE = 2;
+  // 未达到这个大小时不压缩, 避免频繁重写小文件
+  private static final long MIN_COMPACT_BYTES = 1 << 20;
+
+  private final Path file;
+  private final long retainSeconds;
+  private final InMemoryTokenStore entries;
+  // put 和 remove 在这把锁下修改内存并写入缓冲区, 文件中的记录顺序与内存中的修改顺序一致
+  private final Object recordLock = new Object();
+  // flush 和 compact 在这把锁下操作文件
+  private final Object fileLock = new Object();
+  private final ScheduledExecutorService writer;
+  private final AtomicLong compactions = new AtomicLong();
+  private final AtomicLong flushFailures = new AtomicLong();
+  private final int restored;
+  private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+  private FileChannel journal;
+  private long fileBytes;
+  private long snapshotBytes;
+  // 文件末尾可能有写了一半的记录, 或日志已关闭; 下次 flush 先压缩, 不再追加
+  private boolean needsCompact;
+
+  public SnapshotTokenStore(Path file) {
+    this(file, InMemoryTokenStore.DEFAULT_MAX_SIZE);
+  }
+
+  /** Keeps at most {@code maxSize} tokens, evicting the least recently used session beyond that. */
+  public SnapshotTokenStore(Path file, int maxSize) {
+    this(
+        file,
+        maxSize,
+        InMemoryTokenStore.DEFAULT_RETAIN_SECONDS,
+        DEFAULT_FLUSH_MILLIS,
+        DEFAULT_COMPACT_MILLIS);
+  }
+
+  public SnapshotTokenStore(
+      Path file, int maxSize, long retainSeconds, long flushMillis, long compactMillis) {
+    this.file = file.toAbsolutePath();
+    this.retainSeconds = retainSeconds;
+    this.entries = new InMemoryTokenStore(maxSize, retainSeconds);
+    long start = System.nanoTime();
+    try {
+      // 文件中每条记录都是有效的 token 时不必重写, 直接在末尾追加
+      int records = load();
+      this.restored = entries.size();
+      if (records < 0 || records > restored) {
+        compact();
+      } else {
+        openJournal(Files.size(this.file));
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException("open token snapshot failed: " + this.file, e);
+    }
+    log.info(
+        "Restored {} tokens from {} in {} ms",
+        restored,
+        this.file,
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    this.writer =
+        Executors.newSingleThreadScheduledExecutor(
+            r -> {
+              Thread t = new Thread(r, "coze-token-snapshot");
+              t.setDaemon(true);
+              return t;
+            });
+    writer.scheduleWithFixedDelay(
+        this::flushQuietly, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+    writer.scheduleWithFixedDelay(
+        this::compactIfGrown, compactMillis, compactMillis, TimeUnit.MILLISECONDS);
+  }
+
+  public void bindMetrics(Metrics metrics) {
+    metrics.gauge("coze.token.snapshot.bytes", this, SnapshotTokenStore::getFileBytes);
+    metrics.counter("coze.token.snapshot.compactions", compactions, AtomicLong::get);
+    metrics.counter("coze.token.snapshot.flush.failures", flushFailures, AtomicLong::get);
+  }
+
+  /** Tokens read back from the file when the store was created. */
+  public int getRestored() {
+    return restored;
+  }
+
+  public long getFileBytes() {
+    synchronized (fileLock) {
+      return fileBytes;
+    }
+  }
+
+  @Override
+  public OAuthToken get(String key) {
+    return entries.get(key);
+  }
+
+  @Override
+  public void put(String key, OAuthToken token) {
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    int tokenLength = TokenCodec.encodedLength(token);
+    ByteBuffer record =
+        ByteBuffer.allocate(1 + TokenCodec.length(keyBytes) + Integer.BYTES + tokenLength);
+    record.put(PUT);
+    TokenCodec.putBytes(record, keyBytes);
+    record.putInt(tokenLength);
+    TokenCodec.encode(token, record);
+    synchronized (recordLock) {
+      entries.put(key, token);
+      pending.write(record.array(), 0, record.position());
+    }
+  }
+
+  @Override
+  public void remove(String key) {
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer record = ByteBuffer.allocate(1 + TokenCodec.length(keyBytes));
+    record.put(REMOVE);
+    TokenCodec.putBytes(record, keyBytes);
+    synchronized (recordLock) {
+      entries.remove(key);
+      pending.write(record.array(), 0, record.position());
+    }
+  }
+
+  @Override
+  public String findKey(String accessToken) {
+    return entries.findKey(accessToken);
+  }
+
+  @Override
+  public int size() {
+    return entries.size();
+  }
+
+  /** Writes the pending records and closes the file. */
+  @Override
+  public void close() {
+    writer.shutdown();
+    try {
+      writer.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    synchronized (fileLock) {
+      try {
+        flush();
+        journal.force(false);
+        journal.close();
+      } catch (IOException e) {
+        throw new UncheckedIOException("close token snapshot failed: " + file, e);
+      }
+    }
+  }
+
+  // replays the file into the heap store; returns the number of records, or -1 when the file is
+  // missing or ends with a broken record
+  private int load() throws IOException {
+    if (!Files.exists(file) || Files.size(file) < HEADER_SIZE) {
+      return -1;
+    }
+    int records = 0;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+        throw new IllegalStateException("incompatible token snapshot file: " + file);
+      }
+      long now = InMemoryTokenStore.nowSeconds();
+      while (buf.hasRemaining()) {
+        int start = buf.position();
+        try {
+          byte type = buf.get();
+          String key = TokenCodec.getString(buf);
+          if (key == null) {
+            throw new IllegalArgumentException("record without a key");
+          }
+          if (type == PUT) {
+            int length = buf.getInt();
+            ByteBuffer token = buf.slice();
+            token.limit(length);
+            buf.position(buf.position() + length);
+            OAuthToken decoded = TokenCodec.decode(token);
+            if (InMemoryTokenStore.expiresAt(decoded, retainSeconds) > now) {
+              entries.put(key, decoded);
+            } else {
+              entries.remove(key);
+            }
+          } else if (type == REMOVE) {
+            entries.remove(key);
+          } else {
+            throw new IllegalArgumentException("unknown record type " + type);
+          }
+          records++;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+          log.warn("Token snapshot {} has a broken record at {}, ignoring the rest", file, start);
+          return -1;
+        }
+      }
+    }
+    return records;
+  }
+
+  // replaces the file with the live entries; the records pending at that moment are in them
+  private void compact() throws IOException {
+    synchronized (fileLock) {
+      // the pending records are dropped below, so until this succeeds only a snapshot holds them
+      needsCompact = true;
+      List<Map.Entry<String, OAuthToken>> live;
+      synchronized (recordLock) {
+        live = entries.snapshot();
+        pending = new ByteArrayOutputStream();
+      }
+      Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+      // a leftover from a crashed compaction would keep its permissions, so start afresh
+      Files.deleteIfExists(tmp);
+      long bytes;
+      try (FileChannel out =
+          OwnerOnlyFiles.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+        ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+        buf.putInt(MAGIC).putInt(VERSION);
+        for (Map.Entry<String, OAuthToken> entry : live) {
+          byte[] keyBytes = entry.getKey().getBytes(StandardCharsets.UTF_8);
+          int tokenLength = TokenCodec.encodedLength(entry.getValue());
+          int length = 1 + TokenCodec.length(keyBytes) + Integer.BYTES + tokenLength;
+          if (buf.remaining() < length) {
+            buf = drain(out, buf, length);
+          }
+          buf.put(PUT);
+          TokenCodec.putBytes(buf, keyBytes);
+          buf.putInt(tokenLength);
+          TokenCodec.encode(entry.getValue(), buf);
+        }
+        drain(out, buf, 0);
+        out.force(false);
+        bytes = out.size();
+      }
+      if (journal != null) {
+        journal.close();
+      }
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      openJournal(bytes);
+      needsCompact = false;
+      compactions.incrementAndGet();
+    }
+  }
+
+  private void openJournal(long bytes) throws IOException {
+    synchronized (fileLock) {
+      journal = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+      fileBytes = bytes;
+      snapshotBytes = bytes;
+    }
+  }
+
+  // writes out what buf holds; returns a buffer with room for at least {@code need} bytes
+  private static ByteBuffer drain(FileChannel out, ByteBuffer buf, int need) throws IOException {
+    buf.flip();
+    while (buf.hasRemaining()) {
+      out.write(buf);
+    }
+    buf.clear();
+    return buf.capacity() >= need ? buf : ByteBuffer.allocate(need);
+  }
+
+  private void flush() throws IOException {
+    synchronized (fileLock) {
+      if (needsCompact) {
+        compact();
+        return;
+      }
+      byte[] records;
+      synchronized (recordLock) {
+        if (pending.size() == 0) {
+          return;
+        }
+        records = pending.toByteArray();
+        pending = new ByteArrayOutputStream();
+      }
+      ByteBuffer buf = ByteBuffer.wrap(records);
+      try {
+        while (buf.hasRemaining()) {
+          journal.write(buf);
+        }
+      } catch (IOException e) {
+        unflush(records);
+        try {
+          // cut off whatever part of the records made it, so the file ends at a whole record
+          journal.truncate(fileBytes);
+        } catch (IOException truncateFailure) {
+          e.addSuppressed(truncateFailure);
+          needsCompact = true;
+        }
+        throw e;
+      }
+      fileBytes += records.length;
+    }
+  }
+
+  // puts records that could not be written back in front of those buffered since
+  private void unflush(byte[] records) {
+    synchronized (recordLock) {
+      ByteArrayOutputStream restored = new ByteArrayOutputStream(records.length + pending.size());
+      restored.write(records, 0, records.length);
+      byte[] since = pending.toByteArray();
+      restored.write(since, 0, since.length);
+      pending = restored;
+    }
+  }
+
+  private void flushQuietly() {
+    try {
+      flush();
+    } catch (IOException e) {
+      flushFailures.incrementAndGet();
+      log.warn("Appending to token snapshot {} failed", file, e);
+    }
+  }
+
+  private void compactIfGrown() {
+    try {
+      long bytes;
+      long snapshot;
+      synchronized (fileLock) {
+        bytes = fileBytes;
+        snapshot = snapshotBytes;
+      }
+      if (bytes > MIN_COMPACT_BYTES && bytes > 2 * snapshot) {
+        compact();
+      }
+    } catch (IOException e) {
+      log.warn("Compacting token snapshot {} failed", file, e);
+    }
+  }
+}
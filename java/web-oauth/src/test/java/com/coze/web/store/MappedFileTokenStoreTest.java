@@ -0,0 +1,104 @@
+package com.coze.web.store;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.coze.openapi.client.auth.OAuthToken;
+
+class MappedFileTokenStoreTest {
+  private static final int CAPACITY = 1024;
+  private static final long RETAIN_SECONDS = 3600;
+
+  @TempDir Path dir;
+
+  @Test
+  void tokensSurviveReopen() {
+    Path file = dir.resolve("tokens.db");
+    MappedFileTokenStore store = new MappedFileTokenStore(file, CAPACITY, RETAIN_SECONDS);
+    store.put("a", token("access-a"));
+    store.put("b", token("access-b"));
+    store.put("c", token("access-c"));
+    store.remove("b");
+    store.put("a", token("access-a2"));
+    store.close();
+
+    store = new MappedFileTokenStore(file, CAPACITY, RETAIN_SECONDS);
+    try {
+      assertEquals(2, store.size());
+      assertEquals("access-a2", store.get("a").getAccessToken());
+      assertEquals("refresh-access-a2", store.get("a").getRefreshToken());
+      assertNull(store.get("b"));
+      assertEquals("access-c", store.get("c").getAccessToken());
+    } finally {
+      store.close();
+    }
+  }
+
+  @Test
+  void removedSlotsAreReused() {
+    Path file = dir.resolve("tokens.db");
+    MappedFileTokenStore store = new MappedFileTokenStore(file, CAPACITY, RETAIN_SECONDS);
+    int live = CAPACITY * 7 / 8;
+    for (int i = 0; i < live; i++) {
+      store.put("live-" + i, token("live-" + i));
+    }
+    // far more keys than slots pass through; without reusing deleted slots the table would run
+    // out of free ones and start evicting live entries
+    for (int i = 0; i < CAPACITY * 200; i++) {
+      store.put("churn-" + i, token("churn-" + i));
+      store.remove("churn-" + i);
+    }
+    assertEquals(live, store.size());
+    for (int i = 0; i < live; i++) {
+      assertNotNull(store.get("live-" + i), "live-" + i);
+    }
+    store.close();
+
+    store = new MappedFileTokenStore(file, CAPACITY, RETAIN_SECONDS);
+    try {
+      assertEquals(live, store.size());
+      for (int i = 0; i < live; i++) {
+        assertEquals("live-" + i, store.get("live-" + i).getAccessToken());
+      }
+      assertNull(store.get("churn-0"));
+    } finally {
+      store.close();
+    }
+  }
+
+  @Test
+  void findKeyWorksAfterReopen() {
+    Path file = dir.resolve("tokens.db");
+    MappedFileTokenStore store = new MappedFileTokenStore(file, CAPACITY, RETAIN_SECONDS);
+    store.put("a", token("access-a"));
+    store.put("b", token("access-b"));
+    store.put("a", token("access-a2"));
+    store.remove("b");
+    store.close();
+
+    store = new MappedFileTokenStore(file, CAPACITY, RETAIN_SECONDS);
+    try {
+      // the index is rebuilt from the mapped slots, not only from puts made since opening
+      assertEquals("a", store.findKey("access-a2"));
+      assertNull(store.findKey("access-a"));
+      assertNull(store.findKey("access-b"));
+    } finally {
+      store.close();
+    }
+  }
+
+  private static OAuthToken token(String accessToken) {
+    return OAuthToken.builder()
+        .accessToken(accessToken)
+        .refreshToken("refresh-" + accessToken)
+        .tokenType("Bearer")
+        .expiresIn((int) (System.currentTimeMillis() / 1000 + 900))
+        .build();
+  }
+}